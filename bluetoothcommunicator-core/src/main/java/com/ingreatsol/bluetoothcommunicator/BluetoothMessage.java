@@ -0,0 +1,555 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ingreatsol.bluetoothcommunicator;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.ingreatsol.bluetoothcommunicator.tools.SupportedCharacters;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * A BluetoothMessage is a single frame (sub message) of a Message, each frame starts with an header that contains
+ * the id of the message, the sequence number of the frame inside the message and its type (FINAL or NON_FINAL).
+ * <br /><br />
+ * The current header is binary and has a fixed width of HEADER_LENGTH bytes:
+ * <pre>
+ * | version (4 bits) | type (4 bits) | id (uint16, big endian) | sequence number (uint16, big endian) |
+ * </pre>
+ * Frames of the previous version (LEGACY_VERSION) used an ASCII header of LEGACY_HEADER_LENGTH characters
+ * (4 for the id, 3 for the sequence number and 1 for the type), these frames can still be parsed because
+ * their first byte is always a printable character, while the first byte of a binary header is always lower than 0x20.
+ * <br /><br />
+ * The first frame of a message can set the LENGTH_HINT bit of the type, in that case the header is followed by the length
+ * of the data of the message (uint32, big endian), so the receiver can allocate the ReassemblyBuffer with its final size.
+ * <br /><br />
+ * The header can be read directly from the received bytes with readId, readSequenceNumber and readType without allocations.
+ * <br /><br />
+ * The data of a frame is a view (offset and length) of a bigger array, optionally preceded by a small prefix: the frames
+ * created by Message.splitInBluetoothMessages refer directly to the data of the Message and the received frames refer to
+ * the received bytes, so the data is copied only when the complete frame is written (getCompleteData, with a reusable buffer)
+ * or when getData is called.
+ */
+class BluetoothMessage {
+    public static final int LEGACY_VERSION = 0;
+    public static final int VERSION = 1;
+    // legacy ASCII header
+    public static final int ID_LENGTH = 4;
+    public static final int SEQUENCE_NUMBER_LENGTH = 3;
+    public static final int TYPE_LENGTH = 1;
+    public static final int LEGACY_HEADER_LENGTH = ID_LENGTH + SEQUENCE_NUMBER_LENGTH + TYPE_LENGTH;
+    private static final int LEGACY_BASE = SupportedCharacters.COUNT;
+    // binary header
+    public static final int HEADER_LENGTH = 5;
+    public static final int MAX_LENGTH = 512;  // the maximum length of a characteristic value
+    public static final int NON_FINAL = 1;
+    public static final int FINAL = 2;
+    public static final int LENGTH_HINT = 0x08;
+    public static final int LENGTH_HINT_LENGTH = 4;
+    private static final int TYPE_MASK = 0x07;
+    private static final byte[] EMPTY = new byte[0];
+    private SequenceNumber id;
+    private SequenceNumber sequenceNumber;
+    private int type;
+    // the data is prefix followed by data[dataOffset, dataOffset + dataLength)
+    private byte[] prefix = EMPTY;
+    private byte[] data;
+    private int dataOffset;
+    private int dataLength;
+    private int version = VERSION;
+    private int lengthHint = -1;
+
+    public BluetoothMessage(SequenceNumber id, SequenceNumber sequenceNumber, int type, byte[] data) {
+        this.id = id;
+        this.sequenceNumber = sequenceNumber;
+        this.type = type;
+        setData(data);
+    }
+
+    /**
+     * Creates a frame whose data is prefix followed by dataLength bytes of data starting from dataOffset, the arrays are not copied.
+     */
+    public BluetoothMessage(SequenceNumber id, SequenceNumber sequenceNumber, int type, @NonNull byte[] prefix, @NonNull byte[] data, int dataOffset, int dataLength) {
+        this.id = id;
+        this.sequenceNumber = sequenceNumber;
+        this.type = type;
+        this.prefix = prefix;
+        this.data = data;
+        this.dataOffset = dataOffset;
+        this.dataLength = dataLength;
+    }
+
+    /**
+     * Splits header followed by data in sub messages of the current VERSION.
+     */
+    @NonNull
+    public static ArrayDeque<BluetoothMessage> split(@NonNull byte[] header, @NonNull byte[] data, SequenceNumber id, int subMessagesLength) {
+        return split(header, data, id, subMessagesLength, VERSION);
+    }
+
+    /**
+     * Splits header followed by data in sub messages of subMessagesLength bytes (header included) with the header of version,
+     * with VERSION the first one has the length hint (LEGACY_VERSION has no length hint).
+     * The sub messages are views of header and data, nothing is copied here.
+     *
+     * @param version VERSION, or LEGACY_VERSION for the peers that don't understand the binary header
+     * @return the sub messages, from sequence number 0
+     */
+    @NonNull
+    public static ArrayDeque<BluetoothMessage> split(@NonNull byte[] header, @NonNull byte[] data, SequenceNumber id, int subMessagesLength, int version) {
+        boolean lengthHint = version == VERSION;
+        int subDataLength = subMessagesLength - getHeaderLength(version);
+        int completeLength = header.length + data.length;
+        // the first sub message has less space if it contains the length hint
+        int firstSubDataLength = Math.min(lengthHint ? subDataLength - LENGTH_HINT_LENGTH : subDataLength, completeLength);
+        int subMessagesCount = 1 + (completeLength - firstSubDataLength + subDataLength - 1) / subDataLength;
+        if (subMessagesCount > SequenceNumber.MAX_VALUE + 1) {
+            throw new IllegalArgumentException("the message is too long to be represented by " + (SequenceNumber.MAX_VALUE + 1) + " sub messages");
+        }
+
+        ArrayDeque<BluetoothMessage> bluetoothMessages = new ArrayDeque<>();
+        int begin = 0;
+        int end = firstSubDataLength;
+        for (int sequenceNumber = 0; sequenceNumber < subMessagesCount; sequenceNumber++) {
+            int type;
+            if (end == completeLength) {
+                type = FINAL;
+            } else {
+                type = NON_FINAL;
+            }
+            byte[] prefix = getPrefix(header, begin, end);
+            int dataBegin = Math.max(begin - header.length, 0);
+            BluetoothMessage bluetoothMessage = new BluetoothMessage(id, new SequenceNumber(sequenceNumber, SEQUENCE_NUMBER_LENGTH),
+                    type, prefix, data, dataBegin, end - begin - prefix.length);
+            bluetoothMessage.setVersion(version);
+            if (begin == 0 && lengthHint) {
+                bluetoothMessage.setLengthHint(data.length);
+            }
+            bluetoothMessages.addLast(bluetoothMessage);
+            begin = end;
+            end = Math.min(end + subDataLength, completeLength);
+        }
+        return bluetoothMessages;
+    }
+
+    /**
+     * @return the part of the header between begin and end (positions of the header followed by the data)
+     */
+    private static byte[] getPrefix(byte[] header, int begin, int end) {
+        int prefixBegin = Math.min(begin, header.length);
+        int prefixEnd = Math.min(end, header.length);
+        if (prefixBegin == 0 && prefixEnd == header.length) {
+            return header;
+        }
+        return Arrays.copyOfRange(header, prefixBegin, prefixEnd);
+    }
+
+    @Nullable
+    public static BluetoothMessage createFromBytes(byte[] completeData) {
+        int version = getVersion(completeData);
+        int headerLength = getHeaderLength(version);
+        if (headerLength != -1 && completeData.length > headerLength) {
+            int type = readType(completeData);
+            int id = readId(completeData);
+            int sequenceNumber = readSequenceNumber(completeData);
+            int lengthHint = -1;
+            if (version == VERSION && (completeData[0] & LENGTH_HINT) != 0) {
+                if (completeData.length <= headerLength + LENGTH_HINT_LENGTH) {
+                    return null;
+                }
+                lengthHint = readInt(completeData, headerLength);
+                headerLength += LENGTH_HINT_LENGTH;
+            }
+            if (type != -1 && id != -1 && sequenceNumber != -1 && completeData.length > headerLength) {
+                // the data is a view of completeData without the header
+                BluetoothMessage message = new BluetoothMessage(new SequenceNumber(id, ID_LENGTH), new SequenceNumber(sequenceNumber, SEQUENCE_NUMBER_LENGTH),
+                        type, EMPTY, completeData, headerLength, completeData.length - headerLength);
+                message.version = version;
+                message.lengthHint = lengthHint;
+                return message;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return VERSION for binary headers, LEGACY_VERSION for ASCII headers or -1 if the bytes do not start with a valid header
+     * (it is enough to have the id and the sequence number, so acknowledgements are recognized too)
+     */
+    public static int getVersion(@NonNull byte[] frame) {
+        if (frame.length > 0) {
+            int first = frame[0] & 0xFF;
+            if (first >> 4 == VERSION) {
+                return frame.length >= HEADER_LENGTH ? VERSION : -1;
+            }
+            if (isLegacyCharacter(frame[0])) {
+                return frame.length >= ID_LENGTH + SEQUENCE_NUMBER_LENGTH ? LEGACY_VERSION : -1;
+            }
+        }
+        return -1;
+    }
+
+    public static int getHeaderLength(int version) {
+        switch (version) {
+            case VERSION:
+                return HEADER_LENGTH;
+            case LEGACY_VERSION:
+                return LEGACY_HEADER_LENGTH;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * @return the id contained in the header of frame or -1 if the header is not valid
+     */
+    public static int readId(@NonNull byte[] frame) {
+        switch (getVersion(frame)) {
+            case VERSION:
+                return readUnsignedShort(frame, 1);
+            case LEGACY_VERSION:
+                return readLegacyNumber(frame, 0, ID_LENGTH);
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * @return the sequence number contained in the header of frame or -1 if the header is not valid
+     */
+    public static int readSequenceNumber(@NonNull byte[] frame) {
+        switch (getVersion(frame)) {
+            case VERSION:
+                return readUnsignedShort(frame, 3);
+            case LEGACY_VERSION:
+                return readLegacyNumber(frame, ID_LENGTH, SEQUENCE_NUMBER_LENGTH);
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * @return the type contained in the header of frame or -1 if the header is not valid or does not contain the type
+     */
+    public static int readType(@NonNull byte[] frame) {
+        int type = -1;
+        switch (getVersion(frame)) {
+            case VERSION:
+                type = frame[0] & TYPE_MASK;
+                break;
+            case LEGACY_VERSION:
+                if (frame.length >= LEGACY_HEADER_LENGTH) {
+                    type = frame[ID_LENGTH + SEQUENCE_NUMBER_LENGTH] - '0';
+                }
+                break;
+        }
+        return type == NON_FINAL || type == FINAL ? type : -1;
+    }
+
+    private static int readUnsignedShort(@NonNull byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+    }
+
+    private static void writeUnsignedShort(@NonNull byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >> 8);
+        bytes[offset + 1] = (byte) value;
+    }
+
+    private static int readInt(@NonNull byte[] bytes, int offset) {
+        return (readUnsignedShort(bytes, offset) << 16) | readUnsignedShort(bytes, offset + 2);
+    }
+
+    private static void writeInt(@NonNull byte[] bytes, int offset, int value) {
+        writeUnsignedShort(bytes, offset, value >>> 16);
+        writeUnsignedShort(bytes, offset + 2, value);
+    }
+
+    private static boolean isLegacyCharacter(byte character) {
+        return SupportedCharacters.getIndex(character) != -1;
+    }
+
+    // the digits of the legacy numbers are the supported characters in alphabetical order
+    private static int readLegacyNumber(@NonNull byte[] bytes, int offset, int length) {
+        int value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int digit = SupportedCharacters.getIndex(bytes[i]);
+            if (digit == -1) {
+                return -1;
+            }
+            value = value * LEGACY_BASE + digit;
+        }
+        return value;
+    }
+
+    private static void writeLegacyNumber(@NonNull byte[] bytes, int offset, int length, int value) {
+        for (int i = offset + length - 1; i >= offset; i--) {
+            bytes[i] = (byte) SupportedCharacters.get(value % LEGACY_BASE);
+            value /= LEGACY_BASE;
+        }
+    }
+
+
+    public SequenceNumber getId() {
+        return id;
+    }
+
+    public void setId(SequenceNumber id) {
+        this.id = id;
+    }
+
+    public SequenceNumber getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    public void setSequenceNumber(SequenceNumber sequenceNumber) {
+        this.sequenceNumber = sequenceNumber;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public void setType(int type) {
+        this.type = type;
+    }
+
+    /**
+     * @return the data of the frame, if it is a view of a bigger array it is copied
+     */
+    public byte[] getData() {
+        if (prefix.length == 0 && dataOffset == 0 && dataLength == data.length) {
+            return data;
+        }
+        byte[] copy = new byte[getDataLength()];
+        copyData(0, copy, 0, copy.length);
+        return copy;
+    }
+
+    public void setData(byte[] data) {
+        this.prefix = EMPTY;
+        this.data = data;
+        this.dataOffset = 0;
+        this.dataLength = data != null ? data.length : 0;
+    }
+
+    public int getDataLength() {
+        return prefix.length + dataLength;
+    }
+
+    public byte getDataByte(int index) {
+        if (index < prefix.length) {
+            return prefix[index];
+        }
+        return data[dataOffset + index - prefix.length];
+    }
+
+    /**
+     * Copies length bytes of the data, starting from begin, in destination starting from destinationOffset.
+     */
+    public void copyData(int begin, @NonNull byte[] destination, int destinationOffset, int length) {
+        int prefixLength = Math.max(0, Math.min(prefix.length - begin, length));
+        if (prefixLength > 0) {
+            System.arraycopy(prefix, begin, destination, destinationOffset, prefixLength);
+        }
+        if (length > prefixLength) {
+            System.arraycopy(data, dataOffset + Math.max(0, begin - prefix.length), destination, destinationOffset + prefixLength, length - prefixLength);
+        }
+    }
+
+    /**
+     * @return the version of the header used by getCompleteData and getAcknowledgementData, for received messages
+     * it is the version of the header they had, so the acknowledgement is understood by the sender
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
+    /**
+     * @return the length of the data of the whole message, sent only with the first sub message, or -1 if it is not sent
+     */
+    public int getLengthHint() {
+        return lengthHint;
+    }
+
+    public void setLengthHint(int lengthHint) {
+        this.lengthHint = lengthHint;
+    }
+
+    public byte[] getCompleteData() {
+        return getCompleteData(null);
+    }
+
+    /**
+     * @param buffer array reused for the complete data if it has exactly its length
+     * @return the header followed by the data, in buffer or in a new array
+     */
+    public byte[] getCompleteData(@Nullable byte[] buffer) {
+        int headerLength = getCompleteHeaderLength();
+        int completeLength = headerLength + getDataLength();
+        byte[] completeData = buffer != null && buffer.length == completeLength ? buffer : new byte[completeLength];
+        writeHeader(completeData);
+        if (headerLength > getHeaderLength(version)) {
+            completeData[0] |= LENGTH_HINT;
+            writeInt(completeData, HEADER_LENGTH, lengthHint);
+        }
+        copyData(0, completeData, headerLength, getDataLength());
+        return completeData;
+    }
+
+    public int getCompleteDataLength() {
+        return getCompleteHeaderLength() + getDataLength();
+    }
+
+    private int getCompleteHeaderLength() {
+        int headerLength = getHeaderLength(version);
+        if (version == VERSION && lengthHint >= 0) {
+            headerLength += LENGTH_HINT_LENGTH;
+        }
+        return headerLength;
+    }
+
+    /**
+     * @return the header of this message without data, it is sent back to the sender to confirm the reception
+     */
+    public byte[] getAcknowledgementData() {
+        byte[] acknowledgement;
+        if (version == LEGACY_VERSION) {
+            acknowledgement = new byte[ID_LENGTH + SEQUENCE_NUMBER_LENGTH];  // the legacy acknowledgement has no type
+        } else {
+            acknowledgement = new byte[HEADER_LENGTH];
+        }
+        writeHeader(acknowledgement);
+        return acknowledgement;
+    }
+
+    /**
+     * @param acknowledgement header received as confirmation (or the complete data of the frame written)
+     * @return true if the acknowledgement refers to this message
+     */
+    public boolean isAcknowledgedBy(@NonNull byte[] acknowledgement) {
+        return readId(acknowledgement) == id.intValue() && readSequenceNumber(acknowledgement) == sequenceNumber.intValue();
+    }
+
+    private void writeHeader(@NonNull byte[] destination) {
+        if (version == LEGACY_VERSION) {
+            writeLegacyNumber(destination, 0, ID_LENGTH, id.intValue());
+            writeLegacyNumber(destination, ID_LENGTH, SEQUENCE_NUMBER_LENGTH, sequenceNumber.intValue());
+            if (destination.length >= LEGACY_HEADER_LENGTH) {
+                destination[ID_LENGTH + SEQUENCE_NUMBER_LENGTH] = (byte) ('0' + type);
+            }
+        } else {
+            destination[0] = (byte) ((VERSION << 4) | (type & 0x0F));
+            writeUnsignedShort(destination, 1, id.intValue());
+            writeUnsignedShort(destination, 3, sequenceNumber.intValue());
+        }
+    }
+
+    /**
+     * Immutable numeric id or sequence number, the maximum value is MAX_VALUE because it has to fit in the 16 bits of the binary header,
+     * size is the number of characters that the value occupies in the legacy ASCII header.
+     * <br /><br />
+     * After MAX_VALUE the value restarts from 0, so the values are compared with serial number arithmetic (RFC 1982): a value is
+     * greater than the values that precede it by less than half of the range, even if it has restarted from 0.
+     */
+    public static class SequenceNumber {
+        public static final int MAX_VALUE = 0xFFFF;
+        private static final int HALF_RANGE = (MAX_VALUE + 1) / 2;
+        private final int size;
+        private final int value;
+
+        public SequenceNumber(int size) {
+            this(0, size);
+        }
+
+        public SequenceNumber(int value, int size) {
+            this.size = size;
+            this.value = value;
+        }
+
+        /**
+         * @return the following sequence number, after MAX_VALUE it is 0
+         */
+        @NonNull
+        public SequenceNumber next() {
+            return new SequenceNumber((value + 1) & MAX_VALUE, size);
+        }
+
+        /**
+         * @return negative number if this < sequenceNumber, 0 if this == sequenceNumber and positive if this > sequenceNumber (serial number comparison)
+         **/
+        public int compare(@NonNull SequenceNumber sequenceNumber) {
+            return compare(value, sequenceNumber.value);
+        }
+
+        /**
+         * Serial number comparison (RFC 1982) of two values between 0 and MAX_VALUE, the values distant exactly half of the range
+         * (for which the comparison is undefined) are compared normally.
+         */
+        public static int compare(int value1, int value2) {
+            int distance = (value1 - value2) & MAX_VALUE;
+            if (distance == 0) {
+                return 0;
+            }
+            if (distance == HALF_RANGE) {
+                return Integer.compare(value1, value2);
+            }
+            return distance < HALF_RANGE ? 1 : -1;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (obj instanceof SequenceNumber) {
+                SequenceNumber sequenceNumber = (SequenceNumber) obj;
+                return sequenceNumber.compare(this) == 0;
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return value;
+        }
+
+        /**
+         * The sequence number is immutable, so the clone is not needed anymore.
+         */
+        @NonNull
+        public SequenceNumber clone() {
+            return this;
+        }
+
+        public int intValue() {
+            return value;
+        }
+
+        /**
+         * @return the legacy ASCII representation of the value
+         */
+        public String getValue() {
+            byte[] legacyValue = new byte[size];
+            writeLegacyNumber(legacyValue, 0, size, value);
+            return new String(legacyValue, StandardCharsets.UTF_8);
+        }
+    }
+}
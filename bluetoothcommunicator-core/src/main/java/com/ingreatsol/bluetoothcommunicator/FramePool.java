@@ -0,0 +1,84 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ingreatsol.bluetoothcommunicator;
+
+/**
+ * Small pool of the arrays used by a ProtocolChannel for the frames that it writes.
+ * <br /><br />
+ * The value of a characteristic must have exactly the length of the frame and the frames of a transfer have very few different
+ * lengths (all the sub messages of a message have the length given by the MTU, except the last), so the pool keeps one array
+ * for each of the last lengths used and replaces the least recently used when a new length is needed. An array can be reused
+ * as soon as the GATT operation that writes it has started, because its value is copied by the operation.
+ */
+class FramePool {
+    public static final int DEFAULT_SIZE = 4;
+    private final byte[][] arrays;
+    private final long[] useTimes;
+    private long uses = 0;
+    // statistics
+    private long requests = 0;
+    private long allocations = 0;
+
+    public FramePool(int size) {
+        arrays = new byte[Math.max(1, size)][];
+        useTimes = new long[arrays.length];
+    }
+
+    /**
+     * @return an array of the pool with exactly this length, allocated only if the pool has none
+     */
+    public byte[] obtain(int length) {
+        uses++;
+        requests++;
+        int leastRecentlyUsed = 0;
+        for (int i = 0; i < arrays.length; i++) {
+            if (arrays[i] != null && arrays[i].length == length) {
+                useTimes[i] = uses;
+                return arrays[i];
+            }
+            // the empty slots have use time 0, so they are chosen first
+            if (useTimes[i] < useTimes[leastRecentlyUsed]) {
+                leastRecentlyUsed = i;
+            }
+        }
+        allocations++;
+        arrays[leastRecentlyUsed] = new byte[length];
+        useTimes[leastRecentlyUsed] = uses;
+        return arrays[leastRecentlyUsed];
+    }
+
+    /**
+     * @return the number of arrays requested
+     */
+    public long getRequests() {
+        return requests;
+    }
+
+    /**
+     * @return the number of arrays allocated because the pool had none of the requested length
+     */
+    public long getAllocations() {
+        return allocations;
+    }
+
+    public void clear() {
+        for (int i = 0; i < arrays.length; i++) {
+            arrays[i] = null;
+            useTimes[i] = 0;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ingreatsol.bluetoothcommunicator;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Random;
+
+/**
+ * Transport that connects two endpoints in the same process, it simulates the link with the latency, jitter, loss, MTU and bandwidth
+ * of its Link, so many peers can be simulated in a single JVM.
+ * <br /><br />
+ * The frames written by an endpoint are transmitted one after the other at the bandwidth of its link (the completion of a write is
+ * notified when its transmission ends), then they arrive to the remote endpoint after the latency plus a random jitter. Like on a
+ * real ATT bearer the frames are never reordered, and each frame is lost with the loss rate of the link (after its completion).
+ * <br /><br />
+ * The events are run by timerWheel: without a Ticker the simulation advances only with TimerWheel.expire, so its time is virtual
+ * and the results are reproducible with the same seed of random.
+ */
+class LoopbackTransport extends Transport {
+    private final Link link;
+    private final TimerWheel timerWheel;
+    private final Random random;
+    @Nullable
+    private LoopbackTransport remote;
+    private int connection = 0;     // incremented by each connection and disconnection (of both the endpoints)
+    private long transmissionEnd = 0;   // the time when the last frame written is completely transmitted
+    private long lastArrival = 0;
+    // statistics
+    private long sentFrames = 0;
+    private long sentBytes = 0;
+    private long lostFrames = 0;
+    private final Object lock = new Object();
+
+    /**
+     * @param link features of the frames sent by this endpoint (the MTU of the connection is the lowest of the two links)
+     */
+    public LoopbackTransport(@NonNull Link link, @NonNull TimerWheel timerWheel, @NonNull Random random) {
+        this.link = link;
+        this.timerWheel = timerWheel;
+        this.random = random;
+    }
+
+    /**
+     * Connects first and second, both are notified of the MTU and of the connection.
+     */
+    public static void connect(@NonNull LoopbackTransport first, @NonNull LoopbackTransport second) {
+        int mtu = Math.min(first.link.getMtu(), second.link.getMtu());
+        first.setRemote(second);
+        second.setRemote(first);
+        first.notifyMtuChanged(mtu);
+        second.notifyMtuChanged(mtu);
+        first.notifyConnectionStateChanged(true);
+        second.notifyConnectionStateChanged(true);
+    }
+
+    /**
+     * Disconnects this endpoint and its remote endpoint, the frames not yet arrived are lost.
+     */
+    public void disconnect() {
+        LoopbackTransport remote;
+        synchronized (lock) {
+            remote = this.remote;
+        }
+        if (remote != null) {
+            setRemote(null);
+            remote.setRemote(null);
+            notifyConnectionStateChanged(false);
+            remote.notifyConnectionStateChanged(false);
+        }
+    }
+
+    @Override
+    public boolean write(int stream, @NonNull byte[] frame) {
+        return send(stream, frame, false);
+    }
+
+    @Override
+    public boolean writeAcknowledgement(int stream, @NonNull byte[] acknowledgement) {
+        return send(stream, acknowledgement, true);
+    }
+
+    @Override
+    public boolean isConnected() {
+        synchronized (lock) {
+            return remote != null;
+        }
+    }
+
+    public long getSentFrames() {
+        synchronized (lock) {
+            return sentFrames;
+        }
+    }
+
+    public long getSentBytes() {
+        synchronized (lock) {
+            return sentBytes;
+        }
+    }
+
+    public long getLostFrames() {
+        synchronized (lock) {
+            return lostFrames;
+        }
+    }
+
+    private void setRemote(@Nullable LoopbackTransport remote) {
+        synchronized (lock) {
+            this.remote = remote;
+            connection++;
+        }
+    }
+
+    private boolean send(final int stream, @NonNull byte[] frame, final boolean acknowledgement) {
+        final LoopbackTransport remote;
+        final int connection;
+        long now;
+        long arrival;
+        boolean lost;
+        synchronized (lock) {
+            remote = this.remote;
+            connection = this.connection;
+            if (remote == null || frame.length > getMaxFrameLength()) {
+                return false;
+            }
+            now = timerWheel.now();
+            transmissionEnd = Math.max(now, transmissionEnd) + link.getTransmissionTime(frame.length);
+            long jitter = link.getJitter() > 0 ? (long) (random.nextDouble() * link.getJitter()) : 0;
+            arrival = Math.max(transmissionEnd + link.getLatency() + jitter, lastArrival);
+            lastArrival = arrival;
+            lost = random.nextDouble() < link.getLossRate();
+            sentFrames++;
+            sentBytes += frame.length;
+            if (lost) {
+                lostFrames++;
+            }
+            if (acknowledgement) {
+                timerWheel.schedule(new TimerWheel.Timeout(() -> notifyAcknowledgementWriteCompleted(stream)), transmissionEnd - now, now);
+            } else {
+                timerWheel.schedule(new TimerWheel.Timeout(() -> notifyWriteCompleted(stream, true)), transmissionEnd - now, now);
+            }
+        }
+        if (!lost) {
+            // the caller can reuse frame (it is an array of the frame pool of the channel)
+            final byte[] copy = frame.clone();
+            timerWheel.schedule(new TimerWheel.Timeout(() -> {
+                // the frames of a previous connection are discarded
+                if (getConnection() == connection) {
+                    if (acknowledgement) {
+                        remote.notifyAcknowledgementReceived(stream, copy);
+                    } else {
+                        remote.notifyFrameReceived(stream, copy);
+                    }
+                }
+            }), arrival - now, now);
+        }
+        return true;
+    }
+
+    private int getConnection() {
+        synchronized (lock) {
+            return connection;
+        }
+    }
+
+    /**
+     * Features of one direction of a simulated link.
+     */
+    public static class Link {
+        private final long latency;
+        private final long jitter;
+        private final double lossRate;
+        private final int mtu;
+        private final int bandwidth;
+
+        /**
+         * @param latency   time (in milliseconds) between the end of the transmission of a frame and its arrival
+         * @param jitter    maximum random delay (in milliseconds) added to the latency
+         * @param lossRate  probability (between 0 and 1) that a frame is lost
+         * @param mtu       MTU of the link
+         * @param bandwidth bytes per second, 0 for an unlimited bandwidth
+         */
+        public Link(long latency, long jitter, double lossRate, int mtu, int bandwidth) {
+            this.latency = Math.max(0, latency);
+            this.jitter = Math.max(0, jitter);
+            this.lossRate = lossRate;
+            this.mtu = Math.max(mtu, DEFAULT_MTU);
+            this.bandwidth = Math.max(0, bandwidth);
+        }
+
+        public long getLatency() {
+            return latency;
+        }
+
+        public long getJitter() {
+            return jitter;
+        }
+
+        public double getLossRate() {
+            return lossRate;
+        }
+
+        public int getMtu() {
+            return mtu;
+        }
+
+        public int getBandwidth() {
+            return bandwidth;
+        }
+
+        /**
+         * @return the time (in milliseconds) needed to transmit length bytes
+         */
+        public long getTransmissionTime(int length) {
+            if (bandwidth == 0) {
+                return 0;
+            }
+            return (length * 1000L + bandwidth - 1) / bandwidth;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ingreatsol.bluetoothcommunicator;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Runs the writings of a ProtocolChannel (the frames and the acknowledgements of each stream) one at a time, in order.
+ * <br /><br />
+ * An operation is started when the previous ones are completed: if its start returns STARTED it waits until onOperationCompleted
+ * is called with its type and stream (the transport has notified the end of the writing), if it returns RETRY it is started again later.
+ * The implementations are GattScheduler (through the channels of the Android module, the operations of all the characteristics of a device
+ * share the same queue) and TimerWheelScheduler, that runs them on a TimerWheel.
+ */
+abstract class OperationScheduler {
+    // results of Operation.start
+    public static final int STARTED = 0;
+    public static final int COMPLETED = 1;
+    public static final int RETRY = 2;
+    // types of operations
+    public static final int FRAME = 0;
+    public static final int ACKNOWLEDGEMENT = 1;
+
+    /**
+     * @param type   FRAME or ACKNOWLEDGEMENT
+     * @param stream Transport.MESSAGE or Transport.DATA
+     */
+    public abstract void schedule(int type, int stream, @NonNull Operation operation);
+
+    /**
+     * Completes the running operation if it is of type and stream, so the next one can be started.
+     */
+    public abstract void onOperationCompleted(int type, int stream);
+
+    /**
+     * Deletes all the operations not yet started.
+     */
+    public abstract void cancel();
+
+    public static abstract class Operation {
+        /**
+         * Starts the operation, it is called by the thread of the scheduler.
+         *
+         * @return STARTED if the operation waits for the completion of the transport, COMPLETED if it has nothing to wait for
+         * (or it is no longer needed) or RETRY if it has to be started again later
+         */
+        public abstract int start();
+    }
+}
@@ -0,0 +1,841 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ingreatsol.bluetoothcommunicator;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Send and receive state of the connection with a peer, independent of Bluetooth: the queues of the messages and data being sent,
+ * their windows and retransmission (go-back-N with a timeout computed from the round trip time) and the reassembly of the ones received.
+ * <br /><br />
+ * Each direction has two streams (Transport.MESSAGE and Transport.DATA) with their own queue and window. The frames and the acknowledgements
+ * are written through transport, one writing at a time in the order given by scheduler, and the time of the timeouts and of the statistics
+ * is the time of timerWheel. The events of transport (frames and acknowledgements received, completions, MTU and connection) are handled
+ * by the channel itself. Channel (in the Android module) adds the peer and the connection handshake over GATT.
+ */
+abstract class ProtocolChannel {
+    public static final int DEFAULT_SEND_WINDOW_SIZE = 4;
+    public static final int BULK_SEND_WINDOW_SIZE = 16;
+    public static final int BULK_ACKNOWLEDGEMENT_INTERVAL = 4;     // with smaller send windows the sub data are confirmed after ACKNOWLEDGEMENT_DELAY
+    //timeouts of retransmission
+    protected final int MESSAGE_TIMEOUT = 1000;   // used until the round trip time is measured
+    protected final int MIN_MESSAGE_TIMEOUT = 200;
+    protected final int MAX_MESSAGE_TIMEOUT = 8000;
+    // delay after the last sub data received after which its acknowledgement is written, if BULK_ACKNOWLEDGEMENT_INTERVAL sub data don't arrive first
+    protected final int ACKNOWLEDGEMENT_DELAY = 20;
+    // messages being sent and waiting to be sent, each peer has its own queues so a slow peer doesn't delay the others
+    private final SendQueue messages = new SendQueue(SendQueue.DEFAULT_MAX_ACTIVE_MESSAGES, 1);
+    // the sub data are interleaved in bursts as long as the interval of the bulk acknowledgements, so each burst is confirmed at once
+    private final SendQueue data = new SendQueue(SendQueue.DEFAULT_MAX_ACTIVE_MESSAGES, BULK_ACKNOWLEDGEMENT_INTERVAL);
+    private boolean messageTransmitting = false;
+    private boolean dataTransmitting = false;
+    private int sendWindowSize = DEFAULT_SEND_WINDOW_SIZE;
+    private int dataWindowSize = DEFAULT_SEND_WINDOW_SIZE;     // getDataSendWindowSize when the last data was started
+    // version of the header of the sub messages sent, it becomes VERSION as soon as the peer sends a binary sub message
+    private int version = BluetoothMessage.VERSION;
+    private final RoundTripEstimator roundTripEstimator = new RoundTripEstimator(MESSAGE_TIMEOUT, MIN_MESSAGE_TIMEOUT, MAX_MESSAGE_TIMEOUT, TimerWheel.DEFAULT_TICK_DURATION);
+    private long retransmissionCount = 0;
+    private final ReassemblyTable receivingMessages = new ReassemblyTable(ReassemblyTable.DEFAULT_MAX_MESSAGES, ReassemblyTable.DEFAULT_TIMEOUT);
+    private final ReassemblyTable receivingData = new ReassemblyTable(ReassemblyTable.DEFAULT_MAX_MESSAGES, ReassemblyTable.DEFAULT_TIMEOUT);
+    private final ReceivedWindow receivedMessages = new ReceivedWindow(ReceivedWindow.DEFAULT_SIZE);
+    private final ReceivedWindow receivedData = new ReceivedWindow(ReceivedWindow.DEFAULT_SIZE);
+    // timeouts of the timer wheel, they are created once and scheduled again each time
+    private final TimerWheel.Timeout messageTimer = new TimerWheel.Timeout(this::onSubMessageTimeout);
+    private final TimerWheel.Timeout dataTimer = new TimerWheel.Timeout(this::onSubDataTimeout);
+    private final TimerWheel.Timeout acknowledgementTimer = new TimerWheel.Timeout(this::onAcknowledgementDelayExpired);
+    private final FramePool framePool = new FramePool(FramePool.DEFAULT_SIZE);
+    // acknowledgements not yet written (by stream), they are cumulative so only the last one of each message is written
+    private final HashMap<Integer, ArrayList<byte[]>> pendingAcknowledgements = new HashMap<>();
+    // acknowledgement of the sub data received not yet scheduled (it waits for the following sub data or for ACKNOWLEDGEMENT_DELAY)
+    @Nullable
+    private byte[] delayedAcknowledgement;
+    private int unacknowledgedSubData = 0;
+    private int lastSubDataId = -1;
+    protected final Object lock = new Object();
+    protected final OperationScheduler scheduler;
+    protected final TimerWheel timerWheel;
+    protected final Transport transport;
+
+    protected ProtocolChannel(@NonNull OperationScheduler scheduler, @NonNull TimerWheel timerWheel, @NonNull Transport transport) {
+        this.scheduler = scheduler;
+        this.timerWheel = timerWheel;
+        this.transport = transport;
+        transport.setCallback(new TransportCallback());
+    }
+
+    /**
+     * Adds the message made of header and data to the queue of this channel, callback is notified when the message is sent
+     * (or when the channel is disconnected). Up to SendQueue.DEFAULT_MAX_ACTIVE_MESSAGES messages are sent at the same time,
+     * with their sub messages interleaved.
+     *
+     * @param priority SendQueue.PRIORITY_CONTROL, PRIORITY_INTERACTIVE or PRIORITY_BULK
+     */
+    public void writeMessage(@NonNull byte[] header, @NonNull byte[] data, int priority, @Nullable MessageCallback callback) {
+        synchronized (lock) {
+            messages.add(header, data, priority, callback, timerWheel.now());
+            writeNextMessage();
+        }
+    }
+
+    public void writeData(@NonNull byte[] header, @NonNull byte[] data, int priority, @Nullable MessageCallback callback) {
+        synchronized (lock) {
+            this.data.add(header, data, priority, callback, timerWheel.now());
+            writeNextData();
+        }
+    }
+
+    private void writeNextMessage() {
+        while (messages.activateNext(getSubMessagesLength(), getMessageSendWindowSize(), version) != null) {
+            // the other queued messages are started too, if there is room for them
+        }
+        writeSubMessage();
+    }
+
+    private void writeNextData() {
+        int windowSize = getDataSendWindowSize();
+        while (data.activateNext(getSubMessagesLength(), windowSize, version) != null) {
+            dataWindowSize = windowSize;
+        }
+        writeSubData();
+    }
+
+    /**
+     * Sends the next sub message of the messages being sent, if the send window is not full and no other sub message is being transmitted.
+     */
+    protected void writeSubMessage() {
+        synchronized (lock) {
+            if (!messageTransmitting && messages.peekNext(getMessageSendWindowSize()) != null) {
+                messageTransmitting = true;
+                transmit(Transport.MESSAGE);
+            }
+        }
+    }
+
+    protected void writeSubData() {
+        synchronized (lock) {
+            if (!dataTransmitting && data.peekNext(dataWindowSize) != null) {
+                dataTransmitting = true;
+                transmit(Transport.DATA);
+            }
+        }
+    }
+
+    /**
+     * Schedules the transmission of the next frame of stream, the frame is chosen when the operation starts, because
+     * the window can change while the operation waits (rewind or acknowledgement). The operation is completed by the completion of the
+     * writing of the transport (onWriteCompleted of its callback).
+     */
+    private void transmit(final int stream) {
+        scheduler.schedule(OperationScheduler.FRAME, stream, new OperationScheduler.Operation() {
+            @Override
+            public int start() {
+                synchronized (lock) {
+                    BluetoothMessage frame = stream == Transport.MESSAGE ? messages.peekNext(getMessageSendWindowSize()) : data.peekNext(dataWindowSize);
+                    if (frame == null) {
+                        if (stream == Transport.MESSAGE) {
+                            onSubMessageTransmitted();
+                        } else {
+                            onSubDataTransmitted();
+                        }
+                        return OperationScheduler.COMPLETED;
+                    }
+                    if (transport.isConnected() && transport.write(stream, getFrame(frame))) {
+                        if (stream == Transport.MESSAGE) {
+                            onSubMessageSent(frame);
+                        } else {
+                            onSubDataSent(frame);
+                        }
+                        return OperationScheduler.STARTED;
+                    }
+                    return OperationScheduler.RETRY;
+                }
+            }
+        });
+    }
+
+    /**
+     * Called by the operation of transmit when the transmission of subMessage is started, from now on it waits for its acknowledgement.
+     */
+    protected void onSubMessageSent(@NonNull BluetoothMessage subMessage) {
+        synchronized (lock) {
+            messages.onSent(subMessage, timerWheel.now());
+            if (messages.hasInFlight() && !messageTimer.isScheduled()) {
+                startMessageTimer();
+            }
+        }
+    }
+
+    protected void onSubDataSent(@NonNull BluetoothMessage subData) {
+        synchronized (lock) {
+            data.onSent(subData, timerWheel.now());
+            if (data.hasInFlight() && !dataTimer.isScheduled()) {
+                startDataTimer();
+            }
+        }
+    }
+
+    /**
+     * Called when the transmission of the last sub message sent is completed, so the next one can be sent without waiting for the acknowledgement.
+     */
+    public void onSubMessageTransmitted() {
+        synchronized (lock) {
+            messageTransmitting = false;
+            writeSubMessage();
+        }
+    }
+
+    public void onSubDataTransmitted() {
+        synchronized (lock) {
+            dataTransmitting = false;
+            writeSubData();
+        }
+    }
+
+    /**
+     * @param acknowledgement header received as confirmation, it confirms all the sub messages of its message up to its sequence number
+     */
+    public void onSubMessageWriteSuccess(@NonNull byte[] acknowledgement) {
+        ArrayList<MessageCallback> callbacks;
+        synchronized (lock) {
+            long roundTripTime = messages.acknowledge(BluetoothMessage.readId(acknowledgement), BluetoothMessage.readSequenceNumber(acknowledgement), timerWheel.now());
+            // if nothing is confirmed it is only a repetition of a previous confirmation
+            if (roundTripTime < 0) {
+                return;
+            }
+            resetMessageTimer();
+            if (roundTripTime > 0) {
+                onRoundTripTimeMeasured(roundTripTime);
+            }
+            callbacks = pollCompleted(messages);
+            if (messages.hasInFlight()) {
+                startMessageTimer();
+            }
+            writeNextMessage();
+        }
+        // onMessageSent is called last, because it sends subsequent messages
+        for (MessageCallback callback : callbacks) {
+            callback.onMessageSent();
+        }
+    }
+
+    /**
+     * Called when a sub message is lost (failed transmission or timeout), all the sub messages not yet acknowledged are sent again.
+     */
+    public void onSubMessageWriteFailed() {
+        synchronized (lock) {
+            if (messages.hasInFlight()) {
+                messages.rewind();
+                retransmissionCount++;
+            }
+            resetMessageTimer();
+            messageTransmitting = false;
+            writeSubMessage();
+        }
+    }
+
+    public void onSubDataWriteSuccess(@NonNull byte[] acknowledgement) {
+        ArrayList<MessageCallback> callbacks;
+        synchronized (lock) {
+            long roundTripTime = data.acknowledge(BluetoothMessage.readId(acknowledgement), BluetoothMessage.readSequenceNumber(acknowledgement), timerWheel.now());
+            // if nothing is confirmed it is only a repetition of a previous confirmation
+            if (roundTripTime < 0) {
+                return;
+            }
+            resetDataTimer();
+            if (roundTripTime > 0) {
+                onRoundTripTimeMeasured(roundTripTime);
+            }
+            callbacks = pollCompleted(data);
+            if (data.hasInFlight()) {
+                startDataTimer();
+            }
+            writeNextData();
+        }
+        for (MessageCallback callback : callbacks) {
+            callback.onMessageSent();
+        }
+    }
+
+    public void onSubDataWriteFailed() {
+        synchronized (lock) {
+            if (data.hasInFlight()) {
+                data.rewind();
+                retransmissionCount++;
+            }
+            resetDataTimer();
+            dataTransmitting = false;
+            writeSubData();
+        }
+    }
+
+    private static ArrayList<MessageCallback> pollCompleted(SendQueue queue) {
+        ArrayList<MessageCallback> callbacks = new ArrayList<>();
+        SendQueue.Entry completed;
+        while ((completed = queue.pollCompleted()) != null) {
+            if (completed.getCallback() != null) {
+                callbacks.add(completed.getCallback());
+            }
+        }
+        return callbacks;
+    }
+
+    /**
+     * Adds a received sub message to the message it belongs to. Sub messages can arrive out of order, but the returned acknowledgement
+     * confirms only the sub messages received in order (the sender sends again all the sub messages after a lost one).
+     * When the message is completed it is passed to onMessageReceived.
+     *
+     * @return the acknowledgement to send back, or null if there is nothing to confirm yet
+     */
+    @Nullable
+    public byte[] receiveSubMessage(@NonNull BluetoothMessage subMessage) {
+        return receive(Transport.MESSAGE, receivingMessages, receivedMessages, subMessage);
+    }
+
+    @Nullable
+    public byte[] receiveSubData(@NonNull BluetoothMessage subData) {
+        return receive(Transport.DATA, receivingData, receivedData, subData);
+    }
+
+    @Nullable
+    private byte[] receive(int stream, ReassemblyTable receiving, ReceivedWindow received, BluetoothMessage subMessage) {
+        synchronized (lock) {
+            if (subMessage.getVersion() > version) {
+                // the peer understands binary headers, so the messages started from now on use them too
+                version = subMessage.getVersion();
+            }
+        }
+        byte[] receivedAcknowledgement = received.getAcknowledgement(subMessage.getId().intValue());
+        if (receivedAcknowledgement != null) {
+            // repetition of a sub message of a message already received, the acknowledgement of the last sub message confirms all of them
+            return receivedAcknowledgement;
+        }
+        ReassemblyBuffer buffer = receiving.get(subMessage, timerWheel.now());
+        buffer.add(subMessage);
+        BluetoothMessage acknowledgement = buffer.getAcknowledgement();
+        byte[] acknowledgementData = acknowledgement != null ? acknowledgement.getAcknowledgementData() : null;
+        if (buffer.isCompleted()) {
+            receiving.remove(buffer.getId());
+            if (acknowledgementData != null) {
+                received.add(buffer.getId(), acknowledgementData);
+            }
+            String header = buffer.getHeader();
+            byte[] data = buffer.getData();
+            if (header != null && data != null) {
+                onMessageReceived(stream, header, data);
+            }
+        }
+        return acknowledgementData;
+    }
+
+    /**
+     * Called when a message (or a data if stream is Transport.DATA) is completely received.
+     */
+    protected abstract void onMessageReceived(int stream, @NonNull String header, @NonNull byte[] data);
+
+    /**
+     * Confirms the sub data received (acknowledgement is the one returned by receiveSubData) every BULK_ACKNOWLEDGEMENT_INTERVAL sub data,
+     * so a burst of sub data costs a single writing of the acknowledgement. The last sub data of a data, a repetition or a gap and the
+     * legacy sub data (whose sender waits for each acknowledgement) are confirmed immediately, the others when no sub data arrives for
+     * ACKNOWLEDGEMENT_DELAY (for example because the send window of the sender is smaller than the burst).
+     * <br /><br />
+     * The sub data of different data are interleaved in bursts of BULK_ACKNOWLEDGEMENT_INTERVAL, so each burst restarts the count and the
+     * delayed acknowledgement of the previous burst is written at once.
+     */
+    public void acknowledgeSubData(@NonNull BluetoothMessage subData, @NonNull byte[] acknowledgement) {
+        boolean urgent = subData.getVersion() == BluetoothMessage.LEGACY_VERSION || subData.getType() == BluetoothMessage.FINAL
+                || BluetoothMessage.readSequenceNumber(acknowledgement) != subData.getSequenceNumber().intValue();
+        byte[] previousAcknowledgement = null;
+        synchronized (lock) {
+            int id = subData.getId().intValue();
+            if (id != lastSubDataId) {
+                lastSubDataId = id;
+                unacknowledgedSubData = 0;
+                previousAcknowledgement = delayedAcknowledgement;
+            }
+            unacknowledgedSubData++;
+            if (urgent || unacknowledgedSubData >= BULK_ACKNOWLEDGEMENT_INTERVAL) {
+                unacknowledgedSubData = 0;
+                delayedAcknowledgement = null;
+                timerWheel.cancel(acknowledgementTimer);
+            } else {
+                delayedAcknowledgement = acknowledgement;
+                acknowledgement = null;
+                // the delay restarts with each sub data, so the acknowledgement is written when the sender stops (its window is full)
+                timerWheel.schedule(acknowledgementTimer, ACKNOWLEDGEMENT_DELAY);
+            }
+        }
+        if (previousAcknowledgement != null) {
+            scheduleAcknowledgement(Transport.DATA, previousAcknowledgement);
+        }
+        if (acknowledgement != null) {
+            scheduleAcknowledgement(Transport.DATA, acknowledgement);
+        }
+    }
+
+    private void onAcknowledgementDelayExpired() {
+        byte[] acknowledgement;
+        synchronized (lock) {
+            acknowledgement = delayedAcknowledgement;
+            delayedAcknowledgement = null;
+            unacknowledgedSubData = 0;
+        }
+        if (acknowledgement != null) {
+            scheduleAcknowledgement(Transport.DATA, acknowledgement);
+        }
+    }
+
+    /**
+     * Schedules the writing of acknowledgement on stream, if a previous acknowledgement of the same message is still waiting it is replaced
+     * (the acknowledgements are cumulative), so the sub messages received while the transport is busy are confirmed with a single writing.
+     */
+    public void scheduleAcknowledgement(final int stream, @NonNull byte[] acknowledgement) {
+        if (!setPendingAcknowledgement(stream, acknowledgement)) {
+            return;
+        }
+        scheduler.schedule(OperationScheduler.ACKNOWLEDGEMENT, stream, new OperationScheduler.Operation() {
+            @Override
+            public int start() {
+                byte[] acknowledgement = takePendingAcknowledgement(stream);
+                if (acknowledgement != null && transport.writeAcknowledgement(stream, acknowledgement)) {
+                    return OperationScheduler.STARTED;
+                }
+                // acknowledgements are cumulative, so a lost one is replaced by the next (or by the retransmission of the sender)
+                return OperationScheduler.COMPLETED;
+            }
+        });
+    }
+
+    /**
+     * @return true if there wasn't already an acknowledgement of the same message waiting to be written on stream
+     * (so a writing must be scheduled), otherwise the waiting one is replaced
+     */
+    private boolean setPendingAcknowledgement(int stream, @NonNull byte[] acknowledgement) {
+        synchronized (lock) {
+            ArrayList<byte[]> acknowledgements = pendingAcknowledgements.get(stream);
+            if (acknowledgements == null) {
+                acknowledgements = new ArrayList<>();
+                pendingAcknowledgements.put(stream, acknowledgements);
+            }
+            int id = BluetoothMessage.readId(acknowledgement);
+            for (int i = 0; i < acknowledgements.size(); i++) {
+                if (BluetoothMessage.readId(acknowledgements.get(i)) == id) {
+                    acknowledgements.set(i, acknowledgement);
+                    return false;
+                }
+            }
+            acknowledgements.add(acknowledgement);
+            return true;
+        }
+    }
+
+    /**
+     * @return the oldest acknowledgement waiting to be written on stream, each scheduled writing takes one
+     */
+    @Nullable
+    private byte[] takePendingAcknowledgement(int stream) {
+        synchronized (lock) {
+            ArrayList<byte[]> acknowledgements = pendingAcknowledgements.get(stream);
+            if (acknowledgements == null || acknowledgements.isEmpty()) {
+                return null;
+            }
+            return acknowledgements.remove(0);
+        }
+    }
+
+    @NonNull
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * @return the last sub data whose transmission is started, it is the one requested by the reading of the client
+     */
+    @Nullable
+    public BluetoothMessage getTransmittingSubData() {
+        synchronized (lock) {
+            return data.peekLastSent();
+        }
+    }
+
+    /**
+     * @return the version of the header of the sub messages sent to the peer (BluetoothMessage.VERSION or LEGACY_VERSION)
+     */
+    public int getVersion() {
+        synchronized (lock) {
+            return version;
+        }
+    }
+
+    /**
+     * Sets the version of the header of the messages that will be sent to the peer, the ones already being sent keep their sub messages.
+     * Use LEGACY_VERSION for peers that could be of older versions of the library, the version becomes VERSION when the peer
+     * sends a binary sub message.
+     */
+    public void setVersion(int version) {
+        synchronized (lock) {
+            this.version = version;
+        }
+    }
+
+    public void setSendWindowSize(int sendWindowSize) {
+        synchronized (lock) {
+            this.sendWindowSize = sendWindowSize;
+        }
+    }
+
+    /**
+     * @return the number of sub messages that can wait for their acknowledgement at the same time, the transports that confirm each frame
+     * with the completion of its writing return 1
+     */
+    protected int getMessageSendWindowSize() {
+        synchronized (lock) {
+            return sendWindowSize;
+        }
+    }
+
+    /**
+     * @return the number of sub data that can wait for their acknowledgement at the same time, 1 with LEGACY_VERSION: the peers of older
+     * versions ignore the frame and read the sub data being transmitted (getTransmittingSubData), so the reading is valid only if no
+     * other sub data is sent before its acknowledgement
+     */
+    protected int getDataSendWindowSize() {
+        synchronized (lock) {
+            if (version == BluetoothMessage.LEGACY_VERSION) {
+                return 1;
+            }
+            return sendWindowSize;
+        }
+    }
+
+    /**
+     * @return the complete data of subMessage, in an array of the frame pool reused by the following frames with the same length
+     * (the transports copy the frame when the writing starts and only one operation at a time is running)
+     */
+    private byte[] getFrame(@NonNull BluetoothMessage subMessage) {
+        return subMessage.getCompleteData(framePool.obtain(subMessage.getCompleteDataLength()));
+    }
+
+    /**
+     * @return the number of sub messages and sub data written to the peer
+     */
+    public long getWrittenFrameCount() {
+        synchronized (lock) {
+            return framePool.getRequests();
+        }
+    }
+
+    /**
+     * @return the number of arrays allocated for the sub messages and sub data written to the peer
+     */
+    public long getAllocatedFrameCount() {
+        synchronized (lock) {
+            return framePool.getAllocations();
+        }
+    }
+
+    /**
+     * @return the MTU of the connection with the peer, notified by the transport (the messages that are already being sent keep their sub messages)
+     */
+    public int getMtu() {
+        return transport.getMtu();
+    }
+
+    /**
+     * @return the length of the sub messages (header included), the biggest value that fits in a single ATT packet
+     */
+    public int getSubMessagesLength() {
+        return transport.getMaxFrameLength();
+    }
+
+    /**
+     * @return the number of messages and data not yet sent to this peer, including the ones being sent
+     */
+    public int getSendQueueLength() {
+        synchronized (lock) {
+            return messages.size() + data.size();
+        }
+    }
+
+    /**
+     * @return the time (in milliseconds) since the oldest message or data not yet sent to this peer was queued, or 0 if there is none
+     */
+    public long getSendQueueAge() {
+        synchronized (lock) {
+            long oldestQueueTime = messages.getOldestQueueTime();
+            long oldestDataQueueTime = data.getOldestQueueTime();
+            if (oldestQueueTime == -1 || (oldestDataQueueTime != -1 && oldestDataQueueTime < oldestQueueTime)) {
+                oldestQueueTime = oldestDataQueueTime;
+            }
+            if (oldestQueueTime == -1) {
+                return 0;
+            }
+            return timerWheel.now() - oldestQueueTime;
+        }
+    }
+
+    /**
+     * @return the timeout after which the sub messages not yet acknowledged are sent again, it is computed from the round trip
+     * times of the acknowledgements and doubled for each timeout expired in a row
+     */
+    public long getRetransmissionTimeout() {
+        synchronized (lock) {
+            return roundTripEstimator.getRetransmissionTimeout();
+        }
+    }
+
+    /**
+     * @return the smoothed round trip time (in milliseconds) of the acknowledgements, or -1 if it is not yet measured
+     */
+    public long getSmoothedRoundTripTime() {
+        synchronized (lock) {
+            return roundTripEstimator.getSmoothedRoundTripTime();
+        }
+    }
+
+    /**
+     * @return the mean deviation (in milliseconds) of the round trip time of the acknowledgements, or -1 if it is not yet measured
+     */
+    public long getRoundTripTimeVariation() {
+        synchronized (lock) {
+            return roundTripEstimator.getRoundTripTimeVariation();
+        }
+    }
+
+    /**
+     * @return the number of times that the sub messages and sub data not yet acknowledged have been sent again
+     */
+    public long getRetransmissionCount() {
+        synchronized (lock) {
+            return retransmissionCount;
+        }
+    }
+
+    private void onRoundTripTimeMeasured(long roundTripTime) {
+        roundTripEstimator.onRoundTripTimeMeasured(roundTripTime);
+    }
+
+    private void onSubMessageTimeout() {
+        synchronized (lock) {
+            roundTripEstimator.onTimeout();
+            onSubMessageWriteFailed();
+        }
+    }
+
+    private void onSubDataTimeout() {
+        synchronized (lock) {
+            roundTripEstimator.onTimeout();
+            onSubDataWriteFailed();
+        }
+    }
+
+    /**
+     * Called when the transport loses the connection: the frames in flight will never be acknowledged, so they are sent again
+     * (without waiting for their timeout) as soon as the transport is connected again.
+     */
+    private void onConnectionLost() {
+        synchronized (lock) {
+            messages.rewind();
+            data.rewind();
+            resetMessageTimer();
+            resetDataTimer();
+            resetDelayedAcknowledgement();
+        }
+    }
+
+    /**
+     * Removes the messages being sent and all the queued messages, which will no longer be sent, and notifies their callbacks.
+     */
+    protected void cancelMessages() {
+        // onMessageSent must be the last operation performed by this method since the latter sends subsequent messages
+        notifyMessagesSent(clearMessages());
+    }
+
+    /**
+     * Removes the messages being sent and all the queued messages, like cancelMessages, without notifying their callbacks.
+     *
+     * @return the callbacks of the removed messages, they must be notified with notifyMessagesSent outside the lock of the channel
+     */
+    @NonNull
+    protected ArrayList<MessageCallback> clearMessages() {
+        synchronized (lock) {
+            ArrayList<MessageCallback> callbacks = messages.clear();
+            callbacks.addAll(data.clear());
+            return callbacks;
+        }
+    }
+
+    protected static void notifyMessagesSent(@NonNull ArrayList<MessageCallback> callbacks) {
+        for (MessageCallback callback : callbacks) {
+            callback.onMessageSent();
+        }
+    }
+
+    public void destroy() {
+        synchronized (lock) {
+            resetMessageTimer();
+            resetDataTimer();
+            scheduler.cancel();
+            messages.clear();
+            data.clear();
+            receivingMessages.clear();
+            receivingData.clear();
+            pendingAcknowledgements.clear();
+            resetDelayedAcknowledgement();
+            framePool.clear();
+            messageTransmitting = false;
+            dataTransmitting = false;
+        }
+    }
+
+    private void startMessageTimer() {
+        synchronized (lock) {
+            timerWheel.schedule(messageTimer, getRetransmissionTimeout());
+        }
+    }
+
+    private void resetMessageTimer() {
+        synchronized (lock) {
+            timerWheel.cancel(messageTimer);
+        }
+    }
+
+    private void startDataTimer() {
+        synchronized (lock) {
+            timerWheel.schedule(dataTimer, getRetransmissionTimeout());
+        }
+    }
+
+    private void resetDataTimer() {
+        synchronized (lock) {
+            timerWheel.cancel(dataTimer);
+        }
+    }
+
+    private void resetDelayedAcknowledgement() {
+        synchronized (lock) {
+            timerWheel.cancel(acknowledgementTimer);
+            delayedAcknowledgement = null;
+            unacknowledgedSubData = 0;
+            lastSubDataId = -1;
+        }
+    }
+
+    /**
+     * Receives the events of the transport.
+     */
+    private class TransportCallback extends Transport.Callback {
+        @Override
+        public void onFrameReceived(int stream, @NonNull byte[] frame) {
+            BluetoothMessage subMessage = BluetoothMessage.createFromBytes(frame);
+            if (subMessage != null) {
+                if (stream == Transport.MESSAGE) {
+                    byte[] acknowledgement = receiveSubMessage(subMessage);
+                    if (acknowledgement != null) {
+                        scheduleAcknowledgement(stream, acknowledgement);
+                    }
+                } else {
+                    byte[] acknowledgement = receiveSubData(subMessage);
+                    if (acknowledgement != null) {
+                        // the sub data are confirmed in bursts
+                        acknowledgeSubData(subMessage, acknowledgement);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void onAcknowledgementReceived(int stream, @NonNull byte[] acknowledgement) {
+            if (stream == Transport.MESSAGE) {
+                onSubMessageWriteSuccess(acknowledgement);
+            } else {
+                onSubDataWriteSuccess(acknowledgement);
+            }
+        }
+
+        @Override
+        public void onWriteCompleted(int stream, boolean success) {
+            if (stream == Transport.MESSAGE) {
+                if (success) {
+                    // the next sub message can be sent while waiting for the acknowledgement of this one
+                    onSubMessageTransmitted();
+                } else {
+                    onSubMessageWriteFailed();
+                }
+            } else {
+                if (success) {
+                    onSubDataTransmitted();
+                } else {
+                    onSubDataWriteFailed();
+                }
+            }
+            scheduler.onOperationCompleted(OperationScheduler.FRAME, stream);
+        }
+
+        @Override
+        public void onAcknowledgementWriteCompleted(int stream) {
+            scheduler.onOperationCompleted(OperationScheduler.ACKNOWLEDGEMENT, stream);
+        }
+
+        @Override
+        public void onMtuChanged(int mtu) {
+            // the frames of the new length can't reuse the arrays of the old one
+            synchronized (lock) {
+                framePool.clear();
+            }
+        }
+
+        @Override
+        public void onConnectionStateChanged(boolean connected) {
+            if (connected) {
+                // the frames rewound by the disconnection are sent again
+                writeSubMessage();
+                writeSubData();
+            } else {
+                onConnectionLost();
+            }
+        }
+    }
+
+    public static abstract class MessageCallback {
+        public abstract void onMessageSent();
+    }
+
+    /**
+     * Notifies callback only after onMessageSent has been called count times (once by each of the channels that send the same message).
+     */
+    public static class MultipleMessageCallback extends MessageCallback {
+        private final AtomicInteger remaining;
+        private final MessageCallback callback;
+
+        public MultipleMessageCallback(int count, @NonNull MessageCallback callback) {
+            this.remaining = new AtomicInteger(count);
+            this.callback = callback;
+        }
+
+        @Override
+        public void onMessageSent() {
+            if (remaining.decrementAndGet() == 0) {
+                callback.onMessageSent();
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ingreatsol.bluetoothcommunicator;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Reassembles the sub messages of a received message directly into its data.
+ * <br /><br />
+ * The first sub message starts with the header of the Message and, if it has a length hint, the data is allocated
+ * with its final size (up to MAX_INITIAL_CAPACITY, after that it doubles until it reaches the hint), so the completed data
+ * is handed over (getData) without copying it again. Every other sub message is written at its offset (all the sub messages
+ * after the first have the same length, except the last), so they can arrive out of order. Without the length hint (legacy
+ * sub messages) or if the data exceeds it, the data grows by doubling its capacity.
+ * <br /><br />
+ * The hint and the sequence numbers come from the peer, so they don't decide alone how much is allocated: a sub message
+ * further than MAX_SEQUENCE_NUMBER_DISTANCE from the first one missing is refused (the sender never has that many in flight).
+ */
+class ReassemblyBuffer {
+    private static final byte[] EMPTY = new byte[0];
+    // bigger hints are not trusted, it is the length of a message with all the possible sub messages
+    private static final int MAX_LENGTH_HINT = (BluetoothMessage.SequenceNumber.MAX_VALUE + 1) * BluetoothMessage.MAX_LENGTH;
+    // the allocation made only because of the hint, the rest is allocated when the data arrives
+    public static final int MAX_INITIAL_CAPACITY = 64 * 1024;
+    public static final int MAX_SEQUENCE_NUMBER_DISTANCE = 64;
+    private final int id;
+    private final int version;
+    @Nullable
+    private String header;
+    private byte[] data = EMPTY;
+    private int length = 0;
+    private int lengthHint = -1;    // -1 if missing or exceeded by the data
+    private int firstSubDataLength = -1;    // data in the first sub message (without the header of the Message)
+    private int subDataLength = -1;     // data in each of the following sub messages except the last
+    private int finalSequenceNumber = -1;
+    private int nextSequenceNumber = 0;     // the lowest sequence number not yet received
+    private final BitSet received = new BitSet();
+    private final ArrayList<BluetoothMessage> unplaced = new ArrayList<>();     // received before their offset is known
+    private long updateTime = 0;
+
+    public ReassemblyBuffer(@NonNull BluetoothMessage subMessage) {
+        this.id = subMessage.getId().intValue();
+        this.version = subMessage.getVersion();
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public long getUpdateTime() {
+        return updateTime;
+    }
+
+    public void setUpdateTime(long updateTime) {
+        this.updateTime = updateTime;
+    }
+
+    /**
+     * @return true if subMessage is accepted, false if it is a repetition or it is not valid
+     */
+    public boolean add(@NonNull BluetoothMessage subMessage) {
+        int sequenceNumber = subMessage.getSequenceNumber().intValue();
+        if (received.get(sequenceNumber) || (finalSequenceNumber != -1 && sequenceNumber > finalSequenceNumber)
+                || sequenceNumber - nextSequenceNumber > MAX_SEQUENCE_NUMBER_DISTANCE) {
+            return false;
+        }
+        int subMessageDataLength = subMessage.getDataLength();
+        if (sequenceNumber == 0) {
+            int headerLength = getUtf8Length(subMessage.getDataByte(0));
+            if (subMessageDataLength < headerLength) {
+                return false;
+            }
+            byte[] headerBytes = new byte[headerLength];
+            subMessage.copyData(0, headerBytes, 0, headerLength);
+            header = new String(headerBytes, StandardCharsets.UTF_8);
+            firstSubDataLength = subMessageDataLength - headerLength;
+            int lengthHint = subMessage.getLengthHint();
+            if (lengthHint >= 0 && lengthHint <= MAX_LENGTH_HINT) {
+                this.lengthHint = lengthHint;
+                ensureCapacity(Math.min(lengthHint, MAX_INITIAL_CAPACITY));
+            }
+            write(0, subMessage, headerLength);
+        } else if (subMessage.getType() == BluetoothMessage.NON_FINAL) {
+            subDataLength = subMessageDataLength;
+        }
+        received.set(sequenceNumber);
+        if (subMessage.getType() == BluetoothMessage.FINAL) {
+            finalSequenceNumber = sequenceNumber;
+        }
+        if (sequenceNumber != 0) {
+            unplaced.add(subMessage);
+        }
+        placeSubMessages();
+        while (received.get(nextSequenceNumber)) {
+            nextSequenceNumber++;
+        }
+        return true;
+    }
+
+    public boolean isCompleted() {
+        return finalSequenceNumber != -1 && nextSequenceNumber > finalSequenceNumber && unplaced.isEmpty();
+    }
+
+    /**
+     * @return a sub message without data whose header confirms all the sub messages received in order, or null if the first one is missing
+     */
+    @Nullable
+    public BluetoothMessage getAcknowledgement() {
+        if (nextSequenceNumber == 0) {
+            return null;
+        }
+        int type = isCompleted() ? BluetoothMessage.FINAL : BluetoothMessage.NON_FINAL;
+        BluetoothMessage acknowledgement = new BluetoothMessage(
+                new BluetoothMessage.SequenceNumber(id, BluetoothMessage.ID_LENGTH),
+                new BluetoothMessage.SequenceNumber(nextSequenceNumber - 1, BluetoothMessage.SEQUENCE_NUMBER_LENGTH),
+                type, EMPTY);
+        acknowledgement.setVersion(version);
+        return acknowledgement;
+    }
+
+    /**
+     * @return the header of the Message, or null if the first sub message is missing
+     */
+    @Nullable
+    public String getHeader() {
+        return header;
+    }
+
+    /**
+     * @return the length of the array that contains the data received so far
+     */
+    public int getCapacity() {
+        return data.length;
+    }
+
+    /**
+     * @return the completed data (without the header of the Message), it is the array of this buffer (copied only if the length hint
+     * was missing or wrong), or null if the message is not completed
+     */
+    @Nullable
+    public byte[] getData() {
+        if (!isCompleted()) {
+            return null;
+        }
+        if (data.length != length) {
+            data = Arrays.copyOf(data, length);
+        }
+        return data;
+    }
+
+    private void placeSubMessages() {
+        for (int i = unplaced.size() - 1; i >= 0; i--) {
+            BluetoothMessage subMessage = unplaced.get(i);
+            int offset = getOffset(subMessage.getSequenceNumber().intValue());
+            if (offset != -1) {
+                write(offset, subMessage, 0);
+                unplaced.remove(i);
+            }
+        }
+    }
+
+    private int getOffset(int sequenceNumber) {
+        if (firstSubDataLength == -1) {
+            return -1;
+        }
+        if (sequenceNumber == 1) {
+            return firstSubDataLength;
+        }
+        if (subDataLength == -1) {
+            return -1;
+        }
+        return firstSubDataLength + (sequenceNumber - 1) * subDataLength;
+    }
+
+    private void write(int offset, @NonNull BluetoothMessage subMessage, int begin) {
+        int subDataLength = subMessage.getDataLength() - begin;
+        int end = offset + subDataLength;
+        ensureCapacity(end);
+        subMessage.copyData(begin, data, offset, subDataLength);
+        length = Math.max(length, end);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > data.length) {
+            if (capacity > lengthHint) {
+                // the hint was wrong (or missing), from now on the data grows only by doubling
+                lengthHint = -1;
+            }
+            int newCapacity = Math.max(capacity, data.length * 2);
+            if (lengthHint != -1) {
+                newCapacity = Math.min(newCapacity, lengthHint);
+            }
+            data = Arrays.copyOf(data, newCapacity);
+        }
+    }
+
+    private static int getUtf8Length(byte lead) {
+        if ((lead & 0xE0) == 0xC0) {
+            return 2;
+        }
+        if ((lead & 0xF0) == 0xE0) {
+            return 3;
+        }
+        if ((lead & 0xF8) == 0xF0) {
+            return 4;
+        }
+        return 1;
+    }
+}
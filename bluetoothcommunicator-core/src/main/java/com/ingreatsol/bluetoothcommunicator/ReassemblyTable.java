@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ingreatsol.bluetoothcommunicator;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Contains the ReassemblyBuffers of the messages that a ProtocolChannel is receiving, by id.
+ * <br /><br />
+ * The number of messages received at the same time is limited (when a new message exceeds the limit the buffer updated
+ * least recently is deleted) and the buffers not updated for longer than timeout are deleted, so the messages
+ * interrupted by a disconnection don't keep their memory.
+ */
+class ReassemblyTable {
+    public static final int DEFAULT_MAX_MESSAGES = 8;
+    public static final long DEFAULT_TIMEOUT = 60000;  // longer than the reconnection timeout, because an interrupted message is completed after a reconnection
+    private final int maxMessages;
+    private final long timeout;
+    private final HashMap<Integer, ReassemblyBuffer> buffers = new HashMap<>();
+
+    public ReassemblyTable(int maxMessages, long timeout) {
+        this.maxMessages = Math.max(maxMessages, 1);
+        this.timeout = timeout;
+    }
+
+    /**
+     * @return the buffer of the message of subMessage, a new one if it was not being received
+     */
+    @NonNull
+    public ReassemblyBuffer get(@NonNull BluetoothMessage subMessage, long time) {
+        int id = subMessage.getId().intValue();
+        ReassemblyBuffer buffer = buffers.get(id);
+        if (buffer == null) {
+            evict(time);
+            buffer = new ReassemblyBuffer(subMessage);
+            buffers.put(id, buffer);
+        }
+        buffer.setUpdateTime(time);
+        return buffer;
+    }
+
+    @Nullable
+    public ReassemblyBuffer remove(int id) {
+        return buffers.remove(id);
+    }
+
+    public int size() {
+        return buffers.size();
+    }
+
+    public void clear() {
+        buffers.clear();
+    }
+
+    private void evict(long time) {
+        ReassemblyBuffer oldest = null;
+        Iterator<ReassemblyBuffer> iterator = buffers.values().iterator();
+        while (iterator.hasNext()) {
+            ReassemblyBuffer buffer = iterator.next();
+            if (time - buffer.getUpdateTime() > timeout) {
+                iterator.remove();
+            } else if (oldest == null || buffer.getUpdateTime() < oldest.getUpdateTime()) {
+                oldest = buffer;
+            }
+        }
+        if (oldest != null && buffers.size() >= maxMessages) {
+            buffers.remove(oldest.getId());
+        }
+    }
+}
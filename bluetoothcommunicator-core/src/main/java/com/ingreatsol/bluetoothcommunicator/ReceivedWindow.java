@@ -0,0 +1,60 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ingreatsol.bluetoothcommunicator;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the ids of the last messages received completely, with the acknowledgement of their last sub message, so the repetitions
+ * of their sub messages (sent again because an acknowledgement was lost) are recognized and confirmed in constant time and memory.
+ * <br /><br />
+ * The ids of a sender are consecutive, so each id has its slot (id % size) and it replaces the id received size messages before.
+ * The size is a power of two, so the slots stay the same when the ids restart from 0.
+ */
+class ReceivedWindow {
+    public static final int DEFAULT_SIZE = 64;
+    private final int[] ids;
+    private final byte[][] acknowledgements;
+
+    public ReceivedWindow(int size) {
+        size = Integer.highestOneBit(Math.max(1, Math.min(size, BluetoothMessage.SequenceNumber.MAX_VALUE + 1)));
+        this.ids = new int[size];
+        this.acknowledgements = new byte[size][];
+        Arrays.fill(ids, -1);
+    }
+
+    public void add(int id, @NonNull byte[] acknowledgement) {
+        int slot = id & (ids.length - 1);
+        ids[slot] = id;
+        acknowledgements[slot] = acknowledgement;
+    }
+
+    /**
+     * @return the acknowledgement of the message with this id if it is one of the last received, null otherwise
+     */
+    @Nullable
+    public byte[] getAcknowledgement(int id) {
+        int slot = id & (ids.length - 1);
+        if (ids[slot] == id) {
+            return acknowledgements[slot];
+        }
+        return null;
+    }
+}
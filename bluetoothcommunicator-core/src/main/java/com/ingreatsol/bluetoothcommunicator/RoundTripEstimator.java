@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ingreatsol.bluetoothcommunicator;
+
+/**
+ * Computes the retransmission timeout of a ProtocolChannel from the round trip times of its acknowledgements, like TCP (RFC 6298).
+ * <br /><br />
+ * It keeps the smoothed round trip time and its mean deviation, the timeout is the smoothed round trip time plus four times
+ * the deviation, so it stays close to the round trip time on a stable link and grows quickly on a jittery one. Each timeout
+ * expired without acknowledgements doubles the retransmission timeout (exponential backoff) until a new round trip time
+ * is measured (the round trip times of retransmitted sub messages are ambiguous and are not measured, see SendWindow).
+ */
+class RoundTripEstimator {
+    private static final int MAX_BACKOFF = 6;
+    private final long initialTimeout;
+    private final long minTimeout;
+    private final long maxTimeout;
+    private final long granularity;
+    private long smoothedRoundTripTime = -1;
+    private long roundTripTimeVariation = -1;
+    private int backoff = 0;
+
+    /**
+     * @param initialTimeout timeout used until the first round trip time is measured
+     * @param granularity    resolution of the timer that runs the timeout, the minimum margin over the round trip time
+     */
+    public RoundTripEstimator(long initialTimeout, long minTimeout, long maxTimeout, long granularity) {
+        this.initialTimeout = initialTimeout;
+        this.minTimeout = minTimeout;
+        this.maxTimeout = maxTimeout;
+        this.granularity = granularity;
+    }
+
+    public void onRoundTripTimeMeasured(long roundTripTime) {
+        if (smoothedRoundTripTime < 0) {
+            smoothedRoundTripTime = roundTripTime;
+            roundTripTimeVariation = roundTripTime / 2;
+        } else {
+            roundTripTimeVariation = (3 * roundTripTimeVariation + Math.abs(smoothedRoundTripTime - roundTripTime)) / 4;
+            smoothedRoundTripTime = (7 * smoothedRoundTripTime + roundTripTime) / 8;
+        }
+        backoff = 0;
+    }
+
+    /**
+     * Called when the retransmission timeout expires without acknowledgements.
+     */
+    public void onTimeout() {
+        backoff = Math.min(backoff + 1, MAX_BACKOFF);
+    }
+
+    public long getRetransmissionTimeout() {
+        long timeout;
+        if (smoothedRoundTripTime < 0) {
+            timeout = initialTimeout;
+        } else {
+            timeout = smoothedRoundTripTime + Math.max(granularity, 4 * roundTripTimeVariation);
+        }
+        return Math.min(Math.max(timeout, minTimeout) << backoff, maxTimeout);
+    }
+
+    /**
+     * @return the smoothed round trip time in milliseconds, or -1 if it is not yet measured
+     */
+    public long getSmoothedRoundTripTime() {
+        return smoothedRoundTripTime;
+    }
+
+    /**
+     * @return the mean deviation of the round trip time in milliseconds, or -1 if it is not yet measured
+     */
+    public long getRoundTripTimeVariation() {
+        return roundTripTimeVariation;
+    }
+
+    public int getBackoff() {
+        return backoff;
+    }
+}
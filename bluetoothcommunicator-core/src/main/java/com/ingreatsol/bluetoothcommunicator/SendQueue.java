@@ -0,0 +1,358 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ingreatsol.bluetoothcommunicator;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Contains the messages that a ProtocolChannel is sending (as messages or as data) and the ones waiting to be sent.
+ * <br /><br />
+ * Several messages are sent at the same time, each one with its own SendWindow, and their sub messages are interleaved
+ * (burstLength sub messages of a message, then burstLength of the next one), so a short message doesn't wait for the end
+ * of a long one. The receiver tells them apart by their id, and the acknowledgements are routed to the window of their id.
+ * The windows share the limit of sub messages in flight, so the interleaving doesn't load the link more than a single message.
+ * <br /><br />
+ * Each message has a priority (PRIORITY_CONTROL, PRIORITY_INTERACTIVE or PRIORITY_BULK): the queued messages are started
+ * in order of priority, up to maxActiveMessages for each priority (counting also the more urgent ones), and at each sub message
+ * the more urgent messages go ahead of the others. Each priority has a weight, the number of bursts that it can send in a round
+ * while the less urgent ones wait, so a bulk transfer goes on (one burst per round) even if more urgent messages never stop.
+ */
+class SendQueue {
+    // priorities, from the most urgent
+    public static final int PRIORITY_CONTROL = 0;
+    public static final int PRIORITY_INTERACTIVE = 1;
+    public static final int PRIORITY_BULK = 2;
+    public static final int DEFAULT_MAX_ACTIVE_MESSAGES = 4;
+    // the receiver reassembles only ReassemblyTable.DEFAULT_MAX_MESSAGES at the same time
+    private static final int MAX_ACTIVE_MESSAGES = ReassemblyTable.DEFAULT_MAX_MESSAGES;
+    private static final int[] WEIGHTS = {8, 4, 1};     // by priority
+    private final int maxActiveMessages;
+    private final int burstLength;
+    private BluetoothMessage.SequenceNumber nextId = new BluetoothMessage.SequenceNumber(BluetoothMessage.ID_LENGTH);
+    // by priority
+    private final List<ArrayDeque<Entry>> queued = new ArrayList<>(WEIGHTS.length);
+    private final List<ArrayList<Entry>> active = new ArrayList<>(WEIGHTS.length);
+    private final int[] current;    // index in active of the message whose burst is being sent
+    private final int[] burst;      // sub messages sent in the current burst
+    private final int[] credits;    // sub messages that can still be sent in this round
+    private int activeCount = 0;
+    private int queuedCount = 0;
+    @Nullable
+    private SendWindow lastSentWindow;
+
+    public SendQueue(int maxActiveMessages, int burstLength) {
+        this.maxActiveMessages = Math.min(Math.max(maxActiveMessages, 1), MAX_ACTIVE_MESSAGES);
+        this.burstLength = Math.max(burstLength, 1);
+        this.current = new int[WEIGHTS.length];
+        this.burst = new int[WEIGHTS.length];
+        this.credits = new int[WEIGHTS.length];
+        for (int priority = 0; priority < WEIGHTS.length; priority++) {
+            queued.add(new ArrayDeque<>());
+            active.add(new ArrayList<>());
+        }
+        refillCredits();
+    }
+
+    /**
+     * @param header   header of the message, it is sent before data
+     * @param priority PRIORITY_CONTROL, PRIORITY_INTERACTIVE or PRIORITY_BULK
+     */
+    public void add(@NonNull byte[] header, @NonNull byte[] data, int priority, @Nullable ProtocolChannel.MessageCallback callback, long queueTime) {
+        Entry entry = new Entry(header, data, priority, callback, queueTime);
+        queued.get(entry.priority).addLast(entry);
+        queuedCount++;
+    }
+
+    /**
+     * Starts sending the most urgent queued message, if there is room for it.
+     *
+     * @param version the version of the header of its sub messages (BluetoothMessage.VERSION or LEGACY_VERSION)
+     * @return the message started, or null if none is started
+     */
+    @Nullable
+    public Entry activateNext(int subMessagesLength, int windowSize, int version) {
+        if (activeCount >= MAX_ACTIVE_MESSAGES) {
+            return null;
+        }
+        int moreUrgentActive = 0;   // active messages with the same priority or a more urgent one
+        for (int priority = 0; priority < WEIGHTS.length; priority++) {
+            moreUrgentActive += active.get(priority).size();
+            if (!queued.get(priority).isEmpty() && moreUrgentActive < maxActiveMessages) {
+                Entry entry = queued.get(priority).pollFirst();
+                queuedCount--;
+                // division from the message in the various parts
+                entry.window = new SendWindow(BluetoothMessage.split(entry.header, entry.data, nextId, subMessagesLength, version), windowSize);
+                nextId = nextId.next();   // after the maximum id it restarts from 0
+                active.get(priority).add(entry);
+                activeCount++;
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the next sub message to send, or null if all the sub messages are sent or windowSize sub messages are in flight
+     */
+    @Nullable
+    public BluetoothMessage peekNext(int windowSize) {
+        if (activeCount == 0 || getInFlightCount() >= windowSize) {
+            return null;
+        }
+        // the most urgent priority that has credits left, when none has credits a new round starts
+        for (int round = 0; round < 2; round++) {
+            for (int priority = 0; priority < WEIGHTS.length; priority++) {
+                if (credits[priority] > 0) {
+                    BluetoothMessage subMessage = peekNextOf(priority);
+                    if (subMessage != null) {
+                        return subMessage;
+                    }
+                }
+            }
+            refillCredits();
+        }
+        return null;
+    }
+
+    public void onSent(@NonNull BluetoothMessage subMessage, long time) {
+        Entry entry = getActive(subMessage.getId().intValue());
+        if (entry != null) {
+            entry.window.onSent(subMessage, time);
+            lastSentWindow = entry.window;
+            credits[entry.priority]--;
+            burst[entry.priority]++;
+            if (burst[entry.priority] >= burstLength) {
+                // the next burst is of the next message
+                current[entry.priority] = (current[entry.priority] + 1) % active.get(entry.priority).size();
+                burst[entry.priority] = 0;
+            }
+        }
+    }
+
+    /**
+     * @return the last sub message sent and not yet acknowledged
+     */
+    @Nullable
+    public BluetoothMessage peekLastSent() {
+        return lastSentWindow != null ? lastSentWindow.peekLastSent() : null;
+    }
+
+    /**
+     * Removes all the sub messages of the message id up to sequenceNumber.
+     *
+     * @return the round trip time like SendWindow.acknowledge
+     */
+    public long acknowledge(int id, int sequenceNumber, long time) {
+        Entry entry = getActive(id);
+        return entry != null ? entry.window.acknowledge(id, sequenceNumber, time) : -1;
+    }
+
+    /**
+     * Removes the first message whose sub messages are all acknowledged.
+     *
+     * @return the removed message, or null if none is completed
+     */
+    @Nullable
+    public Entry pollCompleted() {
+        for (int priority = 0; priority < WEIGHTS.length; priority++) {
+            for (int i = 0; i < active.get(priority).size(); i++) {
+                Entry entry = active.get(priority).get(i);
+                if (entry.window.isCompleted()) {
+                    remove(priority, i);
+                    return entry;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * All the sub messages in flight will be sent again.
+     */
+    public void rewind() {
+        for (ArrayList<Entry> entries : active) {
+            for (Entry entry : entries) {
+                entry.window.rewind();
+            }
+        }
+    }
+
+    public boolean hasInFlight() {
+        for (ArrayList<Entry> entries : active) {
+            for (Entry entry : entries) {
+                if (entry.window.hasInFlight()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public int getInFlightCount() {
+        int count = 0;
+        for (ArrayList<Entry> entries : active) {
+            for (Entry entry : entries) {
+                count += entry.window.getInFlightCount();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of messages being sent and queued
+     */
+    public int size() {
+        return activeCount + queuedCount;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return the time when the oldest message being sent or queued was added, or -1 if there are none
+     */
+    public long getOldestQueueTime() {
+        long oldestQueueTime = Long.MAX_VALUE;
+        for (int priority = 0; priority < WEIGHTS.length; priority++) {
+            for (Entry entry : active.get(priority)) {
+                oldestQueueTime = Math.min(oldestQueueTime, entry.queueTime);
+            }
+            if (!queued.get(priority).isEmpty()) {
+                oldestQueueTime = Math.min(oldestQueueTime, queued.get(priority).peekFirst().queueTime);
+            }
+        }
+        return oldestQueueTime != Long.MAX_VALUE ? oldestQueueTime : -1;
+    }
+
+    /**
+     * Removes all the messages, the ones being sent first.
+     *
+     * @return the callbacks of the removed messages
+     */
+    @NonNull
+    public ArrayList<ProtocolChannel.MessageCallback> clear() {
+        ArrayList<ProtocolChannel.MessageCallback> callbacks = new ArrayList<>();
+        for (ArrayList<Entry> entries : active) {
+            for (Entry entry : entries) {
+                if (entry.callback != null) {
+                    callbacks.add(entry.callback);
+                }
+            }
+            entries.clear();
+        }
+        for (ArrayDeque<Entry> entries : queued) {
+            for (Entry entry : entries) {
+                if (entry.callback != null) {
+                    callbacks.add(entry.callback);
+                }
+            }
+            entries.clear();
+        }
+        activeCount = 0;
+        queuedCount = 0;
+        Arrays.fill(current, 0);
+        Arrays.fill(burst, 0);
+        refillCredits();
+        lastSentWindow = null;
+        return callbacks;
+    }
+
+    @Nullable
+    private BluetoothMessage peekNextOf(int priority) {
+        ArrayList<Entry> entries = active.get(priority);
+        for (int i = 0; i < entries.size(); i++) {
+            int index = (current[priority] + i) % entries.size();
+            BluetoothMessage subMessage = entries.get(index).window.peekNext();
+            if (subMessage != null) {
+                if (index != current[priority]) {
+                    current[priority] = index;
+                    burst[priority] = 0;
+                }
+                return subMessage;
+            }
+        }
+        return null;
+    }
+
+    private void refillCredits() {
+        for (int priority = 0; priority < WEIGHTS.length; priority++) {
+            credits[priority] = WEIGHTS[priority] * burstLength;
+        }
+    }
+
+    @Nullable
+    private Entry getActive(int id) {
+        for (ArrayList<Entry> entries : active) {
+            for (Entry entry : entries) {
+                if (entry.window.getId() == id) {
+                    return entry;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void remove(int priority, int index) {
+        Entry entry = active.get(priority).remove(index);
+        activeCount--;
+        if (entry.window == lastSentWindow) {
+            lastSentWindow = null;
+        }
+        if (index < current[priority]) {
+            current[priority]--;
+        } else if (index == current[priority]) {
+            burst[priority] = 0;
+        }
+        if (current[priority] >= active.get(priority).size()) {
+            current[priority] = 0;
+        }
+    }
+
+    public static class Entry {
+        private final byte[] header;
+        private final byte[] data;
+        @Nullable
+        private final ProtocolChannel.MessageCallback callback;
+        private final long queueTime;
+        private final int priority;
+        private SendWindow window;
+
+        private Entry(byte[] header, byte[] data, int priority, @Nullable ProtocolChannel.MessageCallback callback, long queueTime) {
+            this.header = header;
+            this.data = data;
+            this.priority = Math.min(Math.max(priority, PRIORITY_CONTROL), PRIORITY_BULK);
+            this.callback = callback;
+            this.queueTime = queueTime;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        @Nullable
+        public ProtocolChannel.MessageCallback getCallback() {
+            return callback;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ingreatsol.bluetoothcommunicator;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+
+/**
+ * Contains the sub messages of the message that a ProtocolChannel is sending (as message or as data).
+ * <br /><br />
+ * Up to size sub messages can be sent without waiting for their acknowledgement, the acknowledgements are cumulative
+ * (the acknowledgement of a sub message also confirms all the previous ones, because the receiver accepts sub messages
+ * only in order) and when a sub message is lost all the sub messages sent after it are sent again (go-back-N).
+ */
+class SendWindow {
+    private final int id;
+    private final int size;
+    private final ArrayDeque<BluetoothMessage> unsent;
+    private final ArrayDeque<BluetoothMessage> inFlight = new ArrayDeque<>();
+    // indexed by sequence number % size, the sub messages in flight are consecutive so they never share a slot
+    private final long[] sendTimes;
+    private final boolean[] retransmitted;
+    private int maxSentSequenceNumber = -1;
+
+    public SendWindow(@NonNull ArrayDeque<BluetoothMessage> subMessages, int size) {
+        BluetoothMessage first = subMessages.peekFirst();
+        this.id = first != null ? first.getId().intValue() : -1;
+        this.size = Math.max(size, 1);
+        this.unsent = subMessages;
+        this.sendTimes = new long[this.size];
+        this.retransmitted = new boolean[this.size];
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return the next sub message to send, or null if all the sub messages are sent or the window is full
+     */
+    @Nullable
+    public BluetoothMessage peekNext() {
+        if (inFlight.size() < size) {
+            return unsent.peekFirst();
+        }
+        return null;
+    }
+
+    /**
+     * @return the last sub message sent and not yet acknowledged
+     */
+    @Nullable
+    public BluetoothMessage peekLastSent() {
+        return inFlight.peekLast();
+    }
+
+    public void onSent(@NonNull BluetoothMessage subMessage, long time) {
+        if (unsent.peekFirst() == subMessage) {
+            inFlight.addLast(unsent.pollFirst());
+            int sequenceNumber = subMessage.getSequenceNumber().intValue();
+            int slot = sequenceNumber % size;
+            sendTimes[slot] = time;
+            retransmitted[slot] = sequenceNumber <= maxSentSequenceNumber;
+            maxSentSequenceNumber = Math.max(maxSentSequenceNumber, sequenceNumber);
+        }
+    }
+
+    /**
+     * Removes all the sub messages up to sequenceNumber.
+     *
+     * @return the round trip time of the last sub message acknowledged, 0 if only retransmitted sub messages are acknowledged
+     * (their round trip time is ambiguous), -1 if the acknowledgement doesn't confirm anything new
+     */
+    public long acknowledge(int id, int sequenceNumber, long time) {
+        long roundTripTime = -1;
+        if (id == this.id) {
+            while (inFlight.peekFirst() != null && inFlight.peekFirst().getSequenceNumber().intValue() <= sequenceNumber) {
+                int slot = inFlight.pollFirst().getSequenceNumber().intValue() % size;
+                roundTripTime = retransmitted[slot] ? Math.max(roundTripTime, 0) : time - sendTimes[slot];
+            }
+            // sub messages rewound after a timeout but whose acknowledgement arrived late
+            while (unsent.peekFirst() != null && unsent.peekFirst().getSequenceNumber().intValue() <= sequenceNumber) {
+                unsent.pollFirst();
+                roundTripTime = Math.max(roundTripTime, 0);
+            }
+        }
+        return roundTripTime;
+    }
+
+    /**
+     * All the sub messages in flight will be sent again.
+     */
+    public void rewind() {
+        while (inFlight.peekLast() != null) {
+            unsent.addFirst(inFlight.pollLast());
+        }
+    }
+
+    public boolean hasInFlight() {
+        return !inFlight.isEmpty();
+    }
+
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    public boolean isCompleted() {
+        return unsent.isEmpty() && inFlight.isEmpty();
+    }
+}
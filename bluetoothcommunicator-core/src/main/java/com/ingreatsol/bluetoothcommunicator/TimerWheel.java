@@ -0,0 +1,257 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ingreatsol.bluetoothcommunicator;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Hashed timer wheel that runs all the timeouts of a connection (retransmissions, connection, reconnection and disconnection).
+ * <br /><br />
+ * The time is divided in ticks of tickDuration milliseconds and each timeout is linked in the bucket of the tick of its deadline
+ * (modulo the number of buckets), the timeouts whose deadline is beyond one round of the wheel simply stay in their bucket until
+ * their round arrives. Scheduling and canceling a timeout are O(1) and don't allocate anything: each Timeout is created once by its
+ * owner and reused for every scheduling. The wheel advances on the thread of its Ticker only while there are scheduled timeouts.
+ * <br /><br />
+ * The wheel doesn't depend on Android: GattScheduler provides a Ticker backed by its Handler and SystemClock.
+ */
+class TimerWheel {
+    public static final int DEFAULT_TICK_DURATION = 20;
+    public static final int DEFAULT_WHEEL_SIZE = 256;
+    private final long tickDuration;
+    private final Timeout[] buckets;
+    private final int mask;
+    private long currentTick;   // the last tick whose timeouts have been expired
+    private int scheduledCount = 0;
+    @Nullable
+    private final Ticker ticker;
+    private final Runnable tick;
+    private boolean ticking = false;
+    private final Object lock = new Object();
+
+    /**
+     * @param ticker clock and thread where the timeouts are run, if it is null the wheel advances only with expire
+     */
+    public TimerWheel(@Nullable Ticker ticker, long tickDuration, int wheelSize, long now) {
+        this.ticker = ticker;
+        this.tickDuration = Math.max(1, tickDuration);
+        int size = Integer.highestOneBit(Math.max(1, wheelSize));
+        this.buckets = new Timeout[size];
+        this.mask = size - 1;
+        this.currentTick = now / this.tickDuration;
+        this.tick = () -> {
+            expire(ticker.now());
+            synchronized (lock) {
+                ticking = false;
+                startTicking();
+            }
+        };
+    }
+
+    /**
+     * Schedules timeout to run after delay milliseconds from now().
+     */
+    public void schedule(@NonNull Timeout timeout, long delay) {
+        schedule(timeout, delay, now());
+    }
+
+    /**
+     * @return the current time of the ticker, or the time of the last expire if there is no ticker
+     */
+    public long now() {
+        if (ticker != null) {
+            return ticker.now();
+        }
+        synchronized (lock) {
+            return currentTick * tickDuration;
+        }
+    }
+
+    /**
+     * Schedules timeout to run after delay milliseconds from now, if it is already scheduled it is rescheduled.
+     */
+    public void schedule(@NonNull Timeout timeout, long delay, long now) {
+        synchronized (lock) {
+            unlink(timeout);
+            // if it is waiting to run in the current expire, the new deadline replaces that run
+            timeout.expiring = false;
+            // the deadline is rounded up to the next tick, so the timeout never runs early
+            long deadlineTick = Math.max((now + Math.max(0, delay) + tickDuration - 1) / tickDuration, currentTick + 1);
+            timeout.deadlineTick = deadlineTick;
+            int bucket = (int) (deadlineTick & mask);
+            timeout.next = buckets[bucket];
+            if (timeout.next != null) {
+                timeout.next.previous = timeout;
+            }
+            timeout.previous = null;
+            buckets[bucket] = timeout;
+            timeout.scheduled = true;
+            scheduledCount++;
+            startTicking();
+        }
+    }
+
+    /**
+     * @return true if timeout was scheduled and now it will not run
+     */
+    public boolean cancel(@NonNull Timeout timeout) {
+        synchronized (lock) {
+            boolean expiring = timeout.expiring;
+            timeout.expiring = false;
+            return unlink(timeout) || expiring;
+        }
+    }
+
+    /**
+     * Runs the timeouts whose deadline is not after now, it is called by the thread of the ticker (the tasks are run without holding the lock of the wheel).
+     *
+     * @return the number of timeouts run
+     */
+    public int expire(long now) {
+        // the expired timeouts are linked in a list to run them outside the lock, in order of deadline and then of scheduling
+        // (with nextExpired, because the tasks can schedule them again in a bucket before their turn)
+        Timeout expired = null;
+        Timeout expiredTail = null;
+        synchronized (lock) {
+            long nowTick = now / tickDuration;
+            if (scheduledCount == 0) {
+                currentTick = Math.max(currentTick, nowTick);
+                return 0;
+            }
+            // after a whole round every bucket has been visited, so the missed ticks are not visited one by one
+            long lastTick = Math.min(nowTick, currentTick + buckets.length);
+            for (long tick = currentTick + 1; tick <= lastTick; tick++) {
+                // the buckets are linked from the last timeout scheduled, so they are reversed
+                Timeout bucketExpired = null;
+                Timeout bucketExpiredTail = null;
+                Timeout timeout = buckets[(int) (tick & mask)];
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    if (timeout.deadlineTick <= nowTick) {
+                        unlink(timeout);
+                        timeout.expiring = true;
+                        timeout.nextExpired = bucketExpired;
+                        bucketExpired = timeout;
+                        if (bucketExpiredTail == null) {
+                            bucketExpiredTail = timeout;
+                        }
+                    }
+                    timeout = next;
+                }
+                if (bucketExpired != null) {
+                    if (expiredTail == null) {
+                        expired = bucketExpired;
+                    } else {
+                        expiredTail.nextExpired = bucketExpired;
+                    }
+                    expiredTail = bucketExpiredTail;
+                }
+            }
+            currentTick = Math.max(currentTick, nowTick);
+        }
+        int count = 0;
+        while (expired != null) {
+            Timeout next;
+            boolean run;
+            synchronized (lock) {
+                next = expired.nextExpired;
+                expired.nextExpired = null;
+                // false if a previous task has scheduled it again or canceled it
+                run = expired.expiring;
+                expired.expiring = false;
+            }
+            if (run) {
+                expired.task.run();
+                count++;
+            }
+            expired = next;
+        }
+        return count;
+    }
+
+    public void clear() {
+        synchronized (lock) {
+            for (int i = 0; i < buckets.length; i++) {
+                while (buckets[i] != null) {
+                    unlink(buckets[i]);
+                }
+            }
+            if (ticker != null) {
+                ticker.removeCallbacks(tick);
+            }
+            ticking = false;
+        }
+    }
+
+    private boolean unlink(Timeout timeout) {
+        if (!timeout.scheduled) {
+            return false;
+        }
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            buckets[(int) (timeout.deadlineTick & mask)] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+        timeout.next = null;
+        timeout.previous = null;
+        timeout.scheduled = false;
+        scheduledCount--;
+        return true;
+    }
+
+    private void startTicking() {
+        if (ticker != null && !ticking && scheduledCount > 0) {
+            ticking = true;
+            ticker.postDelayed(tick, tickDuration);
+        }
+    }
+
+    /**
+     * Clock (in milliseconds) and thread that advance the wheel.
+     */
+    public interface Ticker {
+        long now();
+
+        void postDelayed(@NonNull Runnable runnable, long delay);
+
+        void removeCallbacks(@NonNull Runnable runnable);
+    }
+
+    /**
+     * Reusable handle of a task run by the wheel, it can be scheduled again (even by its own task) and canceled at any time.
+     */
+    public static class Timeout {
+        private final Runnable task;
+        private Timeout next;
+        private Timeout previous;
+        private Timeout nextExpired;
+        private long deadlineTick;
+        private boolean expiring = false;  // guarded by the lock of the wheel
+        private volatile boolean scheduled = false;
+
+        public Timeout(@NonNull Runnable task) {
+            this.task = task;
+        }
+
+        public boolean isScheduled() {
+            return scheduled;
+        }
+    }
+}
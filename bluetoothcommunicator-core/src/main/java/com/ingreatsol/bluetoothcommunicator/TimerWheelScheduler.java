@@ -0,0 +1,157 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ingreatsol.bluetoothcommunicator;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+
+/**
+ * OperationScheduler that runs the operations of a single ProtocolChannel on the thread of a TimerWheel (its Ticker, or the caller of expire),
+ * it is used with the transports that don't have a scheduler of their own, like LoopbackTransport.
+ * <br /><br />
+ * Like GattScheduler, an operation that returns STARTED blocks the following ones until onOperationCompleted or OPERATION_TIMEOUT,
+ * and an operation that returns RETRY is started again after a growing delay, behind the operations scheduled in the meantime.
+ * The operations are always started by a timeout of the wheel, never by schedule, so they don't run inside the lock of the channel that schedules them.
+ */
+class TimerWheelScheduler extends OperationScheduler {
+    private static final int OPERATION_TIMEOUT = 2000;
+    private static final int MIN_RETRY_DELAY = 10;
+    private static final int MAX_RETRY_DELAY = 320;
+    private final TimerWheel timerWheel;
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+    @Nullable
+    private Entry runningOperation = null;
+    private int generation = 0;     // incremented by cancel, so the retries of the canceled operations are discarded
+    private final TimerWheel.Timeout start = new TimerWheel.Timeout(this::startNext);
+    private final TimerWheel.Timeout operationTimeout = new TimerWheel.Timeout(this::onOperationTimeout);
+    private final Object lock = new Object();
+
+    public TimerWheelScheduler(@NonNull TimerWheel timerWheel) {
+        this.timerWheel = timerWheel;
+    }
+
+    @Override
+    public void schedule(int type, int stream, @NonNull Operation operation) {
+        synchronized (lock) {
+            queue.addLast(new Entry(operation, type, stream, generation));
+            scheduleStart();
+        }
+    }
+
+    @Override
+    public void onOperationCompleted(int type, int stream) {
+        synchronized (lock) {
+            Entry running = runningOperation;
+            if (running != null && running.type == type && running.stream == stream) {
+                complete();
+            }
+        }
+    }
+
+    @Override
+    public void cancel() {
+        synchronized (lock) {
+            generation++;
+            queue.clear();
+            runningOperation = null;
+            timerWheel.cancel(start);
+            timerWheel.cancel(operationTimeout);
+        }
+    }
+
+    private void scheduleStart() {
+        if (runningOperation == null && !queue.isEmpty() && !start.isScheduled()) {
+            timerWheel.schedule(start, 0);
+        }
+    }
+
+    private void complete() {
+        runningOperation = null;
+        timerWheel.cancel(operationTimeout);
+        scheduleStart();
+    }
+
+    private void onOperationTimeout() {
+        synchronized (lock) {
+            if (runningOperation != null) {
+                complete();
+            }
+        }
+    }
+
+    private void startNext() {
+        while (true) {
+            final Entry entry;
+            synchronized (lock) {
+                if (runningOperation != null) {
+                    return;
+                }
+                entry = queue.pollFirst();
+                if (entry == null) {
+                    return;
+                }
+                // the entry is marked as running while it starts, so an operation scheduled by its start waits for it
+                runningOperation = entry;
+                entry.attempts++;
+            }
+            int result = entry.operation.start();
+            synchronized (lock) {
+                if (runningOperation != entry) {
+                    // completed by the transport during start, or canceled
+                    return;
+                }
+                if (result == STARTED) {
+                    timerWheel.schedule(operationTimeout, OPERATION_TIMEOUT);
+                    return;
+                }
+                runningOperation = null;
+                if (result == RETRY) {
+                    // the other operations can run in the meantime
+                    long delay = Math.min(MIN_RETRY_DELAY << Math.min(entry.attempts - 1, 5), MAX_RETRY_DELAY);
+                    timerWheel.schedule(entry.retry, delay);
+                }
+            }
+        }
+    }
+
+    private void retry(@NonNull Entry entry) {
+        synchronized (lock) {
+            if (entry.generation == generation) {
+                queue.addLast(entry);
+                scheduleStart();
+            }
+        }
+    }
+
+    private class Entry {
+        private final Operation operation;
+        private final int type;
+        private final int stream;
+        private final int generation;
+        private final TimerWheel.Timeout retry = new TimerWheel.Timeout(() -> retry(this));
+        private int attempts = 0;
+
+        private Entry(Operation operation, int type, int stream, int generation) {
+            this.operation = operation;
+            this.type = type;
+            this.stream = stream;
+            this.generation = generation;
+        }
+    }
+}
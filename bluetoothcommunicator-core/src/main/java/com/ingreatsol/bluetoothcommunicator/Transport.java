@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ingreatsol.bluetoothcommunicator;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Link used by a ProtocolChannel to exchange frames with its peer: the sub messages and sub data (write), their cumulative acknowledgements
+ * (writeAcknowledgement), the MTU and the state of the connection.
+ * <br /><br />
+ * Each direction has two streams, MESSAGE and DATA, whose frames are acknowledged independently. A write only starts the transmission
+ * of a frame, its completion is notified with onWriteCompleted (after that the next frame can be written without waiting for the
+ * acknowledgement), a frame can still be lost after its completion, in that case the sender retransmits it after its timeout.
+ * <br /><br />
+ * The implementations are the GATT transports (GattClientTransport and GattServerTransport) and LoopbackTransport, that connects two
+ * endpoints in the same process, so the protocol can run without radios.
+ */
+abstract class Transport {
+    // streams
+    public static final int MESSAGE = 0;
+    public static final int DATA = 1;
+    public static final int DEFAULT_MTU = 23;   // the MTU of the connections without MTU exchange
+    public static final int ATT_HEADER_LENGTH = 3;
+    @Nullable
+    private volatile Callback callback;
+    private volatile int mtu = DEFAULT_MTU;
+
+    /**
+     * Starts the transmission of frame (a sub message or a sub data) on stream, frame can be reused by the caller after the return.
+     *
+     * @return true if the transmission is started, false if it can't be started now (not connected, busy or frame too long)
+     */
+    public abstract boolean write(int stream, @NonNull byte[] frame);
+
+    /**
+     * Sends acknowledgement to confirm the frames received on stream (it is cumulative, so a lost one is replaced by the next),
+     * its completion is notified with onAcknowledgementWriteCompleted.
+     *
+     * @return true if the transmission is started
+     */
+    public abstract boolean writeAcknowledgement(int stream, @NonNull byte[] acknowledgement);
+
+    public abstract boolean isConnected();
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    /**
+     * @return the maximum length of a frame (header included), the biggest value that fits in a single ATT packet
+     */
+    public int getMaxFrameLength() {
+        return Math.min(mtu - ATT_HEADER_LENGTH, BluetoothMessage.MAX_LENGTH);
+    }
+
+    public void setCallback(@Nullable Callback callback) {
+        this.callback = callback;
+    }
+
+    // events of the implementations
+
+    protected void notifyFrameReceived(int stream, @NonNull byte[] frame) {
+        Callback callback = this.callback;
+        if (callback != null) {
+            callback.onFrameReceived(stream, frame);
+        }
+    }
+
+    protected void notifyAcknowledgementReceived(int stream, @NonNull byte[] acknowledgement) {
+        Callback callback = this.callback;
+        if (callback != null) {
+            callback.onAcknowledgementReceived(stream, acknowledgement);
+        }
+    }
+
+    protected void notifyWriteCompleted(int stream, boolean success) {
+        Callback callback = this.callback;
+        if (callback != null) {
+            callback.onWriteCompleted(stream, success);
+        }
+    }
+
+    protected void notifyAcknowledgementWriteCompleted(int stream) {
+        Callback callback = this.callback;
+        if (callback != null) {
+            callback.onAcknowledgementWriteCompleted(stream);
+        }
+    }
+
+    protected void notifyMtuChanged(int mtu) {
+        this.mtu = Math.max(mtu, DEFAULT_MTU);
+        Callback callback = this.callback;
+        if (callback != null) {
+            callback.onMtuChanged(this.mtu);
+        }
+    }
+
+    protected void notifyConnectionStateChanged(boolean connected) {
+        Callback callback = this.callback;
+        if (callback != null) {
+            callback.onConnectionStateChanged(connected);
+        }
+    }
+
+    public static abstract class Callback {
+        public abstract void onFrameReceived(int stream, @NonNull byte[] frame);
+
+        public abstract void onAcknowledgementReceived(int stream, @NonNull byte[] acknowledgement);
+
+        /**
+         * @param success false if the frame is not sent, in that case all the frames not yet acknowledged must be sent again
+         */
+        public abstract void onWriteCompleted(int stream, boolean success);
+
+        public void onAcknowledgementWriteCompleted(int stream) {
+        }
+
+        public void onMtuChanged(int mtu) {
+        }
+
+        public void onConnectionStateChanged(boolean connected) {
+        }
+    }
+}
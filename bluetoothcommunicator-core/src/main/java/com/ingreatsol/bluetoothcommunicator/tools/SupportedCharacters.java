@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ingreatsol.bluetoothcommunicator.tools;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The characters supported in the names of the devices and in the legacy header of the sub messages, they are all
+ * ASCII characters so each of them is encoded with a single byte in UTF-8.
+ */
+public class SupportedCharacters {
+    // supported characters in alphabetical order, and the index of each of them (-1 if the character is not supported)
+    private static final char[] CHARACTERS = {' ', '!', '"', '#', '$', '%', '&', '\'', '(', ')',
+            '*', '+', ',', '-', '.', '/',
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
+            ':', ';', '<', '=', '>', '?', '@',
+            'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M', 'N', 'O', 'P', 'Q', 'R', 'S', 'T', 'U', 'V', 'W', 'X', 'Y', 'Z',
+            '[', '\\', ']', '^', '_', '`',
+            'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j', 'k', 'l', 'm', 'n', 'o', 'p', 'q', 'r', 's', 't', 'u', 'v', 'w', 'x', 'y', 'z',
+            '{', '|', '}', '~'};
+    public static final int COUNT = CHARACTERS.length;
+    private static final int[] INDEXES = new int[128];
+    private static final List<Character> LIST;
+
+    static {
+        Arrays.sort(CHARACTERS);  // alphabetical order
+        Arrays.fill(INDEXES, -1);
+        Character[] characters = new Character[CHARACTERS.length];
+        for (int i = 0; i < CHARACTERS.length; i++) {
+            INDEXES[CHARACTERS[i]] = i;
+            characters[i] = CHARACTERS[i];
+        }
+        LIST = Collections.unmodifiableList(Arrays.asList(characters));
+    }
+
+    private SupportedCharacters() {
+    }
+
+    /**
+     * @return the supported characters in alphabetical order (read only)
+     */
+    @NonNull
+    public static List<Character> getList() {
+        return LIST;
+    }
+
+    /**
+     * @param index between 0 and COUNT - 1
+     * @return the supported character in position index of the alphabetical order
+     */
+    public static char get(int index) {
+        return CHARACTERS[index];
+    }
+
+    /**
+     * @return the position of character in the alphabetical order of the supported characters, or -1 if it is not supported
+     */
+    public static int getIndex(int character) {
+        if (character < 0 || character >= INDEXES.length) {
+            return -1;
+        }
+        return INDEXES[character];
+    }
+}
@@ -0,0 +1,235 @@
+package com.ingreatsol.bluetoothcommunicator;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trip tests of the binary header and of the legacy ASCII header of BluetoothMessage.
+ */
+public class BluetoothMessageTest {
+    private static final int SUB_MESSAGES_LENGTH = 192;
+    // the default MTU (23) without the ATT header (3)
+    private static final int DEFAULT_SUB_MESSAGES_LENGTH = 20;
+
+    @Test
+    public void binaryFrame_roundTrip() {
+        byte[] data = "hello".getBytes(StandardCharsets.UTF_8);
+        BluetoothMessage message = new BluetoothMessage(newId(300), newSequenceNumber(7), BluetoothMessage.FINAL, data);
+
+        byte[] completeData = message.getCompleteData();
+        assertEquals(BluetoothMessage.HEADER_LENGTH + data.length, completeData.length);
+        assertEquals(BluetoothMessage.VERSION, BluetoothMessage.getVersion(completeData));
+        assertEquals(300, BluetoothMessage.readId(completeData));
+        assertEquals(7, BluetoothMessage.readSequenceNumber(completeData));
+        assertEquals(BluetoothMessage.FINAL, BluetoothMessage.readType(completeData));
+
+        BluetoothMessage received = BluetoothMessage.createFromBytes(completeData);
+        assertNotNull(received);
+        assertEquals(BluetoothMessage.VERSION, received.getVersion());
+        assertEquals(300, received.getId().intValue());
+        assertEquals(7, received.getSequenceNumber().intValue());
+        assertEquals(BluetoothMessage.FINAL, received.getType());
+        assertArrayEquals(data, received.getData());
+    }
+
+    @Test
+    public void binaryFrame_maxValues() {
+        int max = BluetoothMessage.SequenceNumber.MAX_VALUE;
+        BluetoothMessage message = new BluetoothMessage(newId(max), newSequenceNumber(max), BluetoothMessage.NON_FINAL, new byte[]{0});
+
+        BluetoothMessage received = BluetoothMessage.createFromBytes(message.getCompleteData());
+        assertNotNull(received);
+        assertEquals(max, received.getId().intValue());
+        assertEquals(max, received.getSequenceNumber().intValue());
+        assertEquals(BluetoothMessage.NON_FINAL, received.getType());
+    }
+
+    @Test
+    public void legacyFrame_isParsed() {
+        // id 1 = "   !", sequence number 2 = "  \"", type FINAL = "2"
+        byte[] completeData = "   !  \"2abc".getBytes(StandardCharsets.UTF_8);
+        assertEquals(BluetoothMessage.LEGACY_VERSION, BluetoothMessage.getVersion(completeData));
+
+        BluetoothMessage received = BluetoothMessage.createFromBytes(completeData);
+        assertNotNull(received);
+        assertEquals(BluetoothMessage.LEGACY_VERSION, received.getVersion());
+        assertEquals(1, received.getId().intValue());
+        assertEquals(2, received.getSequenceNumber().intValue());
+        assertEquals(BluetoothMessage.FINAL, received.getType());
+        assertArrayEquals("abc".getBytes(StandardCharsets.UTF_8), received.getData());
+
+        // the received message is encoded again with its original header
+        assertArrayEquals(completeData, received.getCompleteData());
+        assertEquals("   !  \"", new String(received.getAcknowledgementData(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void legacyFrame_roundTrip() {
+        byte[] data = {1, 2, 3};
+        BluetoothMessage message = new BluetoothMessage(newId(9024), newSequenceNumber(857), BluetoothMessage.NON_FINAL, data);
+        message.setVersion(BluetoothMessage.LEGACY_VERSION);
+
+        byte[] completeData = message.getCompleteData();
+        assertEquals(BluetoothMessage.LEGACY_HEADER_LENGTH + data.length, completeData.length);
+        assertEquals(message.getId().getValue() + message.getSequenceNumber().getValue() + BluetoothMessage.NON_FINAL,
+                new String(completeData, 0, BluetoothMessage.LEGACY_HEADER_LENGTH, StandardCharsets.UTF_8));
+
+        BluetoothMessage received = BluetoothMessage.createFromBytes(completeData);
+        assertNotNull(received);
+        assertEquals(9024, received.getId().intValue());
+        assertEquals(857, received.getSequenceNumber().intValue());
+        assertEquals(BluetoothMessage.NON_FINAL, received.getType());
+        assertArrayEquals(data, received.getData());
+    }
+
+    @Test
+    public void acknowledgement_matchesOnlyItsMessage() {
+        for (int version : new int[]{BluetoothMessage.VERSION, BluetoothMessage.LEGACY_VERSION}) {
+            BluetoothMessage message = new BluetoothMessage(newId(12), newSequenceNumber(3), BluetoothMessage.NON_FINAL, new byte[]{0});
+            BluetoothMessage next = new BluetoothMessage(newId(12), newSequenceNumber(4), BluetoothMessage.FINAL, new byte[]{0});
+            message.setVersion(version);
+            next.setVersion(version);
+
+            assertTrue(message.isAcknowledgedBy(message.getAcknowledgementData()));
+            assertTrue(message.isAcknowledgedBy(message.getCompleteData()));
+            assertFalse(message.isAcknowledgedBy(next.getAcknowledgementData()));
+        }
+    }
+
+    @Test
+    public void invalidFrames_areRejected() {
+        assertEquals(-1, BluetoothMessage.getVersion(new byte[0]));
+        assertEquals(-1, BluetoothMessage.readId(new byte[]{0x12, 0, 1}));
+        assertEquals(-1, BluetoothMessage.readSequenceNumber("  !".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(-1, BluetoothMessage.readType(new byte[]{0x13, 0, 1, 0, 1}));
+        assertEquals(-1, BluetoothMessage.getVersion(new byte[]{(byte) 0x80, 0, 0, 0, 0, 0, 0, 0}));
+        // header without data
+        assertNull(BluetoothMessage.createFromBytes(new byte[]{0x12, 0, 1, 0, 1}));
+    }
+
+    @Test
+    public void split_firstFrameHasLengthHint() {
+        byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        ArrayDeque<BluetoothMessage> subMessages = BluetoothMessage.split(new byte[]{'a'}, data, newId(5), SUB_MESSAGES_LENGTH);
+        int subDataLength = SUB_MESSAGES_LENGTH - BluetoothMessage.HEADER_LENGTH;
+        int firstSubDataLength = subDataLength - BluetoothMessage.LENGTH_HINT_LENGTH;
+        assertEquals(1 + (data.length + 1 - firstSubDataLength + subDataLength - 1) / subDataLength, subMessages.size());
+
+        byte[] reassembled = new byte[0];
+        int expectedSequenceNumber = 0;
+        for (BluetoothMessage subMessage : subMessages) {
+            byte[] completeData = subMessage.getCompleteData();
+            if (subMessage != subMessages.peekLast()) {
+                assertEquals(SUB_MESSAGES_LENGTH, completeData.length);
+            }
+            assertEquals(expectedSequenceNumber, subMessage.getSequenceNumber().intValue());
+            assertEquals(subMessage == subMessages.peekLast() ? BluetoothMessage.FINAL : BluetoothMessage.NON_FINAL, BluetoothMessage.readType(completeData));
+
+            BluetoothMessage received = BluetoothMessage.createFromBytes(completeData);
+            assertNotNull(received);
+            assertEquals(5, received.getId().intValue());
+            assertEquals(expectedSequenceNumber == 0 ? data.length : -1, received.getLengthHint());
+            reassembled = concat(reassembled, received.getData());
+            expectedSequenceNumber++;
+        }
+        assertEquals('a', reassembled[0]);
+        assertArrayEquals(data, Arrays.copyOfRange(reassembled, 1, reassembled.length));
+    }
+
+    @Test
+    public void split_fitsTheDefaultMtu() {
+        byte[] data = new byte[100];
+        ArrayDeque<BluetoothMessage> subMessages = BluetoothMessage.split(new byte[]{'a'}, data, newId(5), DEFAULT_SUB_MESSAGES_LENGTH);
+
+        ReassemblyBuffer buffer = null;
+        for (BluetoothMessage subMessage : subMessages) {
+            byte[] completeData = subMessage.getCompleteData();
+            assertTrue(completeData.length <= DEFAULT_SUB_MESSAGES_LENGTH);
+            BluetoothMessage received = BluetoothMessage.createFromBytes(completeData);
+            assertNotNull(received);
+            if (buffer == null) {
+                buffer = new ReassemblyBuffer(received);
+            }
+            assertTrue(buffer.add(received));
+        }
+        assertTrue(buffer.isCompleted());
+        assertArrayEquals(data, buffer.getData());
+    }
+
+    @Test
+    public void legacySplit_hasTheAsciiHeaderAndNoLengthHint() {
+        byte[] data = new byte[100];
+        ArrayDeque<BluetoothMessage> subMessages = BluetoothMessage.split(new byte[]{'a'}, data, newId(5), DEFAULT_SUB_MESSAGES_LENGTH, BluetoothMessage.LEGACY_VERSION);
+        int subDataLength = DEFAULT_SUB_MESSAGES_LENGTH - BluetoothMessage.LEGACY_HEADER_LENGTH;
+        assertEquals((data.length + 1 + subDataLength - 1) / subDataLength, subMessages.size());
+
+        ReassemblyBuffer buffer = null;
+        for (BluetoothMessage subMessage : subMessages) {
+            byte[] completeData = subMessage.getCompleteData();
+            assertTrue(completeData.length <= DEFAULT_SUB_MESSAGES_LENGTH);
+            assertEquals(BluetoothMessage.LEGACY_VERSION, BluetoothMessage.getVersion(completeData));
+            BluetoothMessage received = BluetoothMessage.createFromBytes(completeData);
+            assertNotNull(received);
+            assertEquals(-1, received.getLengthHint());
+            if (buffer == null) {
+                buffer = new ReassemblyBuffer(received);
+            }
+            assertTrue(buffer.add(received));
+        }
+        assertTrue(buffer.isCompleted());
+        assertArrayEquals(data, buffer.getData());
+    }
+
+    @Test
+    public void viewFrame_isCopiedOnlyInTheCompleteData() {
+        byte[] data = {1, 2, 3, 4, 5, 6};
+        BluetoothMessage message = new BluetoothMessage(newId(1), newSequenceNumber(0), BluetoothMessage.FINAL, new byte[]{9}, data, 2, 3);
+        assertEquals(4, message.getDataLength());
+        assertArrayEquals(new byte[]{9, 3, 4, 5}, message.getData());
+
+        byte[] buffer = new byte[BluetoothMessage.HEADER_LENGTH + 4];
+        assertSame(buffer, message.getCompleteData(buffer));
+        assertNotSame(buffer, message.getCompleteData(new byte[1]));
+        BluetoothMessage received = BluetoothMessage.createFromBytes(buffer);
+        assertNotNull(received);
+        assertArrayEquals(new byte[]{9, 3, 4, 5}, received.getData());
+    }
+
+    @Test
+    public void sequenceNumber_rollsOverAndComparesSerially() {
+        int max = BluetoothMessage.SequenceNumber.MAX_VALUE;
+        BluetoothMessage.SequenceNumber last = newId(max);
+        BluetoothMessage.SequenceNumber first = last.next();
+        assertEquals(0, first.intValue());
+        assertEquals(max, last.intValue());
+
+        // 0 follows MAX_VALUE
+        assertTrue(first.compare(last) > 0);
+        assertTrue(last.compare(first) < 0);
+        assertTrue(newId(10).compare(newId(max - 10)) > 0);
+        assertTrue(newId(100).compare(newId(7)) > 0);
+        assertEquals(0, newId(7).compare(newId(7)));
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    private static BluetoothMessage.SequenceNumber newId(int value) {
+        return new BluetoothMessage.SequenceNumber(value, BluetoothMessage.ID_LENGTH);
+    }
+
+    private static BluetoothMessage.SequenceNumber newSequenceNumber(int value) {
+        return new BluetoothMessage.SequenceNumber(value, BluetoothMessage.SEQUENCE_NUMBER_LENGTH);
+    }
+}
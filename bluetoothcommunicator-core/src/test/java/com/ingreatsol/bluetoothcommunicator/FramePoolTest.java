@@ -0,0 +1,37 @@
+package com.ingreatsol.bluetoothcommunicator;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reuse of the arrays of FramePool and replacement of the least recently used length.
+ */
+public class FramePoolTest {
+
+    @Test
+    public void obtain_reusesTheArraysOfTheSameLength() {
+        FramePool pool = new FramePool(2);
+        byte[] full = pool.obtain(20);
+        byte[] last = pool.obtain(7);
+        for (int i = 0; i < 10; i++) {
+            assertSame(full, pool.obtain(20));
+        }
+        assertSame(last, pool.obtain(7));
+        assertEquals(13, pool.getRequests());
+        assertEquals(2, pool.getAllocations());
+    }
+
+    @Test
+    public void obtain_replacesTheLeastRecentlyUsedLength() {
+        FramePool pool = new FramePool(2);
+        byte[] full = pool.obtain(20);
+        pool.obtain(7);
+        pool.obtain(20);
+        // 7 is the least recently used
+        assertEquals(3, pool.obtain(3).length);
+        assertSame(full, pool.obtain(20));
+        assertNotNull(pool.obtain(7));
+        assertEquals(4, pool.getAllocations());
+    }
+}
@@ -0,0 +1,121 @@
+package com.ingreatsol.bluetoothcommunicator;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Timing, MTU, loss and ordering of LoopbackTransport (with virtual time).
+ */
+public class LoopbackTransportTest {
+    private final TimerWheel wheel = new TimerWheel(null, 1, 1024, 0);
+    private final Random random = new Random(42);
+
+    @Test
+    public void frame_arrivesAfterItsTransmissionAndTheLatency() {
+        // 20 bytes at 1000 bytes per second are transmitted in 20 ms
+        LoopbackTransport.Link link = new LoopbackTransport.Link(30, 0, 0, Transport.DEFAULT_MTU, 1000);
+        LoopbackTransport sender = new LoopbackTransport(link, wheel, random);
+        LoopbackTransport receiver = new LoopbackTransport(link, wheel, random);
+        Recorder senderEvents = new Recorder(sender);
+        Recorder receiverEvents = new Recorder(receiver);
+        LoopbackTransport.connect(sender, receiver);
+        assertTrue(receiverEvents.connected);
+
+        assertTrue(sender.write(Transport.MESSAGE, new byte[20]));
+        wheel.expire(19);
+        assertEquals(0, senderEvents.completed);
+        wheel.expire(20);
+        assertEquals(1, senderEvents.completed);
+        wheel.expire(49);
+        assertTrue(receiverEvents.frames.isEmpty());
+        wheel.expire(50);
+        assertEquals(1, receiverEvents.frames.size());
+    }
+
+    @Test
+    public void frame_longerThanTheMtu_orWithoutConnection_isNotWritten() {
+        LoopbackTransport.Link link = new LoopbackTransport.Link(0, 0, 0, 100, 0);
+        LoopbackTransport first = new LoopbackTransport(link, wheel, random);
+        LoopbackTransport second = new LoopbackTransport(new LoopbackTransport.Link(0, 0, 0, 50, 0), wheel, random);
+        assertFalse(first.write(Transport.MESSAGE, new byte[1]));
+
+        // the MTU of the connection is the lowest of the two links
+        LoopbackTransport.connect(first, second);
+        assertEquals(50, first.getMtu());
+        assertTrue(first.write(Transport.MESSAGE, new byte[50 - Transport.ATT_HEADER_LENGTH]));
+        assertFalse(first.write(Transport.MESSAGE, new byte[50 - Transport.ATT_HEADER_LENGTH + 1]));
+
+        first.disconnect();
+        assertFalse(second.isConnected());
+        assertFalse(first.write(Transport.MESSAGE, new byte[1]));
+    }
+
+    @Test
+    public void lossAndJitter_neverReorderFrames() {
+        LoopbackTransport.Link link = new LoopbackTransport.Link(20, 50, 0.3, 185, 0);
+        LoopbackTransport sender = new LoopbackTransport(link, wheel, random);
+        LoopbackTransport receiver = new LoopbackTransport(link, wheel, random);
+        Recorder senderEvents = new Recorder(sender);
+        Recorder receiverEvents = new Recorder(receiver);
+        LoopbackTransport.connect(sender, receiver);
+
+        int count = 200;
+        for (int i = 0; i < count; i++) {
+            assertTrue(sender.write(Transport.DATA, new byte[]{(byte) i}));
+        }
+        advance(1000);
+        // lost frames are completed anyway, the sender finds out only from the missing acknowledgements
+        assertEquals(count, senderEvents.completed);
+        assertEquals(count - sender.getLostFrames(), receiverEvents.frames.size());
+        assertTrue(sender.getLostFrames() > 0);
+        int previous = -1;
+        for (byte[] frame : receiverEvents.frames) {
+            assertTrue((frame[0] & 0xFF) > previous);
+            previous = frame[0] & 0xFF;
+        }
+    }
+
+    /**
+     * Advances the virtual time one millisecond at a time, so the events scheduled by the events run are run too.
+     */
+    private void advance(long until) {
+        for (long time = wheel.now() + 1; time <= until; time++) {
+            wheel.expire(time);
+        }
+    }
+
+    private static class Recorder extends Transport.Callback {
+        private final ArrayList<byte[]> frames = new ArrayList<>();
+        private int completed = 0;
+        private boolean connected = false;
+
+        private Recorder(Transport transport) {
+            transport.setCallback(this);
+        }
+
+        @Override
+        public void onFrameReceived(int stream, @NonNull byte[] frame) {
+            frames.add(frame);
+        }
+
+        @Override
+        public void onAcknowledgementReceived(int stream, @NonNull byte[] acknowledgement) {
+        }
+
+        @Override
+        public void onWriteCompleted(int stream, boolean success) {
+            completed++;
+        }
+
+        @Override
+        public void onConnectionStateChanged(boolean connected) {
+            this.connected = connected;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.ingreatsol.bluetoothcommunicator;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Pairs of ProtocolChannels connected by lossy LoopbackTransports (with virtual time): delivery, order and retransmission.
+ */
+public class ProtocolChannelTest {
+    private static final byte[] HEADER = {'m'};
+    private final TimerWheel wheel = new TimerWheel(null, 1, 1024, 0);
+    private final Random random = new Random(42);
+    private final LoopbackTransport.Link link = new LoopbackTransport.Link(15, 10, 0.1, 185, 20000);
+
+    @Test
+    public void fanOut_deliversEveryMessageExactlyOnceAndInOrder() {
+        int peers = 32;
+        final int messages = 5;
+        byte[] data = new byte[4000];
+        random.nextBytes(data);
+        ArrayList<TestChannel> senders = new ArrayList<>();
+        ArrayList<TestChannel> receivers = new ArrayList<>();
+        long lostFrames = 0;
+        for (int i = 0; i < peers; i++) {
+            TestChannel sender = new TestChannel();
+            TestChannel receiver = new TestChannel();
+            LoopbackTransport.connect(sender.loopback, receiver.loopback);
+            senders.add(sender);
+            receivers.add(receiver);
+            sender.writeData(HEADER, data, SendQueue.PRIORITY_BULK, null);
+            // each message is written when the previous one is sent, so they must arrive in this order
+            writeSerially(sender, 0, messages);
+        }
+        advance(60000);
+        long retransmissions = 0;
+        for (int i = 0; i < peers; i++) {
+            TestChannel receiver = receivers.get(i);
+            assertEquals(1, receiver.data.size());
+            assertArrayEquals(data, receiver.data.get(0));
+            assertEquals(messages, receiver.messages.size());
+            for (int j = 0; j < messages; j++) {
+                assertEquals(getText(j), receiver.messages.get(j));
+            }
+            assertEquals(0, senders.get(i).getSendQueueLength());
+            retransmissions += senders.get(i).getRetransmissionCount();
+            lostFrames += senders.get(i).loopback.getLostFrames() + receiver.loopback.getLostFrames();
+        }
+        assertTrue(lostFrames > 0);
+        assertTrue(retransmissions > 0);
+    }
+
+    @Test
+    public void disconnection_rewindsTheFramesInFlight_andSendsThemAfterTheReconnection() {
+        TestChannel sender = new TestChannel();
+        TestChannel receiver = new TestChannel();
+        LoopbackTransport.connect(sender.loopback, receiver.loopback);
+        byte[] data = new byte[2000];
+        random.nextBytes(data);
+        sender.writeData(HEADER, data, SendQueue.PRIORITY_BULK, null);
+        advance(wheel.now() + 40);
+        sender.loopback.disconnect();
+        advance(wheel.now() + 1000);
+        assertTrue(receiver.data.isEmpty());
+
+        LoopbackTransport.connect(sender.loopback, receiver.loopback);
+        advance(wheel.now() + 30000);
+        assertEquals(1, receiver.data.size());
+        assertArrayEquals(data, receiver.data.get(0));
+        assertEquals(0, sender.getSendQueueLength());
+    }
+
+    @Test
+    public void subData_areConfirmedInBursts() {
+        LoopbackTransport.Link lossless = new LoopbackTransport.Link(15, 10, 0, 185, 20000);
+        TestChannel sender = new TestChannel(new LoopbackTransport(lossless, wheel, random));
+        TestChannel receiver = new TestChannel(new LoopbackTransport(lossless, wheel, random));
+        LoopbackTransport.connect(sender.loopback, receiver.loopback);
+        byte[] data = new byte[8000];
+        random.nextBytes(data);
+        sender.writeData(HEADER, data, SendQueue.PRIORITY_BULK, null);
+        advance(wheel.now() + 30000);
+        assertEquals(1, receiver.data.size());
+        assertArrayEquals(data, receiver.data.get(0));
+        long frames = sender.getWrittenFrameCount();
+        // the receiver writes only acknowledgements, one for each burst (and one for the last sub data)
+        long acknowledgements = receiver.loopback.getSentFrames();
+        assertTrue(frames > 2 * ProtocolChannel.BULK_ACKNOWLEDGEMENT_INTERVAL);
+        assertTrue(acknowledgements <= frames / ProtocolChannel.BULK_ACKNOWLEDGEMENT_INTERVAL + 1);
+    }
+
+    @Test
+    public void subData_ofAWindowSmallerThanTheBurst_areConfirmedAfterTheDelay() {
+        TestChannel sender = new TestChannel();
+        TestChannel receiver = new TestChannel();
+        sender.setSendWindowSize(1);
+        LoopbackTransport.connect(sender.loopback, receiver.loopback);
+        byte[] data = new byte[2000];
+        random.nextBytes(data);
+        sender.writeData(HEADER, data, SendQueue.PRIORITY_BULK, null);
+        advance(wheel.now() + 30000);
+        assertEquals(1, receiver.data.size());
+        assertArrayEquals(data, receiver.data.get(0));
+        assertEquals(0, sender.getSendQueueLength());
+    }
+
+    @Test
+    public void legacyVersion_isUsedUntilThePeerSendsABinarySubMessage() {
+        TestChannel receiver = new TestChannel();
+        TestChannel sender = new TestChannel();
+        receiver.setVersion(BluetoothMessage.LEGACY_VERSION);
+        sender.setVersion(BluetoothMessage.LEGACY_VERSION);
+        LoopbackTransport.connect(receiver.loopback, sender.loopback);
+        sender.writeMessage(HEADER, getText(0).getBytes(StandardCharsets.UTF_8), SendQueue.PRIORITY_INTERACTIVE, null);
+        advance(wheel.now() + 5000);
+        assertEquals(getText(0), receiver.messages.get(0));
+        // legacy sub messages don't change the version of the receiver
+        assertEquals(BluetoothMessage.LEGACY_VERSION, receiver.getVersion());
+
+        // the binary sub messages make the receiver use the binary header too
+        sender.setVersion(BluetoothMessage.VERSION);
+        sender.writeMessage(HEADER, getText(1).getBytes(StandardCharsets.UTF_8), SendQueue.PRIORITY_INTERACTIVE, null);
+        advance(wheel.now() + 5000);
+        assertEquals(getText(1), receiver.messages.get(1));
+        assertEquals(BluetoothMessage.VERSION, receiver.getVersion());
+        assertEquals(0, sender.getSendQueueLength());
+    }
+
+    @Test
+    public void legacyReader_readsEachSubDataOfALegacySender() {
+        final TestChannel sender = new TestChannel();
+        sender.setVersion(BluetoothMessage.LEGACY_VERSION);
+        // like the clients of older versions, the reader ignores the value of the frame and reads the sub data being transmitted,
+        // then it appends it to the data and confirms it
+        final LoopbackTransport reader = new LoopbackTransport(new LoopbackTransport.Link(15, 10, 0, 185, 20000), wheel, random);
+        final ByteArrayOutputStream read = new ByteArrayOutputStream();
+        reader.setCallback(new Transport.Callback() {
+            @Override
+            public void onFrameReceived(int stream, @NonNull byte[] frame) {
+                wheel.schedule(new TimerWheel.Timeout(() -> {
+                    BluetoothMessage subData = sender.getTransmittingSubData();
+                    if (subData != null) {
+                        read.write(subData.getData(), 0, subData.getDataLength());
+                        reader.writeAcknowledgement(stream, subData.getAcknowledgementData());
+                    }
+                }), 30);
+            }
+
+            @Override
+            public void onAcknowledgementReceived(int stream, @NonNull byte[] acknowledgement) {
+            }
+
+            @Override
+            public void onWriteCompleted(int stream, boolean success) {
+            }
+        });
+        LoopbackTransport.connect(sender.loopback, reader);
+        byte[] data = new byte[2000];
+        random.nextBytes(data);
+        sender.writeData(HEADER, data, SendQueue.PRIORITY_BULK, null);
+        advance(wheel.now() + 30000);
+        assertEquals(0, sender.getSendQueueLength());
+        byte[] expected = new byte[HEADER.length + data.length];
+        System.arraycopy(HEADER, 0, expected, 0, HEADER.length);
+        System.arraycopy(data, 0, expected, HEADER.length, data.length);
+        assertArrayEquals(expected, read.toByteArray());
+    }
+
+    private void writeSerially(final TestChannel sender, final int index, final int count) {
+        if (index == count) {
+            return;
+        }
+        sender.writeMessage(HEADER, getText(index).getBytes(StandardCharsets.UTF_8), SendQueue.PRIORITY_INTERACTIVE, new ProtocolChannel.MessageCallback() {
+            @Override
+            public void onMessageSent() {
+                writeSerially(sender, index + 1, count);
+            }
+        });
+    }
+
+    private static String getText(int index) {
+        // long enough to be split in more sub messages
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            text.append("message ").append(index).append(' ');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Advances the virtual time one millisecond at a time, so the events scheduled by the events run are run too.
+     */
+    private void advance(long until) {
+        for (long time = wheel.now() + 1; time <= until; time++) {
+            wheel.expire(time);
+        }
+    }
+
+    private class TestChannel extends ProtocolChannel {
+        private final LoopbackTransport loopback;
+        private final ArrayList<String> messages = new ArrayList<>();
+        private final ArrayList<byte[]> data = new ArrayList<>();
+
+        private TestChannel() {
+            this(new LoopbackTransport(link, wheel, random));
+        }
+
+        private TestChannel(LoopbackTransport loopback) {
+            super(new TimerWheelScheduler(wheel), wheel, loopback);
+            this.loopback = loopback;
+        }
+
+        @Override
+        protected void onMessageReceived(int stream, @NonNull String header, @NonNull byte[] data) {
+            assertEquals("m", header);
+            if (stream == Transport.MESSAGE) {
+                messages.add(new String(data, StandardCharsets.UTF_8));
+            } else {
+                this.data.add(data);
+            }
+        }
+    }
+}
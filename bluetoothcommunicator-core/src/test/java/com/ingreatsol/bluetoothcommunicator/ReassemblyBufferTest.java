@@ -0,0 +1,148 @@
+package com.ingreatsol.bluetoothcommunicator;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reassembly of the sub messages produced by BluetoothMessage.split, in order, out of order and with legacy headers.
+ */
+public class ReassemblyBufferTest {
+    @Test
+    public void inOrder_dataIsNotCopied() {
+        byte[] data = newData(2000);
+        ArrayList<BluetoothMessage> subMessages = receive("h", data, BluetoothMessage.VERSION);
+
+        ReassemblyBuffer buffer = new ReassemblyBuffer(subMessages.get(0));
+        for (int i = 0; i < subMessages.size(); i++) {
+            assertFalse(buffer.isCompleted());
+            assertTrue(buffer.add(subMessages.get(i)));
+            BluetoothMessage acknowledgement = buffer.getAcknowledgement();
+            assertNotNull(acknowledgement);
+            assertEquals(i, acknowledgement.getSequenceNumber().intValue());
+        }
+        assertTrue(buffer.isCompleted());
+
+        assertEquals("h", buffer.getHeader());
+        assertArrayEquals(data, buffer.getData());
+        // the data allocated from the length hint is handed over without copies
+        assertSame(buffer.getData(), buffer.getData());
+    }
+
+    @Test
+    public void outOfOrder_acknowledgesOnlyInOrder() {
+        byte[] data = newData(3000);
+        ArrayList<BluetoothMessage> subMessages = receive("è", data, BluetoothMessage.VERSION);
+        // the first sub message is received last
+        ArrayList<BluetoothMessage> shuffled = new ArrayList<>(subMessages.subList(1, subMessages.size()));
+        Collections.shuffle(shuffled, new Random(42));
+
+        ReassemblyBuffer buffer = new ReassemblyBuffer(shuffled.get(0));
+        for (int i = 0; i < shuffled.size(); i++) {
+            assertTrue(buffer.add(shuffled.get(i)));
+            // without the first sub message nothing can be confirmed
+            assertNull(buffer.getAcknowledgement());
+        }
+        assertFalse(buffer.add(shuffled.get(0)));
+        assertTrue(buffer.add(subMessages.get(0)));
+        assertTrue(buffer.isCompleted());
+        assertEquals(subMessages.size() - 1, buffer.getAcknowledgement().getSequenceNumber().intValue());
+
+        assertEquals("è", buffer.getHeader());
+        assertArrayEquals(data, buffer.getData());
+    }
+
+    @Test
+    public void legacyHeader_withoutLengthHint() {
+        byte[] data = newData(500);
+        ArrayList<BluetoothMessage> subMessages = receive("x", data, BluetoothMessage.LEGACY_VERSION);
+        assertEquals(-1, subMessages.get(0).getLengthHint());
+
+        ReassemblyBuffer buffer = new ReassemblyBuffer(subMessages.get(0));
+        for (BluetoothMessage subMessage : subMessages) {
+            assertTrue(buffer.add(subMessage));
+        }
+        assertEquals("x", buffer.getHeader());
+        assertArrayEquals(data, buffer.getData());
+        assertEquals(BluetoothMessage.LEGACY_VERSION, BluetoothMessage.getVersion(buffer.getAcknowledgement().getAcknowledgementData()));
+    }
+
+    @Test
+    public void undersizedHint_growsByDoubling() {
+        byte[] data = newData(100000);
+        ArrayList<BluetoothMessage> subMessages = receive("h", data, BluetoothMessage.VERSION, 10);
+
+        ReassemblyBuffer buffer = new ReassemblyBuffer(subMessages.get(0));
+        int reallocations = 0;
+        int capacity = buffer.getCapacity();
+        for (BluetoothMessage subMessage : subMessages) {
+            assertTrue(buffer.add(subMessage));
+            if (buffer.getCapacity() != capacity) {
+                capacity = buffer.getCapacity();
+                reallocations++;
+            }
+        }
+        // one reallocation for each doubling, not one for each of the ~530 sub messages
+        assertTrue(reallocations < 20);
+        assertArrayEquals(data, buffer.getData());
+    }
+
+    @Test
+    public void hugeHint_isNotAllocatedUpFront() {
+        byte[] data = newData(1000);
+        ArrayList<BluetoothMessage> subMessages = receive("h", data, BluetoothMessage.VERSION, 32 * 1024 * 1024);
+
+        ReassemblyBuffer buffer = new ReassemblyBuffer(subMessages.get(0));
+        assertTrue(buffer.add(subMessages.get(0)));
+        assertTrue(buffer.getCapacity() <= ReassemblyBuffer.MAX_INITIAL_CAPACITY);
+        for (int i = 1; i < subMessages.size(); i++) {
+            assertTrue(buffer.add(subMessages.get(i)));
+        }
+        assertArrayEquals(data, buffer.getData());
+    }
+
+    @Test
+    public void distantSubMessage_isRefused() {
+        byte[] data = newData(20000);
+        ArrayList<BluetoothMessage> subMessages = receive("h", data, BluetoothMessage.VERSION);
+        assertTrue(subMessages.size() > ReassemblyBuffer.MAX_SEQUENCE_NUMBER_DISTANCE + 1);
+
+        ReassemblyBuffer buffer = new ReassemblyBuffer(subMessages.get(0));
+        assertTrue(buffer.add(subMessages.get(0)));
+        assertFalse(buffer.add(subMessages.get(ReassemblyBuffer.MAX_SEQUENCE_NUMBER_DISTANCE + 2)));
+        assertTrue(buffer.add(subMessages.get(ReassemblyBuffer.MAX_SEQUENCE_NUMBER_DISTANCE)));
+    }
+
+    private static ArrayList<BluetoothMessage> receive(String header, byte[] data, int version) {
+        return receive(header, data, version, data.length);
+    }
+
+    /**
+     * @return the sub messages of header followed by data as they are parsed by the receiver
+     */
+    private static ArrayList<BluetoothMessage> receive(String header, byte[] data, int version, int lengthHint) {
+        ArrayList<BluetoothMessage> subMessages = new ArrayList<>();
+        for (BluetoothMessage subMessage : BluetoothMessage.split(header.getBytes(StandardCharsets.UTF_8), data,
+                new BluetoothMessage.SequenceNumber(3, BluetoothMessage.ID_LENGTH), 192)) {
+            subMessage.setVersion(version);
+            if (subMessage.getLengthHint() != -1) {
+                subMessage.setLengthHint(lengthHint);
+            }
+            BluetoothMessage received = BluetoothMessage.createFromBytes(subMessage.getCompleteData());
+            assertNotNull(received);
+            subMessages.add(received);
+        }
+        return subMessages;
+    }
+
+    private static byte[] newData(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,41 @@
+package com.ingreatsol.bluetoothcommunicator;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Limit and timeout of the partial messages of ReassemblyTable.
+ */
+public class ReassemblyTableTest {
+
+    @Test
+    public void limit_deletesTheLeastRecentlyUpdated() {
+        ReassemblyTable table = new ReassemblyTable(2, 1000);
+        ReassemblyBuffer first = table.get(newSubMessage(1), 0);
+        table.get(newSubMessage(2), 10);
+        assertSame(first, table.get(newSubMessage(1), 20));
+
+        table.get(newSubMessage(3), 30);
+        assertEquals(2, table.size());
+        assertNull(table.remove(2));
+        assertSame(first, table.remove(1));
+    }
+
+    @Test
+    public void timeout_deletesStaleMessages() {
+        ReassemblyTable table = new ReassemblyTable(8, 1000);
+        table.get(newSubMessage(1), 0);
+        table.get(newSubMessage(2), 500);
+        table.get(newSubMessage(3), 1200);
+        assertEquals(2, table.size());
+        assertNull(table.remove(1));
+    }
+
+    private static BluetoothMessage newSubMessage(int id) {
+        return new BluetoothMessage(
+                new BluetoothMessage.SequenceNumber(id, BluetoothMessage.ID_LENGTH),
+                new BluetoothMessage.SequenceNumber(0, BluetoothMessage.SEQUENCE_NUMBER_LENGTH),
+                BluetoothMessage.NON_FINAL, new byte[]{'a'});
+    }
+}
@@ -0,0 +1,34 @@
+package com.ingreatsol.bluetoothcommunicator;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Duplicate detection of ReceivedWindow.
+ */
+public class ReceivedWindowTest {
+
+    @Test
+    public void lastIds_areRemembered() {
+        ReceivedWindow window = new ReceivedWindow(4);
+        for (int id = 0; id < 6; id++) {
+            window.add(id, new byte[]{(byte) id});
+        }
+        assertNull(window.getAcknowledgement(1));
+        assertArrayEquals(new byte[]{2}, window.getAcknowledgement(2));
+        assertArrayEquals(new byte[]{5}, window.getAcknowledgement(5));
+        assertNull(window.getAcknowledgement(6));
+    }
+
+    @Test
+    public void ids_restartingFromZero_replaceTheOldOnes() {
+        ReceivedWindow window = new ReceivedWindow(ReceivedWindow.DEFAULT_SIZE);
+        int max = BluetoothMessage.SequenceNumber.MAX_VALUE;
+        window.add(max, new byte[]{1});
+        window.add(0, new byte[]{2});
+        assertArrayEquals(new byte[]{1}, window.getAcknowledgement(max));
+        assertArrayEquals(new byte[]{2}, window.getAcknowledgement(0));
+        assertNull(window.getAcknowledgement(ReceivedWindow.DEFAULT_SIZE));
+    }
+}
@@ -0,0 +1,56 @@
+package com.ingreatsol.bluetoothcommunicator;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Smoothed round trip time, variation and backoff of the retransmission timeout of RoundTripEstimator.
+ */
+public class RoundTripEstimatorTest {
+
+    @Test
+    public void timeout_followsTheMeasuredRoundTripTime() {
+        RoundTripEstimator estimator = new RoundTripEstimator(1000, 200, 8000, 20);
+        assertEquals(1000, estimator.getRetransmissionTimeout());
+        assertEquals(-1, estimator.getSmoothedRoundTripTime());
+
+        estimator.onRoundTripTimeMeasured(400);
+        // 400 + 4 * 200
+        assertEquals(1200, estimator.getRetransmissionTimeout());
+        for (int i = 0; i < 50; i++) {
+            estimator.onRoundTripTimeMeasured(400);
+        }
+        // without variation only the granularity of the timer is added, but the timeout is never below the minimum
+        assertEquals(400, estimator.getSmoothedRoundTripTime());
+        assertEquals(420, estimator.getRetransmissionTimeout());
+        RoundTripEstimator fast = new RoundTripEstimator(1000, 200, 8000, 20);
+        fast.onRoundTripTimeMeasured(10);
+        assertEquals(200, fast.getRetransmissionTimeout());
+    }
+
+    @Test
+    public void jitter_increasesTheTimeout() {
+        RoundTripEstimator estimator = new RoundTripEstimator(1000, 200, 8000, 20);
+        for (int i = 0; i < 20; i++) {
+            estimator.onRoundTripTimeMeasured(i % 2 == 0 ? 100 : 500);
+        }
+        assertTrue(estimator.getRoundTripTimeVariation() > 100);
+        assertTrue(estimator.getRetransmissionTimeout() > 500);
+    }
+
+    @Test
+    public void timeouts_doubleTheTimeoutUntilTheNextMeasure() {
+        RoundTripEstimator estimator = new RoundTripEstimator(1000, 200, 8000, 20);
+        estimator.onTimeout();
+        assertEquals(2000, estimator.getRetransmissionTimeout());
+        estimator.onTimeout();
+        assertEquals(4000, estimator.getRetransmissionTimeout());
+        estimator.onTimeout();
+        estimator.onTimeout();
+        assertEquals(8000, estimator.getRetransmissionTimeout());
+        estimator.onRoundTripTimeMeasured(300);
+        assertEquals(0, estimator.getBackoff());
+        assertEquals(900, estimator.getRetransmissionTimeout());
+    }
+}
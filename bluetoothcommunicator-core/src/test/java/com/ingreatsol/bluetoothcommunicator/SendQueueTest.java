@@ -0,0 +1,133 @@
+package com.ingreatsol.bluetoothcommunicator;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Interleaving of the messages being sent at the same time by SendQueue and routing of their acknowledgements.
+ */
+public class SendQueueTest {
+    private static final int SUB_MESSAGES_LENGTH = 32;
+    private static final int WINDOW_SIZE = 16;
+    private static final byte[] HEADER = {'a'};
+    private final ArrayList<String> sent = new ArrayList<>();
+
+    @Test
+    public void shortMessage_isInterleavedWithALongOne() {
+        SendQueue queue = new SendQueue(4, 2);
+        add(queue, 1000, SendQueue.PRIORITY_INTERACTIVE, newCallback("long"), 0);
+        add(queue, 10, SendQueue.PRIORITY_INTERACTIVE, newCallback("short"), 0);
+        assertNotNull(queue.activateNext(SUB_MESSAGES_LENGTH, WINDOW_SIZE, BluetoothMessage.VERSION));
+        assertNotNull(queue.activateNext(SUB_MESSAGES_LENGTH, WINDOW_SIZE, BluetoothMessage.VERSION));
+        assertNull(queue.activateNext(SUB_MESSAGES_LENGTH, WINDOW_SIZE, BluetoothMessage.VERSION));
+
+        // a burst of 2 sub messages of the long message, then the short message
+        assertEquals(0, send(queue));
+        assertEquals(0, send(queue));
+        assertEquals(1, send(queue));
+        assertEquals(0, send(queue));
+
+        assertTrue(queue.acknowledge(1, 0, 0) >= 0);
+        SendQueue.Entry completed = queue.pollCompleted();
+        assertNotNull(completed);
+        completed.getCallback().onMessageSent();
+        assertEquals("short", sent.get(0));
+        assertNull(queue.pollCompleted());
+        assertEquals(1, queue.size());
+        // the acknowledgements of the other message don't confirm anything of the completed one
+        assertEquals(-1, queue.acknowledge(1, 0, 0));
+    }
+
+    @Test
+    public void windowSize_isSharedByTheMessages() {
+        SendQueue queue = new SendQueue(4, 1);
+        add(queue, 200, SendQueue.PRIORITY_INTERACTIVE, null, 0);
+        add(queue, 200, SendQueue.PRIORITY_INTERACTIVE, null, 0);
+        queue.activateNext(SUB_MESSAGES_LENGTH, 3, BluetoothMessage.VERSION);
+        queue.activateNext(SUB_MESSAGES_LENGTH, 3, BluetoothMessage.VERSION);
+        send(queue);
+        send(queue);
+        send(queue);
+        assertEquals(3, queue.getInFlightCount());
+        assertNull(queue.peekNext(3));
+
+        queue.rewind();
+        assertFalse(queue.hasInFlight());
+        assertNotNull(queue.peekNext(3));
+    }
+
+    @Test
+    public void clear_returnsTheCallbacksOfActiveAndQueuedMessages() {
+        SendQueue queue = new SendQueue(1, 1);
+        add(queue, 10, SendQueue.PRIORITY_INTERACTIVE, newCallback("first"), 5);
+        add(queue, 10, SendQueue.PRIORITY_INTERACTIVE, newCallback("second"), 7);
+        queue.activateNext(SUB_MESSAGES_LENGTH, WINDOW_SIZE, BluetoothMessage.VERSION);
+        assertEquals(5, queue.getOldestQueueTime());
+        for (ProtocolChannel.MessageCallback callback : queue.clear()) {
+            callback.onMessageSent();
+        }
+        assertEquals(2, sent.size());
+        assertEquals("first", sent.get(0));
+        assertTrue(queue.isEmpty());
+        assertEquals(-1, queue.getOldestQueueTime());
+    }
+
+    @Test
+    public void urgentMessage_goesAheadOfABulkTransfer() {
+        SendQueue queue = new SendQueue(1, 1);
+        add(queue, 1000, SendQueue.PRIORITY_BULK, null, 0);
+        queue.activateNext(SUB_MESSAGES_LENGTH, WINDOW_SIZE, BluetoothMessage.VERSION);
+        assertEquals(0, send(queue));
+
+        // the bulk message fills the active messages of its priority, but not of the more urgent ones
+        add(queue, 1000, SendQueue.PRIORITY_BULK, null, 0);
+        add(queue, 100, SendQueue.PRIORITY_CONTROL, null, 0);
+        assertEquals(SendQueue.PRIORITY_CONTROL, queue.activateNext(SUB_MESSAGES_LENGTH, WINDOW_SIZE, BluetoothMessage.VERSION).getPriority());
+        assertNull(queue.activateNext(SUB_MESSAGES_LENGTH, WINDOW_SIZE, BluetoothMessage.VERSION));
+        assertEquals(1, send(queue));
+    }
+
+    @Test
+    public void bulkTransfer_isNotStarved() {
+        SendQueue queue = new SendQueue(4, 1);
+        add(queue, 1000, SendQueue.PRIORITY_BULK, null, 0);
+        add(queue, 1000, SendQueue.PRIORITY_CONTROL, null, 0);
+        // the control message is started first, so it has id 0
+        assertEquals(SendQueue.PRIORITY_CONTROL, queue.activateNext(SUB_MESSAGES_LENGTH, WINDOW_SIZE, BluetoothMessage.VERSION).getPriority());
+        queue.activateNext(SUB_MESSAGES_LENGTH, WINDOW_SIZE, BluetoothMessage.VERSION);
+        int bulk = 0;
+        for (int i = 0; i < 18; i++) {
+            int id = send(queue);
+            // the acknowledgements keep the window open
+            assertTrue(queue.acknowledge(id, queue.peekLastSent().getSequenceNumber().intValue(), 0) >= 0);
+            if (id == 1) {
+                bulk++;
+            }
+        }
+        // 8 sub messages of the control message for each one of the bulk message
+        assertEquals(2, bulk);
+    }
+
+    private static int send(SendQueue queue) {
+        BluetoothMessage subMessage = queue.peekNext(WINDOW_SIZE);
+        assertNotNull(subMessage);
+        queue.onSent(subMessage, 0);
+        return subMessage.getId().intValue();
+    }
+
+    private static void add(SendQueue queue, int length, int priority, ProtocolChannel.MessageCallback callback, long queueTime) {
+        queue.add(HEADER, new byte[length], priority, callback, queueTime);
+    }
+
+    private ProtocolChannel.MessageCallback newCallback(final String name) {
+        return new ProtocolChannel.MessageCallback() {
+            @Override
+            public void onMessageSent() {
+                sent.add(name);
+            }
+        };
+    }
+}
@@ -0,0 +1,73 @@
+package com.ingreatsol.bluetoothcommunicator;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+
+import static org.junit.Assert.*;
+
+/**
+ * Window limit, cumulative acknowledgements and go-back-N of SendWindow.
+ */
+public class SendWindowTest {
+
+    @Test
+    public void window_limitsSubMessagesInFlight() {
+        SendWindow window = new SendWindow(newSubMessages(7, 5), 2);
+        send(window, 0, 0);
+        send(window, 1, 0);
+        assertNull(window.peekNext());
+        assertEquals(1, window.peekLastSent().getSequenceNumber().intValue());
+
+        // the acknowledgement of the second sub message confirms the first one too
+        assertEquals(30, window.acknowledge(7, 1, 30));
+        assertFalse(window.hasInFlight());
+        assertEquals(2, window.peekNext().getSequenceNumber().intValue());
+    }
+
+    @Test
+    public void acknowledgement_ofOtherMessagesOrRepeated_isIgnored() {
+        SendWindow window = new SendWindow(newSubMessages(7, 3), 4);
+        send(window, 0, 0);
+        assertEquals(-1, window.acknowledge(8, 0, 10));
+        assertEquals(10, window.acknowledge(7, 0, 10));
+        assertEquals(-1, window.acknowledge(7, 0, 20));
+    }
+
+    @Test
+    public void rewind_sendsAgainAllTheSubMessagesInFlight() {
+        SendWindow window = new SendWindow(newSubMessages(7, 3), 4);
+        send(window, 0, 0);
+        send(window, 1, 0);
+        send(window, 2, 0);
+        window.rewind();
+        assertFalse(window.hasInFlight());
+        assertEquals(0, window.peekNext().getSequenceNumber().intValue());
+
+        send(window, 0, 100);
+        // the round trip time of a retransmitted sub message is ambiguous
+        assertEquals(0, window.acknowledge(7, 0, 150));
+        // a late acknowledgement also confirms the rewound sub messages not yet sent again
+        assertEquals(0, window.acknowledge(7, 2, 160));
+        assertTrue(window.isCompleted());
+    }
+
+    private static void send(SendWindow window, int expectedSequenceNumber, long time) {
+        BluetoothMessage subMessage = window.peekNext();
+        assertNotNull(subMessage);
+        assertEquals(expectedSequenceNumber, subMessage.getSequenceNumber().intValue());
+        window.onSent(subMessage, time);
+    }
+
+    private static ArrayDeque<BluetoothMessage> newSubMessages(int id, int count) {
+        ArrayDeque<BluetoothMessage> subMessages = new ArrayDeque<>();
+        for (int i = 0; i < count; i++) {
+            subMessages.addLast(new BluetoothMessage(
+                    new BluetoothMessage.SequenceNumber(id, BluetoothMessage.ID_LENGTH),
+                    new BluetoothMessage.SequenceNumber(i, BluetoothMessage.SEQUENCE_NUMBER_LENGTH),
+                    i == count - 1 ? BluetoothMessage.FINAL : BluetoothMessage.NON_FINAL,
+                    new byte[]{(byte) i}));
+        }
+        return subMessages;
+    }
+}
@@ -0,0 +1,115 @@
+package com.ingreatsol.bluetoothcommunicator;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Scheduling, rescheduling and cancellation of the timeouts of TimerWheel (advanced by hand, without ticker).
+ */
+public class TimerWheelTest {
+    private static final int TICK = 10;
+    private final ArrayList<String> runs = new ArrayList<>();
+
+    @Test
+    public void timeout_runsAtItsDeadlineNotBefore() {
+        TimerWheel wheel = new TimerWheel(null, TICK, 8, 0);
+        TimerWheel.Timeout timeout = newTimeout("a");
+        wheel.schedule(timeout, 25, 0);
+        assertTrue(timeout.isScheduled());
+        assertEquals(0, wheel.expire(29));
+        assertEquals(1, wheel.expire(30));
+        assertFalse(timeout.isScheduled());
+        assertEquals(1, runs.size());
+    }
+
+    @Test
+    public void timeout_longerThanARound_waitsForItsRound() {
+        TimerWheel wheel = new TimerWheel(null, TICK, 8, 0);
+        TimerWheel.Timeout timeout = newTimeout("a");
+        wheel.schedule(timeout, 100, 0);
+        assertEquals(0, wheel.expire(50));
+        assertEquals(0, wheel.expire(90));
+        // a late expire runs it even if some ticks were never visited
+        assertEquals(1, wheel.expire(1000));
+    }
+
+    @Test
+    public void reschedule_andCancel() {
+        TimerWheel wheel = new TimerWheel(null, TICK, 8, 0);
+        TimerWheel.Timeout a = newTimeout("a");
+        TimerWheel.Timeout b = newTimeout("b");
+        TimerWheel.Timeout c = newTimeout("c");
+        wheel.schedule(a, 20, 0);
+        wheel.schedule(b, 20, 0);
+        wheel.schedule(c, 20, 0);
+        // same bucket, c is unlinked from the middle of the list after the rescheduling of a
+        wheel.schedule(a, 60, 0);
+        assertTrue(wheel.cancel(c));
+        assertFalse(wheel.cancel(c));
+        assertEquals(1, wheel.expire(20));
+        assertEquals(1, wheel.expire(60));
+        assertEquals("b", runs.get(0));
+        assertEquals("a", runs.get(1));
+    }
+
+    @Test
+    public void timeout_canBeScheduledAgainByItsTask() {
+        final TimerWheel wheel = new TimerWheel(null, TICK, 8, 0);
+        final TimerWheel.Timeout[] timeout = new TimerWheel.Timeout[1];
+        timeout[0] = new TimerWheel.Timeout(() -> {
+            runs.add("a");
+            if (runs.size() < 3) {
+                wheel.schedule(timeout[0], 10, runs.size() * 10);
+            }
+        });
+        wheel.schedule(timeout[0], 10, 0);
+        wheel.expire(10);
+        wheel.expire(20);
+        wheel.expire(30);
+        wheel.expire(40);
+        assertEquals(3, runs.size());
+        assertFalse(timeout[0].isScheduled());
+    }
+
+    @Test
+    public void timeouts_runInOrderOfDeadlineAndThenOfScheduling() {
+        TimerWheel wheel = new TimerWheel(null, TICK, 8, 0);
+        wheel.schedule(newTimeout("c"), 30, 0);
+        wheel.schedule(newTimeout("a"), 10, 0);
+        wheel.schedule(newTimeout("b"), 10, 0);
+        wheel.schedule(newTimeout("d"), 30, 0);
+        assertEquals(4, wheel.expire(50));
+        assertEquals(Arrays.asList("a", "b", "c", "d"), runs);
+    }
+
+    @Test
+    public void timeout_scheduledAgainOrCanceledByAnEarlierTaskOfTheSameExpire_doesNotRunNow() {
+        final TimerWheel wheel = new TimerWheel(null, TICK, 8, 0);
+        final TimerWheel.Timeout b = newTimeout("b");
+        final TimerWheel.Timeout c = newTimeout("c");
+        TimerWheel.Timeout d = newTimeout("d");
+        wheel.schedule(new TimerWheel.Timeout(() -> {
+            runs.add("a");
+            wheel.schedule(b, 20);
+            assertTrue(wheel.cancel(c));
+        }), 10, 0);
+        wheel.schedule(b, 10, 0);
+        wheel.schedule(c, 10, 0);
+        // d is in the bucket where b is scheduled again, it must stay linked
+        wheel.schedule(d, 30, 0);
+        assertEquals(1, wheel.expire(10));
+        assertEquals(Arrays.asList("a"), runs);
+        assertTrue(b.isScheduled());
+        assertEquals(2, wheel.expire(30));
+        assertEquals(Arrays.asList("a", "d", "b"), runs);
+        assertEquals(0, wheel.expire(100));
+    }
+
+    private TimerWheel.Timeout newTimeout(final String name) {
+        return new TimerWheel.Timeout(() -> runs.add(name));
+    }
+}
@@ -43,6 +43,8 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 
 /**
  * This class allows you to communicate in P2P mode between two or more android devices.
@@ -259,6 +261,9 @@ public class BluetoothCommunicator {
     private boolean destroying = false;
     private final int strategy;
     private final String uniqueName;
+    private int sendWindowSize = Channel.DEFAULT_SEND_WINDOW_SIZE;
+    private boolean globalOrdering = false;
+    private boolean bulkTransfer = false;
     private ArrayDeque<Message> pendingMessages = new ArrayDeque<>();
     private ArrayDeque<Message> pendingData = new ArrayDeque<>();
     // objects
@@ -270,11 +275,19 @@ public class BluetoothCommunicator {
     private BluetoothConnectionServer connectionServer;
     @Nullable
     private BluetoothConnectionClient connectionClient;
-    private final ArrayList<Callback> clientCallbacks = new ArrayList<>();
+    private final CopyOnWriteArrayList<Callback> clientCallbacks = new CopyOnWriteArrayList<>();
     private final Handler mainHandler;
+    // the events of the connections are processed on their protocol threads and delivered to the callbacks with this executor
+    private volatile Executor callbackExecutor;
     private final AdvertiseCallback advertiseCallback;
     private final ScanCallback discoveryCallback;
     private final Object messagesLock = new Object();
+    // used when the messages are sent without global ordering, nothing waits for their sending
+    private final Channel.MessageCallback ignoredMessageCallback = new Channel.MessageCallback() {
+        @Override
+        public void onMessageSent() {
+        }
+    };
     private final Object dataLock = new Object();
     private final Object bluetoothLock = new Object();
     ParcelUuid uuidService = new ParcelUuid(BluetoothConnection.APP_UUID);
@@ -289,6 +302,7 @@ public class BluetoothCommunicator {
         this.strategy = STRATEGY_P2P_WITH_RECONNECTION;
         this.uniqueName = BluetoothTools.generateBluetoothNameId(context);
         mainHandler = new Handler(Looper.getMainLooper());
+        callbackExecutor = mainHandler::post;
 
         advertiseCallback = new AdvertiseCallback() {
             @Override
@@ -389,6 +403,16 @@ public class BluetoothCommunicator {
                 })
                 public void onConnectionLost(Peer peer) {
                     super.onConnectionLost(peer);
+                    // advertising and discovery are managed on the main thread
+                    mainHandler.post(() -> onMainConnectionLost(peer));
+                }
+
+                @RequiresPermission(allOf = {
+                        "android.permission.BLUETOOTH_ADVERTISE",
+                        "android.permission.BLUETOOTH_CONNECT",
+                        "android.permission.BLUETOOTH_SCAN"
+                })
+                private void onMainConnectionLost(Peer peer) {
                     synchronized (BluetoothCommunicator.this) {
                         if (connectionServer != null && connectionClient != null) {
                             if (connectionServer.getReconnectingPeers().size() > 0 && !advertising) {
@@ -421,6 +445,15 @@ public class BluetoothCommunicator {
                 })
                 public void onConnectionResumed(Peer peer) {
                     super.onConnectionResumed(peer);
+                    mainHandler.post(() -> onMainConnectionResumed(peer));
+                }
+
+                @RequiresPermission(allOf = {
+                        "android.permission.BLUETOOTH_ADVERTISE",
+                        "android.permission.BLUETOOTH_CONNECT",
+                        "android.permission.BLUETOOTH_SCAN"
+                })
+                private void onMainConnectionResumed(Peer peer) {
                     synchronized (BluetoothCommunicator.this) {
                         if (connectionServer != null && connectionClient != null) {
                             if (connectionServer.getReconnectingPeers().size() == 0 && !advertising) {
@@ -460,6 +493,15 @@ public class BluetoothCommunicator {
                 })
                 public void onDisconnected(Peer peer) {
                     super.onDisconnected(peer);
+                    mainHandler.post(() -> onMainDisconnected(peer));
+                }
+
+                @RequiresPermission(allOf = {
+                        "android.permission.BLUETOOTH_ADVERTISE",
+                        "android.permission.BLUETOOTH_CONNECT",
+                        "android.permission.BLUETOOTH_SCAN"
+                })
+                private void onMainDisconnected(Peer peer) {
                     if (connectionServer != null && connectionClient != null) {
                         int peersLeft = connectionServer.getConnectedPeers().size() + connectionClient.getConnectedPeers().size();
                         if (connectionServer.getReconnectingPeers().size() == 0 && !advertising) {
@@ -489,6 +531,9 @@ public class BluetoothCommunicator {
             connectionClient = new BluetoothConnectionClient(context, uniqueName, bluetoothAdapter, strategy, connectionCallback);
             // we create a server that will take care of receiving any connection requests and managing those connections
             connectionServer = new BluetoothConnectionServer(context, uniqueName, bluetoothAdapter, strategy, connectionClient, connectionCallback);
+            connectionClient.setSendWindowSize(sendWindowSize);
+            connectionServer.setSendWindowSize(sendWindowSize);
+            connectionClient.setBulkTransfer(bulkTransfer);
         }
     }
 
@@ -826,9 +871,15 @@ public class BluetoothCommunicator {
     public void sendMessage(final Message message) {
         mainHandler.post(() -> {
             synchronized (messagesLock) {
-                pendingMessages.addLast(message);
-                if (pendingMessages.size() == 1) {  // if it is true then we are not writing any messages
-                    sendMessage();
+                if (globalOrdering || !pendingMessages.isEmpty()) {  // if global ordering has just been disabled the queued messages are sent first
+                    pendingMessages.addLast(message);
+                    if (pendingMessages.size() == 1) {  // if it is true then we are not writing any messages
+                        sendMessage();
+                    }
+                } else if (connectionClient != null && connectionServer != null) {
+                    // the message is added to the queue of each channel, so a slow peer doesn't delay the others
+                    connectionClient.sendMessage(message, ignoredMessageCallback);
+                    connectionServer.sendMessage(message, ignoredMessageCallback);
                 }
             }
         });
@@ -838,18 +889,21 @@ public class BluetoothCommunicator {
         if (connectionClient != null && connectionServer != null) {
             final Message message = pendingMessages.peekFirst();
             if (message != null) {
-                connectionClient.sendMessage(message, new Channel.MessageCallback() {
+                // the client and server channels send the message at the same time
+                Channel.MessageCallback messageCallback = new Channel.MultipleMessageCallback(2, new Channel.MessageCallback() {
                     @Override
-                    public void onMessageSent() {
-                        connectionServer.sendMessage(message, new Channel.MessageCallback() {
-                            @Override
-                            public void onMessageSent() {   // means that we have sent the message to all the client and server channels
+                    public void onMessageSent() {   // means that we have sent the message to all the client and server channels
+                        // the channels notify it on their protocol thread, the queue is managed on the main thread
+                        mainHandler.post(() -> {
+                            synchronized (messagesLock) {
                                 pendingMessages.pollFirst();  // remove the newly sent ConversationMessage
                                 sendMessage();  // send any other messages
                             }
                         });
                     }
                 });
+                connectionClient.sendMessage(message, messageCallback);
+                connectionServer.sendMessage(message, messageCallback);
             }
         }
     }
@@ -863,9 +917,15 @@ public class BluetoothCommunicator {
     public void sendData(final Message data) {
         mainHandler.post(() -> {
             synchronized (dataLock) {
-                pendingData.addLast(data);
-                if (pendingData.size() == 1) {  // if it is true then we are not writing any messages
-                    sendData();
+                if (globalOrdering || !pendingData.isEmpty()) {  // if global ordering has just been disabled the queued data are sent first
+                    pendingData.addLast(data);
+                    if (pendingData.size() == 1) {  // if it is true then we are not writing any messages
+                        sendData();
+                    }
+                } else if (connectionClient != null && connectionServer != null) {
+                    // the data is added to the queue of each channel, so a slow peer doesn't delay the others
+                    connectionClient.sendData(data, ignoredMessageCallback);
+                    connectionServer.sendData(data, ignoredMessageCallback);
                 }
             }
         });
@@ -875,18 +935,20 @@ public class BluetoothCommunicator {
         if (connectionClient != null && connectionServer != null) {
             final Message data = pendingData.peekFirst();
             if (data != null) {
-                connectionClient.sendData(data, new Channel.MessageCallback() {
+                // the client and server channels send the data at the same time
+                Channel.MessageCallback dataCallback = new Channel.MultipleMessageCallback(2, new Channel.MessageCallback() {
                     @Override
-                    public void onMessageSent() {
-                        connectionServer.sendData(data, new Channel.MessageCallback() {
-                            @Override
-                            public void onMessageSent() {   // means that we have sent the message to all the client and server channels
+                    public void onMessageSent() {   // means that we have sent the message to all the client and server channels
+                        mainHandler.post(() -> {
+                            synchronized (dataLock) {
                                 pendingData.pollFirst();  // remove the newly sent ConversationMessage
                                 sendData();  // send any other messages
                             }
                         });
                     }
                 });
+                connectionClient.sendData(data, dataCallback);
+                connectionServer.sendData(data, dataCallback);
             }
         }
     }
@@ -1024,6 +1086,205 @@ public class BluetoothCommunicator {
         return SUCCESS;
     }
 
+    /**
+     * This method sets how many parts of a message can be sent to each peer before receiving the confirmation of the first one
+     * (the default is 4), a bigger window increases the speed of long messages but a part lost causes the sending of all the following ones again.
+     * With 1 each part is sent only after the confirmation of the previous one.
+     * <br /><br />
+     * The window applies to the peers connected to us as clients (the parts are sent as indications): the parts sent to the peers
+     * that accepted our connection request are confirmed one at a time by the bluetooth response, except the data in bulk transfer.
+     *
+     * @param sendWindowSize number of parts of a message that can wait for their confirmation at the same time (at least 1)
+     */
+    public void setSendWindowSize(int sendWindowSize) {
+        this.sendWindowSize = Math.max(sendWindowSize, 1);
+        if (connectionClient != null) {
+            connectionClient.setSendWindowSize(this.sendWindowSize);
+        }
+        if (connectionServer != null) {
+            connectionServer.setSendWindowSize(this.sendWindowSize);
+        }
+    }
+
+    /**
+     * This method enables the bulk transfer of the data sent to the peers to which we are connected as client (the peers that accepted our connection request).
+     * In bulk transfer each part of a data is sent without waiting for the bluetooth response, and the peer confirms the received parts every few parts,
+     * this is much faster for big or frequent data (like batches of sensor readings). Peers with older versions of the library keep using the normal transfer.
+     *
+     * @param bulkTransfer true to enable the bulk transfer of data (default false)
+     */
+    public void setBulkTransfer(boolean bulkTransfer) {
+        this.bulkTransfer = bulkTransfer;
+        if (connectionClient != null) {
+            connectionClient.setBulkTransfer(bulkTransfer);
+        }
+    }
+
+    /**
+     * This method sets whether messages (and data) must be sent in the same order to all the peers. Each peer always receives the messages in the order
+     * in which they are sent, but by default each peer has its own queue, so a slow (or reconnecting) peer doesn't delay the messages to the others.
+     * With global ordering a message is sent only after the previous one has been sent to all the peers.
+     *
+     * @param globalOrdering true to send each message only after the previous one has been sent to all the peers (default false)
+     */
+    public void setGlobalOrdering(boolean globalOrdering) {
+        mainHandler.post(() -> this.globalOrdering = globalOrdering);
+    }
+
+    /**
+     * This method returns the number of messages and data that are waiting to be sent (or are being sent) to peer.
+     *
+     * @param peer connected peer
+     * @return the length of the send queue of peer, or 0 if peer is not connected
+     */
+    public int getSendQueueLength(@NonNull Peer peer) {
+        int queueLength = 0;
+        if (connectionClient != null) {
+            queueLength += connectionClient.getSendQueueLength(peer);
+        }
+        if (connectionServer != null) {
+            queueLength += connectionServer.getSendQueueLength(peer);
+        }
+        return queueLength;
+    }
+
+    /**
+     * This method returns how long the oldest message (or data) not yet sent to peer has been waiting.
+     *
+     * @param peer connected peer
+     * @return the age of the send queue of peer in milliseconds, or 0 if it is empty
+     */
+    public long getSendQueueAge(@NonNull Peer peer) {
+        long queueAge = 0;
+        if (connectionClient != null) {
+            queueAge = Math.max(queueAge, connectionClient.getSendQueueAge(peer));
+        }
+        if (connectionServer != null) {
+            queueAge = Math.max(queueAge, connectionServer.getSendQueueAge(peer));
+        }
+        return queueAge;
+    }
+
+    /**
+     * This method returns the time after which the parts of a message sent to peer are sent again if they are not confirmed,
+     * it adapts to the measured round trip time of the confirmations and doubles after each consecutive loss.
+     *
+     * @param peer connected peer
+     * @return the retransmission timeout in milliseconds, or -1 if peer is not connected
+     */
+    public long getRetransmissionTimeout(@NonNull Peer peer) {
+        long timeout = -1;
+        if (connectionClient != null) {
+            timeout = Math.max(timeout, connectionClient.getRetransmissionTimeout(peer));
+        }
+        if (connectionServer != null) {
+            timeout = Math.max(timeout, connectionServer.getRetransmissionTimeout(peer));
+        }
+        return timeout;
+    }
+
+    /**
+     * This method returns the smoothed time between the sending of a part of a message to peer and the arrival of its confirmation.
+     *
+     * @param peer connected peer
+     * @return the smoothed round trip time in milliseconds, or -1 if it is not yet measured
+     */
+    public long getSmoothedRoundTripTime(@NonNull Peer peer) {
+        long roundTripTime = -1;
+        if (connectionClient != null) {
+            roundTripTime = Math.max(roundTripTime, connectionClient.getSmoothedRoundTripTime(peer));
+        }
+        if (connectionServer != null) {
+            roundTripTime = Math.max(roundTripTime, connectionServer.getSmoothedRoundTripTime(peer));
+        }
+        return roundTripTime;
+    }
+
+    /**
+     * This method returns how many times the parts of the messages sent to peer have been sent again because they were lost.
+     *
+     * @param peer connected peer
+     * @return the number of retransmissions to peer
+     */
+    public long getRetransmissionCount(@NonNull Peer peer) {
+        long count = 0;
+        if (connectionClient != null) {
+            count += connectionClient.getRetransmissionCount(peer);
+        }
+        if (connectionServer != null) {
+            count += connectionServer.getRetransmissionCount(peer);
+        }
+        return count;
+    }
+
+    /**
+     * This method returns how many parts of messages (and of data) have been written to peer.
+     *
+     * @param peer connected peer
+     * @return the number of parts written to peer, or 0 if peer is not connected
+     */
+    public long getWrittenFrameCount(@NonNull Peer peer) {
+        long count = 0;
+        if (connectionClient != null) {
+            count += connectionClient.getWrittenFrameCount(peer);
+        }
+        if (connectionServer != null) {
+            count += connectionServer.getWrittenFrameCount(peer);
+        }
+        return count;
+    }
+
+    /**
+     * This method returns how many buffers have been allocated to write the parts of messages (and of data) to peer, the buffers are reused,
+     * so during a long transfer this number stays almost still while getWrittenFrameCount grows.
+     *
+     * @param peer connected peer
+     * @return the number of buffers allocated for peer, or 0 if peer is not connected
+     */
+    public long getAllocatedFrameCount(@NonNull Peer peer) {
+        long count = 0;
+        if (connectionClient != null) {
+            count += connectionClient.getAllocatedFrameCount(peer);
+        }
+        if (connectionServer != null) {
+            count += connectionServer.getAllocatedFrameCount(peer);
+        }
+        return count;
+    }
+
+    /**
+     * This method returns the number of bluetooth operations (sending of parts of messages and of their confirmations) that are waiting to be executed,
+     * the operations of each peer are executed one at a time, so a long queue means that the connection is saturated.
+     *
+     * @return the number of queued operations of all the connected peers
+     */
+    public int getGattQueueDepth() {
+        int queueDepth = 0;
+        if (connectionClient != null) {
+            queueDepth += connectionClient.getGattQueueDepth();
+        }
+        if (connectionServer != null) {
+            queueDepth += connectionServer.getGattQueueDepth();
+        }
+        return queueDepth;
+    }
+
+    /**
+     * This method returns the average time that a bluetooth operation waits in the queue before being executed.
+     *
+     * @return the average wait time in milliseconds (the highest between the client and the server connections)
+     */
+    public long getGattAverageWaitTime() {
+        long waitTime = 0;
+        if (connectionClient != null) {
+            waitTime = Math.max(waitTime, connectionClient.getGattAverageWaitTime());
+        }
+        if (connectionServer != null) {
+            waitTime = Math.max(waitTime, connectionServer.getGattAverageWaitTime());
+        }
+        return waitTime;
+    }
+
     /**
      * This method return the bluetooth adapter used by BluetoothCommunicator
      *
@@ -1097,6 +1358,17 @@ public class BluetoothCommunicator {
     }
 
 
+    /**
+     * Sets the executor used to notify the callbacks of the events of the connections (peers found, connections, messages received, disconnections...),
+     * by default they are notified on the main thread. The GATT callbacks and the transfers are always processed on a background thread of each
+     * connection, so a slow executor doesn't slow down the transfers.
+     *
+     * @param callbackExecutor executor used to notify the events, for example Executors.newSingleThreadExecutor() to handle them outside the main thread
+     */
+    public void setCallbackExecutor(@NonNull Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor;
+    }
+
     /**
      * With this method you can add the callback for listening all the events of BluetoothCommunicator
      *
@@ -1141,7 +1413,7 @@ public class BluetoothCommunicator {
     }
 
     private void notifyPeerFound(final Peer peer) {
-        mainHandler.post(() -> {
+        callbackExecutor.execute(() -> {
             for (int i = 0; i < clientCallbacks.size(); i++) {
                 clientCallbacks.get(i).onPeerFound(peer);
             }
@@ -1149,7 +1421,7 @@ public class BluetoothCommunicator {
     }
 
     private void notifyPeerLost(final Peer peer) {
-        mainHandler.post(() -> {
+        callbackExecutor.execute(() -> {
             for (int i = 0; i < clientCallbacks.size(); i++) {
                 clientCallbacks.get(i).onPeerLost(peer);
             }
@@ -1157,7 +1429,7 @@ public class BluetoothCommunicator {
     }
 
     private void notifyConnectionRequest(final Peer peer) {
-        mainHandler.post(() -> {
+        callbackExecutor.execute(() -> {
             for (int i = 0; i < clientCallbacks.size(); i++) {
                 clientCallbacks.get(i).onConnectionRequest(peer);
             }
@@ -1165,7 +1437,7 @@ public class BluetoothCommunicator {
     }
 
     private void notifyConnectionSuccess(final Peer peer, final int source) {
-        mainHandler.post(() -> {
+        callbackExecutor.execute(() -> {
             for (int i = 0; i < clientCallbacks.size(); i++) {
                 clientCallbacks.get(i).onConnectionSuccess(peer, source);
             }
@@ -1173,7 +1445,7 @@ public class BluetoothCommunicator {
     }
 
     private void notifyConnectionFailed(final Peer peer, final int errorCode) {
-        mainHandler.post(() -> {
+        callbackExecutor.execute(() -> {
             for (int i = 0; i < clientCallbacks.size(); i++) {
                 clientCallbacks.get(i).onConnectionFailed(peer, errorCode);
             }
@@ -1181,7 +1453,7 @@ public class BluetoothCommunicator {
     }
 
     private void notifyConnectionResumed(final Peer peer) {
-        mainHandler.post(() -> {
+        callbackExecutor.execute(() -> {
             for (int i = 0; i < clientCallbacks.size(); i++) {
                 clientCallbacks.get(i).onConnectionResumed(peer);
             }
@@ -1189,7 +1461,7 @@ public class BluetoothCommunicator {
     }
 
     private void notifyConnectionLost(final Peer peer) {
-        mainHandler.post(() -> {
+        callbackExecutor.execute(() -> {
             for (int i = 0; i < clientCallbacks.size(); i++) {
                 clientCallbacks.get(i).onConnectionLost(peer);
             }
@@ -1197,7 +1469,7 @@ public class BluetoothCommunicator {
     }
 
     private void notifyMessageReceived(final Message message, final int source) {
-        mainHandler.post(() -> {
+        callbackExecutor.execute(() -> {
             for (int i = 0; i < clientCallbacks.size(); i++) {
                 clientCallbacks.get(i).onMessageReceived(message, source);
             }
@@ -1205,7 +1477,7 @@ public class BluetoothCommunicator {
     }
 
     private void notifyDataReceived(final Message data, final int source) {
-        mainHandler.post(() -> {
+        callbackExecutor.execute(() -> {
             for (int i = 0; i < clientCallbacks.size(); i++) {
                 clientCallbacks.get(i).onDataReceived(data, source);
             }
@@ -1213,7 +1485,7 @@ public class BluetoothCommunicator {
     }
 
     private void notifyPeerUpdated(final Peer peer, final Peer newPeer) {
-        mainHandler.post(() -> {
+        callbackExecutor.execute(() -> {
             for (int i = 0; i < clientCallbacks.size(); i++) {
                 clientCallbacks.get(i).onPeerUpdated(peer, newPeer);
             }
@@ -1221,7 +1493,7 @@ public class BluetoothCommunicator {
     }
 
     private void notifyDisconnection(final Peer peer, final int peersLeft) {
-        mainHandler.post(() -> {
+        callbackExecutor.execute(() -> {
             for (int i = 0; i < clientCallbacks.size(); i++) {
                 clientCallbacks.get(i).onDisconnected(peer, peersLeft);
             }
@@ -1229,7 +1501,7 @@ public class BluetoothCommunicator {
     }
 
     private void notifyDisconnectionFailed() {
-        mainHandler.post(() -> {
+        callbackExecutor.execute(() -> {
             for (int i = 0; i < clientCallbacks.size(); i++) {
                 clientCallbacks.get(i).onDisconnectionFailed();
             }
@@ -1237,7 +1509,7 @@ public class BluetoothCommunicator {
     }
 
     private void notifyBluetoothLeNotSupported() {
-        mainHandler.post(() -> {
+        callbackExecutor.execute(() -> {
             for (int i = 0; i < clientCallbacks.size(); i++) {
                 clientCallbacks.get(i).onBluetoothLeNotSupported();
             }
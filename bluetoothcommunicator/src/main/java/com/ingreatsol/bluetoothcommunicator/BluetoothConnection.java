@@ -17,8 +17,9 @@
 package com.ingreatsol.bluetoothcommunicator;
 
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
 import android.os.Handler;
-import android.os.Looper;
+import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -26,6 +27,7 @@ import androidx.annotation.RequiresPermission;
 
 import java.util.ArrayList;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 abstract class BluetoothConnection {
@@ -33,18 +35,43 @@ abstract class BluetoothConnection {
     public static final int ACCEPT = 0;
     public static final int REJECT = 1;
     public static final UUID APP_UUID = UUID.fromString("00001234-0000-1000-8000-00805F9B34FB");
-    public static final int MTU = 247;
-    public static final int SUB_MESSAGES_LENGTH = 192;
+    public static final int MTU = 517;  // the biggest MTU requested, the one really used is notified by onMtuChanged
+    public static final int DEFAULT_MTU = Transport.DEFAULT_MTU;
+    public static final int ATT_HEADER_LENGTH = Transport.ATT_HEADER_LENGTH;
+    public static final int MAX_SUB_MESSAGES_LENGTH = BluetoothMessage.MAX_LENGTH;
     //oggetti e variabili
     private String uniqueName;
+    // guards the set of channels and the changes of the connections, the traffic of each channel is guarded only by the lock of the channel
     protected final Object channelsLock = new Object();
     protected BluetoothAdapter bluetoothAdapter;
     protected Callback callback;
     protected int strategy;
+    protected int sendWindowSize = Channel.DEFAULT_SEND_WINDOW_SIZE;
 
-    protected Handler mainHandler;
+    protected Handler protocolHandler;    // GATT callbacks and transport state are processed on the thread of gattScheduler
     protected ArrayList<Channel> channels = new ArrayList<>();
+    // indexes of channels by address of the device and by unique name of the peer, they must be modified only with addChannel, removeChannel and updateChannelPeer
+    private final ConcurrentHashMap<String, Channel> channelsByAddress = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Channel> channelsByName = new ConcurrentHashMap<>();
+    protected final GattScheduler gattScheduler;
     protected Channel.DisconnectionCallback disconnectionCallback;
+    // receive the messages and data completed by the channels
+    protected final Channel.ReceiveCallback messageReceiveCallback = new Channel.ReceiveCallback() {
+        @Override
+        public void onReceived(@NonNull Message message) {
+            notifyMessageReceived(message);
+            assert message.getSender() != null;
+            Log.e("messageReceive", message.getText() + "-" + message.getSender().getDevice().getAddress());
+        }
+    };
+    protected final Channel.ReceiveCallback dataReceiveCallback = new Channel.ReceiveCallback() {
+        @Override
+        public void onReceived(@NonNull Message message) {
+            notifyDataReceived(message);
+            assert message.getSender() != null;
+            Log.e("dataReceive", message.getText() + "-" + message.getSender().getDevice().getAddress());
+        }
+    };
 
 
     protected BluetoothConnection(String uniqueName,
@@ -55,14 +82,14 @@ abstract class BluetoothConnection {
         this.callback = callback;
         this.uniqueName = uniqueName;
         this.bluetoothAdapter = bluetoothAdapter;
-        this.mainHandler = new Handler(Looper.getMainLooper());
+        this.gattScheduler = new GattScheduler(getClass().getSimpleName());
+        this.protocolHandler = new Handler(gattScheduler.getLooper());
         this.disconnectionCallback = new Channel.DisconnectionCallback() {
-            @SuppressWarnings("SuspiciousMethodCalls")
             @Override
             public void onAlreadyDisconnected(Peer peer) {
-                int index = channels.indexOf(peer);
-                if (index != -1) {
-                    channels.remove(index);
+                Channel channel = getChannel(peer);
+                if (channel != null) {
+                    removeChannel(channel);
                 }
             }
 
@@ -73,6 +100,15 @@ abstract class BluetoothConnection {
         };
     }
 
+    public void setSendWindowSize(int sendWindowSize) {
+        synchronized (channelsLock) {
+            this.sendWindowSize = sendWindowSize;
+            for (Channel channel : channels) {
+                channel.setSendWindowSize(sendWindowSize);
+            }
+        }
+    }
+
     public ArrayList<Peer> getConnectedPeers() {
         synchronized (channelsLock) {
             ArrayList<Peer> peers = new ArrayList<>();
@@ -84,98 +120,92 @@ abstract class BluetoothConnection {
     }
 
     public void sendMessage(final Message message, final Channel.MessageCallback messageCallback) {
-        synchronized (channelsLock) {
-            if (message != null) {
-                final ArrayList<Channel> channels = new ArrayList<>(BluetoothConnection.this.channels);
+        if (message != null) {
+            final ArrayList<Channel> channels;
+            // channelsLock is held only to copy the channels, each channel queues the message with its own lock
+            synchronized (channelsLock) {
                 Peer receiver = message.getReceiver();
                 if (receiver != null) {
-                    for (int i = 0; i < channels.size(); i++) {
-                        if (!receiver.toString().equals(channels.get(i).getPeer().toString())) {
-                            channels.remove(i);
-                            i--;
-                        }
+                    channels = new ArrayList<>(1);
+                    Channel channel = getChannelByName(receiver.toString());
+                    if (channel != null) {
+                        channels.add(channel);
                     }
+                } else {
+                    channels = new ArrayList<>(BluetoothConnection.this.channels);
                 }
-                sendMessage(channels, message, messageCallback);
             }
+            sendMessage(channels, message, messageCallback);
         }
     }
 
     private void sendMessage(@NonNull final ArrayList<Channel> channels, final Message message,
                              final Channel.MessageCallback messageCallback) {
-        if (channels.size() > 0) {
-            Channel channel = channels.remove(0);
+        // the message is written to all the channels at the same time, messageCallback is notified when all the channels have sent it (or failed),
+        // the additional count is released at the end so messageCallback is not notified before all the channels have started
+        Channel.MessageCallback channelCallback = new Channel.MultipleMessageCallback(channels.size() + 1, messageCallback);
+        for (Channel channel : channels) {
             if (!channel.getPeer().isDisconnecting()) {     // before it was: channel.getPeer().isConnected() || channel.getPeer().isReconnecting(), but so we don't recover the messages sent while the connection is lost
-                channel.writeMessage(message, new Channel.MessageCallback() {
-                    @Override
-                    public void onMessageSent() {
-                        sendMessage(channels, message, messageCallback);
-                    }
-                });
+                channel.writeMessage(message, channelCallback);
             } else {
-                sendMessage(channels, message, messageCallback);  // the sending of the message is skipped
+                channelCallback.onMessageSent();  // the sending of the message is skipped
             }
-        } else {  // means that we have sent the message to all channels
-            messageCallback.onMessageSent();   // we notify that the message has been sent to all channels
         }
+        channelCallback.onMessageSent();
     }
 
     public void sendData(final Message data, final Channel.MessageCallback dataCallback) {
-        synchronized (channelsLock) {
-            if (data != null) {
-                final ArrayList<Channel> channels = new ArrayList<>(BluetoothConnection.this.channels);
+        if (data != null) {
+            final ArrayList<Channel> channels;
+            // channelsLock is held only to copy the channels, each channel queues the data with its own lock
+            synchronized (channelsLock) {
                 Peer receiver = data.getReceiver();
                 if (receiver != null) {
-                    for (int i = 0; i < channels.size(); i++) {
-                        if (!receiver.toString().equals(channels.get(i).getPeer().toString())) {
-                            channels.remove(i);
-                            i--;
-                        }
+                    channels = new ArrayList<>(1);
+                    Channel channel = getChannelByName(receiver.toString());
+                    if (channel != null) {
+                        channels.add(channel);
                     }
+                } else {
+                    channels = new ArrayList<>(BluetoothConnection.this.channels);
                 }
-                sendData(channels, data, dataCallback);
             }
+            sendData(channels, data, dataCallback);
         }
     }
 
     private void sendData(@NonNull final ArrayList<Channel> channels, final Message data, final Channel.MessageCallback dataCallback) {
-        if (channels.size() > 0) {
-            Channel channel = channels.remove(0);
+        // the same of sendMessage
+        Channel.MessageCallback channelCallback = new Channel.MultipleMessageCallback(channels.size() + 1, dataCallback);
+        for (Channel channel : channels) {
             if (!channel.getPeer().isDisconnecting()) {       // before it was: channel.getPeer().isConnected() || channel.getPeer().isReconnecting(), but so we don't recover the messages sent while the connection is lost
-                channel.writeData(data, new Channel.MessageCallback() {
-                    @Override
-                    public void onMessageSent() {
-                        sendData(channels, data, dataCallback);
-                    }
-                });
+                channel.writeData(data, channelCallback);
             } else {
-                sendData(channels, data, dataCallback);  // the sending of the message is skipped
+                channelCallback.onMessageSent();  // the sending of the message is skipped
             }
-        } else {  // means that we have sent the message to all channels
-            dataCallback.onMessageSent();   // we notify that the message has been sent to all channels
         }
+        channelCallback.onMessageSent();
     }
 
     public void disconnect(final Peer peer) {
         disconnect(peer, null);
     }
 
-    @SuppressWarnings("SuspiciousMethodCalls")
     public void disconnect(final Peer peer, @Nullable final Channel.DisconnectionNotificationCallback disconnectionNotificationCallback) {
-        mainHandler.post(() -> {
+        protocolHandler.post(() -> {
             synchronized (channelsLock) {
-                int index = channels.indexOf(peer);
-                if (index != -1) {
-                    if (channels.get(index).getPeer().isReconnecting()) {
+                Channel channel = getChannel(peer);
+                if (channel != null) {
+                    if (channel.getPeer().isReconnecting()) {
                         // canceling of reconnection
-                        stopReconnection(channels.get(index));
+                        stopReconnection(channel);
                         if (disconnectionNotificationCallback != null) {
                             disconnectionNotificationCallback.onDisconnectionNotificationSent();
                         }
 
                     } else {
                         //disconnection
-                        if (!channels.get(index).notifyDisconnection(new Channel.DisconnectionNotificationCallback() {
+                        if (!channel.notifyDisconnection(new Channel.DisconnectionNotificationCallback() {
                             @Override
                             public void onDisconnectionNotificationSent() {
                                 if (disconnectionNotificationCallback != null) {
@@ -191,7 +221,7 @@ abstract class BluetoothConnection {
                                 notifyDisconnectionFailed();
                             }
                         })) {
-                            channels.get(index).disconnect(disconnectionCallback);  // onDisconnectionNotificationSent is still called by disconnect();
+                            channel.disconnect(disconnectionCallback);  // onDisconnectionNotificationSent is still called by disconnect();
                         }
 
                     }
@@ -265,13 +295,76 @@ abstract class BluetoothConnection {
         }
     }
 
-    public int indexOfChannel(String uniqueName) {
+    /**
+     * @return the channel whose peer has the address of the device of peer (the same comparison of Peer.equals), or null if there isn't
+     */
+    @Nullable
+    protected Channel getChannel(@NonNull Peer peer) {
+        return getChannel(peer.getDevice());
+    }
+
+    @Nullable
+    protected Channel getChannel(@NonNull BluetoothDevice device) {
+        String address = device.getAddress();
+        return address != null ? channelsByAddress.get(address) : null;
+    }
+
+    /**
+     * @param uniqueName the result of toString() of the peer of the channel
+     */
+    @Nullable
+    protected Channel getChannelByName(@NonNull String uniqueName) {
+        return channelsByName.get(uniqueName);
+    }
+
+    protected void addChannel(@NonNull Channel channel) {
+        channels.add(channel);
+        indexChannel(channel);
+    }
+
+    protected void removeChannel(@NonNull Channel channel) {
+        // the comparison is by reference, Channel.equals would compare the addresses of the peers
         for (int i = 0; i < channels.size(); i++) {
-            if (channels.get(i).getPeer().toString().equals(uniqueName)) {
-                return i;
+            if (channels.get(i) == channel) {
+                channels.remove(i);
+                break;
             }
         }
-        return -1;
+        unindexChannel(channel);
+    }
+
+    /**
+     * Replaces the peer of channel keeping the indexes updated (the address and the unique name could change).
+     */
+    protected void updateChannelPeer(@NonNull Channel channel, @NonNull Peer newPeer) {
+        unindexChannel(channel);
+        channel.setPeer(newPeer);
+        indexChannel(channel);
+    }
+
+    /**
+     * Sets the unique name of the peer of channel keeping the indexes updated.
+     */
+    protected void updateChannelUniqueName(@NonNull Channel channel, @NonNull String uniqueName) {
+        unindexChannel(channel);
+        channel.getPeer().setUniqueName(uniqueName);
+        indexChannel(channel);
+    }
+
+    private void indexChannel(@NonNull Channel channel) {
+        String address = channel.getPeer().getDevice().getAddress();
+        if (address != null) {
+            channelsByAddress.put(address, channel);
+        }
+        channelsByName.put(channel.getPeer().toString(), channel);
+    }
+
+    private void unindexChannel(@NonNull Channel channel) {
+        String address = channel.getPeer().getDevice().getAddress();
+        if (address != null) {
+            channelsByAddress.remove(address, channel);
+        }
+        channelsByName.remove(channel.getPeer().toString(), channel);
     }
 
     @NonNull
@@ -283,8 +376,82 @@ abstract class BluetoothConnection {
 
     public void destroy() {
         while (channels.size() > 0) {
-            channels.remove(0).destroy();
+            Channel channel = channels.get(0);
+            removeChannel(channel);
+            channel.destroy();
         }
+        gattScheduler.quit();
+    }
+
+    /**
+     * @return the number of messages and data not yet sent to peer, or 0 if peer is not connected
+     */
+    public int getSendQueueLength(@NonNull Peer peer) {
+        Channel channel = getChannel(peer);
+        return channel != null ? channel.getSendQueueLength() : 0;
+    }
+
+    /**
+     * @return the time (in milliseconds) since the oldest message or data not yet sent to peer was queued
+     */
+    public long getSendQueueAge(@NonNull Peer peer) {
+        Channel channel = getChannel(peer);
+        return channel != null ? channel.getSendQueueAge() : 0;
+    }
+
+    /**
+     * @return the number of sub messages and sub data written to peer, or 0 if peer is not connected
+     */
+    public long getWrittenFrameCount(@NonNull Peer peer) {
+        Channel channel = getChannel(peer);
+        return channel != null ? channel.getWrittenFrameCount() : 0;
+    }
+
+    /**
+     * @return the number of arrays allocated for the sub messages and sub data written to peer (it grows only when the
+     * length of the frames changes, not for every frame), or 0 if peer is not connected
+     */
+    public long getAllocatedFrameCount(@NonNull Peer peer) {
+        Channel channel = getChannel(peer);
+        return channel != null ? channel.getAllocatedFrameCount() : 0;
+    }
+
+    /**
+     * @return the retransmission timeout (in milliseconds) of the sub messages sent to peer, or -1 if peer is not connected
+     */
+    public long getRetransmissionTimeout(@NonNull Peer peer) {
+        Channel channel = getChannel(peer);
+        return channel != null ? channel.getRetransmissionTimeout() : -1;
+    }
+
+    /**
+     * @return the smoothed round trip time (in milliseconds) of the acknowledgements of peer, or -1 if it is not yet measured
+     */
+    public long getSmoothedRoundTripTime(@NonNull Peer peer) {
+        Channel channel = getChannel(peer);
+        return channel != null ? channel.getSmoothedRoundTripTime() : -1;
+    }
+
+    /**
+     * @return the number of retransmissions to peer, or 0 if peer is not connected
+     */
+    public long getRetransmissionCount(@NonNull Peer peer) {
+        Channel channel = getChannel(peer);
+        return channel != null ? channel.getRetransmissionCount() : 0;
+    }
+
+    /**
+     * @return the number of GATT operations waiting to be started
+     */
+    public int getGattQueueDepth() {
+        return gattScheduler.getQueueDepth();
+    }
+
+    /**
+     * @return the average time (in milliseconds) that a GATT operation waits before being started
+     */
+    public long getGattAverageWaitTime() {
+        return gattScheduler.getAverageWaitTime();
     }
 
 
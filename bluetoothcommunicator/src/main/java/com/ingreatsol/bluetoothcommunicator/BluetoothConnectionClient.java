@@ -31,7 +31,6 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresPermission;
 
-import com.ingreatsol.bluetoothcommunicator.tools.BluetoothTools;
 import com.ingreatsol.bluetoothcommunicator.tools.Timer;
 
 import java.lang.reflect.Method;
@@ -42,6 +41,7 @@ class BluetoothConnectionClient extends BluetoothConnection {
     private final Context context;
     private final BluetoothGattCallback channelsCallback;
     private final ConnectionDeque pendingConnections = new ConnectionDeque();
+    private boolean bulkTransfer = false;
 
     public BluetoothConnectionClient(final Context context,
                                      String uniqueName,
@@ -70,7 +70,7 @@ class BluetoothConnectionClient extends BluetoothConnection {
             @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
             public void onMtuChanged(final BluetoothGatt gatt, int mtu, int status) {
                 super.onMtuChanged(gatt, mtu, status);
-                onChangedMtu(gatt);
+                onChangedMtu(gatt, status == BluetoothGatt.GATT_SUCCESS ? mtu : DEFAULT_MTU);
             }
 
             @Override
@@ -98,7 +98,7 @@ class BluetoothConnectionClient extends BluetoothConnection {
 
     @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
     private void onChangeConnectionState(final BluetoothGatt gatt, final int newState) {
-        mainHandler.post(() -> {
+        protocolHandler.post(() -> {
             if (newState == BluetoothProfile.STATE_CONNECTED) {
                 onConnected(gatt);
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
@@ -107,241 +107,189 @@ class BluetoothConnectionClient extends BluetoothConnection {
         });
     }
 
-    @SuppressWarnings("SuspiciousMethodCalls")
     @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
     private void onWriteCharacteristic(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
-        mainHandler.post(() -> {
-            synchronized (channelsLock) {
-                int index = channels.indexOf(new Peer(gatt.getDevice(), true));
-                if (index != -1) {
-                    if (BluetoothConnectionServer.CONNECTION_REQUEST_UUID.equals(characteristic.getUuid())) {
+        protocolHandler.post(() -> {
+            // the sub messages and the sub data only change the state of the channel, guarded by its own lock, so channelsLock
+            // is taken only by the characteristics that change the connection
+            Channel channel = getChannel(gatt.getDevice());
+            if (channel != null) {
+                if (BluetoothConnectionServer.CONNECTION_REQUEST_UUID.equals(characteristic.getUuid())) {
+                    synchronized (channelsLock) {
                         if (status == REJECT) {
-                            notifyConnectionRejected(channels.get(index));
-                        }
-
-                    } else if (BluetoothConnectionServer.MESSAGE_RECEIVE_UUID.equals(characteristic.getUuid())) {
-                        if (status == BluetoothGatt.GATT_SUCCESS) {
-                            int totalLength = BluetoothMessage.ID_LENGTH + BluetoothMessage.SEQUENCE_NUMBER_LENGTH;
-                            String completeText = new String(characteristic.getValue(), StandardCharsets.UTF_8);
-                            if (completeText.length() >= totalLength) {
-                                BluetoothMessage.SequenceNumber id = new BluetoothMessage.SequenceNumber(completeText.substring(0, BluetoothMessage.ID_LENGTH), BluetoothMessage.ID_LENGTH);
-                                BluetoothMessage.SequenceNumber sequenceNumber = new BluetoothMessage.SequenceNumber(completeText.substring(BluetoothMessage.ID_LENGTH, totalLength), BluetoothMessage.SEQUENCE_NUMBER_LENGTH);
-                                BluetoothMessage pendingSubMessage = channels.get(index).getPendingSubMessage();
-                                // if pendingSubMessage is null or does not match it means that the message has already been confirmed, or has yet to be confirmed,
-                                // but we do nothing because this is only a repetition of a previous confirmation
-                                if (pendingSubMessage != null && id.equals(pendingSubMessage.getId()) && sequenceNumber.equals(pendingSubMessage.getSequenceNumber())) {
-                                    channels.get(index).onSubMessageWriteSuccess();
-                                }
-
-                            }
-                        } else {
-                            channels.get(index).onSubMessageWriteFailed();
+                            notifyConnectionRejected(channel);
                         }
+                    }
 
-                    } else if (BluetoothConnectionServer.DATA_RECEIVE_UUID.equals(characteristic.getUuid())) {
-                        if (status == BluetoothGatt.GATT_SUCCESS) {
-                            int totalLength = BluetoothMessage.ID_LENGTH + BluetoothMessage.SEQUENCE_NUMBER_LENGTH;
-                            String completeText = new String(characteristic.getValue(), StandardCharsets.UTF_8);
-                            if (completeText.length() >= totalLength) {
-                                BluetoothMessage.SequenceNumber id = new BluetoothMessage.SequenceNumber(completeText.substring(0, BluetoothMessage.ID_LENGTH), BluetoothMessage.ID_LENGTH);
-                                BluetoothMessage.SequenceNumber sequenceNumber = new BluetoothMessage.SequenceNumber(completeText.substring(BluetoothMessage.ID_LENGTH, totalLength), BluetoothMessage.SEQUENCE_NUMBER_LENGTH);
-                                BluetoothMessage pendingSubData = channels.get(index).getPendingSubData();
-                                // if pendingSubData is null or does not match it means that the message has already been confirmed, or has yet to be confirmed,
-                                // but we do nothing because this is only a repetition of a previous confirmation
-                                if (pendingSubData != null && id.equals(pendingSubData.getId()) && sequenceNumber.equals(pendingSubData.getSequenceNumber())) {
-                                    channels.get(index).onSubDataWriteSuccess();
-                                }
+                } else if (BluetoothConnectionServer.MESSAGE_RECEIVE_UUID.equals(characteristic.getUuid())) {
+                    if (status == BluetoothGatt.GATT_SUCCESS) {
+                        // the write response has no payload, its success confirms the sub message written (the only one in flight),
+                        // so the header of the sub message is its acknowledgement
+                        channel.getTransport().notifyAcknowledgementReceived(Transport.MESSAGE, characteristic.getValue());
+                    }
+                    // the channel completes the operation of the scheduler
+                    channel.getTransport().notifyWriteCompleted(Transport.MESSAGE, status == BluetoothGatt.GATT_SUCCESS);
+                    return;
+
+                } else if (BluetoothConnectionServer.DATA_RECEIVE_UUID.equals(characteristic.getUuid())) {
+                    if (status == BluetoothGatt.GATT_SUCCESS && characteristic.getWriteType() != BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE) {
+                        // like for the sub messages the success of the writing confirms the sub data written,
+                        // in bulk transfer the sub data are confirmed by DATA_ACKNOWLEDGEMENT_UUID
+                        channel.getTransport().notifyAcknowledgementReceived(Transport.DATA, characteristic.getValue());
+                    }
+                    channel.getTransport().notifyWriteCompleted(Transport.DATA, status == BluetoothGatt.GATT_SUCCESS);
+                    return;
 
-                            }
-                        } else {
-                            channels.get(index).onSubDataWriteFailed();
-                        }
+                } else if (BluetoothConnectionServer.READ_RESPONSE_MESSAGE_RECEIVED_UUID.equals(characteristic.getUuid())) {
+                    // the channel completes the operation of the scheduler
+                    channel.getTransport().notifyAcknowledgementWriteCompleted(Transport.MESSAGE);
+                    return;
 
-                    } else if (BluetoothConnectionServer.DISCONNECTION_RECEIVE_UUID.equals(characteristic.getUuid())) {
-                        channels.get(index).disconnect(disconnectionCallback);
+                } else if (BluetoothConnectionServer.READ_RESPONSE_DATA_RECEIVED_UUID.equals(characteristic.getUuid())) {
+                    channel.getTransport().notifyAcknowledgementWriteCompleted(Transport.DATA);
+                    return;
 
+                } else if (BluetoothConnectionServer.DISCONNECTION_RECEIVE_UUID.equals(characteristic.getUuid())) {
+                    synchronized (channelsLock) {
+                        channel.disconnect(disconnectionCallback);
                     }
+
                 }
             }
+            // the value of the characteristic is read above, so the next operation can now change it
+            gattScheduler.onOperationCompleted(gatt.getDevice().getAddress(), characteristic.getUuid());
         });
     }
 
-    @SuppressWarnings("SuspiciousMethodCalls")
     @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
     private void onReadCharacteristic(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
         Log.e("readResponse", "received");
-        mainHandler.post(() -> {
-            synchronized (channelsLock) {
-                if (status == BluetoothGatt.GATT_SUCCESS) {
-                    int index = channels.indexOf(new Peer(gatt.getDevice(), true));
-
-                    //characteristic read
-                    if (characteristic.getUuid().equals(BluetoothConnectionServer.DATA_SEND_UUID)) {
-                        //here the characteristic has also a value
-                        if (index != -1) {
-                            Peer sender = (Peer) channels.get(index).getPeer().clone();
-                            BluetoothMessage subData = BluetoothMessage.createFromBytes(sender, characteristic.getValue());
-                            if (subData != null) {
-                                if (!channels.get(index).getReceivedData().contains(subData)) {
-                                    int dataIndex = channels.get(index).getReceivingData().indexOf(subData);
-                                    if (dataIndex == -1) {
-                                        channels.get(index).getReceivingData().add(subData);
-                                        dataIndex = channels.get(index).getReceivingData().size() - 1;
-                                    } else {
-                                        channels.get(index).getReceivingData().get(dataIndex).addMessage(subData);
-                                    }
-                                    if (subData.getType() == BluetoothMessage.FINAL) {
-                                        BluetoothMessage bluetoothMessage = channels.get(index).getReceivingData().remove(dataIndex);
-                                        Message message = bluetoothMessage.convertInMessage();
-                                        channels.get(index).addReceivedData(bluetoothMessage);
-                                        if (message != null) {
-                                            notifyDataReceived(message);
-
-                                            assert message.getSender() != null;
-                                            Log.e("clientDataReceive", message.getText() + "-" + message.getSender().getDevice().getAddress());
-                                        }
-                                    }
-                                }
-                                //response
-                                BluetoothGattService service = gatt.getService(BluetoothConnection.APP_UUID);
-                                BluetoothGattCharacteristic output = service.getCharacteristic(BluetoothConnectionServer.READ_RESPONSE_DATA_RECEIVED_UUID);
-                                if (output != null) {
-                                    byte[] responseData = BluetoothTools.concatBytes(subData.getId().getValue().getBytes(StandardCharsets.UTF_8), subData.getSequenceNumber().getValue().getBytes(StandardCharsets.UTF_8));
-                                    output.setValue(responseData);
-                                    gatt.writeCharacteristic(output);
-                                }
-                                channels.get(index).resumePendingData();
-                            }
-                        }
+        protocolHandler.post(() -> {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                Channel channel = getChannel(gatt.getDevice());
+
+                //characteristic read
+                if (characteristic.getUuid().equals(BluetoothConnectionServer.DATA_SEND_UUID)) {
+                    //here the characteristic has also a value
+                    if (channel != null) {
+                        // the channel receives the sub data and schedules its acknowledgement
+                        channel.getTransport().notifyFrameReceived(Transport.DATA, characteristic.getValue());
                     }
                 }
             }
+            // the value of the characteristic is read above, so the next operation can now change it
+            gattScheduler.onOperationCompleted(gatt.getDevice().getAddress(), characteristic.getUuid());
         });
     }
 
-    @SuppressWarnings("SuspiciousMethodCalls")
     @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
     private void onChangedCharacteristic(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic) {
-        mainHandler.post(() -> {
-            synchronized (channelsLock) {
-                int index = channels.indexOf(new Peer(gatt.getDevice(), true));
-                if (characteristic.getUuid().equals(BluetoothConnectionServer.MTU_RESPONSE_UUID)) {
-                    if (index != -1) {
-                        mainHandler.post(() -> {
-                            int responseValue = Integer.parseInt(new String(characteristic.getValue(), StandardCharsets.UTF_8));
-                            if (responseValue < (BluetoothConnection.SUB_MESSAGES_LENGTH + 8)) {
-                                gatt.requestMtu(MTU);
-                            } else {
-                                channelsCallback.onMtuChanged(gatt, MTU, BluetoothGatt.GATT_SUCCESS);
-                            }
-                        });
+        protocolHandler.post(() -> {
+            // like in onWriteCharacteristic channelsLock is taken only by the characteristics that change the connection
+            Channel channel = getChannel(gatt.getDevice());
+            if (characteristic.getUuid().equals(BluetoothConnectionServer.MTU_RESPONSE_UUID)) {
+                synchronized (channelsLock) {
+                    if (channel != null) {
+                        // the length received only confirms that the server is ready, the MTU used is the one notified by onMtuChanged
+                        protocolHandler.post(() -> gatt.requestMtu(MTU));
                     }
-
                 }
-                if (characteristic.getUuid().equals(BluetoothConnectionServer.CONNECTION_RESPONSE_UUID)) {
-                    if (index != -1) {
-                        if (!channels.get(index).getPeer().isConnected() && !channels.get(index).getPeer().isReconnecting() && !channels.get(index).getPeer().isDisconnecting()) {
+
+            }
+            if (characteristic.getUuid().equals(BluetoothConnectionServer.CONNECTION_RESPONSE_UUID)) {
+                synchronized (channelsLock) {
+                    if (channel != null) {
+                        if (!channel.getPeer().isConnected() && !channel.getPeer().isReconnecting() && !channel.getPeer().isDisconnecting()) {
                             int responseValue = Integer.parseInt(new String(characteristic.getValue(), StandardCharsets.UTF_8));
 
                             if (responseValue == BluetoothConnectionServer.ACCEPT) {
-                                notifyConnectionSuccess(channels.get(index));
+                                notifyConnectionSuccess(channel);
 
                             } else if (responseValue == BluetoothConnectionServer.REJECT) {
-                                notifyConnectionRejected(channels.get(index));
+                                notifyConnectionRejected(channel);
                             }
                         }
                     }
+                }
 
-                } else if (characteristic.getUuid().equals(BluetoothConnectionServer.CONNECTION_RESUMED_SEND_UUID)) {
-                    if (index != -1) {
-                        if (channels.get(index).getPeer().isReconnecting() && !channels.get(index).getPeer().isDisconnecting()) {
+            } else if (characteristic.getUuid().equals(BluetoothConnectionServer.CONNECTION_RESUMED_SEND_UUID)) {
+                synchronized (channelsLock) {
+                    if (channel != null) {
+                        if (channel.getPeer().isReconnecting() && !channel.getPeer().isDisconnecting()) {
                             int responseValue = Integer.parseInt(new String(characteristic.getValue(), StandardCharsets.UTF_8));
 
                             if (responseValue == BluetoothConnectionServer.ACCEPT) {
                                 // connection resumed
-                                notifyConnectionResumed(channels.get(index));
+                                notifyConnectionResumed(channel);
 
                             } else if (responseValue == BluetoothConnectionServer.REJECT) {
                                 // reconnection failed
-                                stopReconnection(channels.get(index));
+                                stopReconnection(channel);
 
                             }
                         }
                     }
+                }
 
-                } else if (characteristic.getUuid().equals(BluetoothConnectionServer.NAME_UPDATE_SEND_UUID)) {
-                    if (index != -1) {
-                        Peer newPeer = (Peer) channels.get(index).getPeer().clone();
-                        notifyPeerUpdated(channels.get(index), newPeer);
+            } else if (characteristic.getUuid().equals(BluetoothConnectionServer.NAME_UPDATE_SEND_UUID)) {
+                synchronized (channelsLock) {
+                    if (channel != null) {
+                        Peer newPeer = (Peer) channel.getPeer().clone();
+                        notifyPeerUpdated(channel, newPeer);
                     }
+                }
 
-                } else if (characteristic.getUuid().equals(BluetoothConnectionServer.DISCONNECTION_SEND_UUID)) {
-                    if (index != -1) {
-                        channels.get(index).disconnect(disconnectionCallback);
+            } else if (characteristic.getUuid().equals(BluetoothConnectionServer.DATA_ACKNOWLEDGEMENT_UUID)) {
+                // cumulative acknowledgement of the sub data written without response
+                if (channel != null) {
+                    channel.getTransport().notifyAcknowledgementReceived(Transport.DATA, characteristic.getValue());
+                }
+            } else if (characteristic.getUuid().equals(BluetoothConnectionServer.DISCONNECTION_SEND_UUID)) {
+                synchronized (channelsLock) {
+                    if (channel != null) {
+                        channel.disconnect(disconnectionCallback);
                     }
-                } else if (characteristic.getUuid().equals(BluetoothConnectionServer.MESSAGE_SEND_UUID)) {
-                    if (index != -1) {
-                        channels.get(index).pausePendingMessage();
-                        Peer sender = (Peer) channels.get(index).getPeer().clone();
-                        BluetoothMessage subMessage = BluetoothMessage.createFromBytes(sender, characteristic.getValue());
-                        if (subMessage != null) {
-                            if (!channels.get(index).getReceivedMessages().contains(subMessage)) {
-                                int messageIndex = channels.get(index).getReceivingMessages().indexOf(subMessage);
-                                if (messageIndex == -1) {
-                                    channels.get(index).getReceivingMessages().add(subMessage);
-                                    messageIndex = channels.get(index).getReceivingMessages().size() - 1;
-                                } else {
-                                    channels.get(index).getReceivingMessages().get(messageIndex).addMessage(subMessage);
-                                }
-                                if (subMessage.getType() == BluetoothMessage.FINAL) {
-                                    BluetoothMessage bluetoothMessage = channels.get(index).getReceivingMessages().remove(messageIndex);
-                                    Message message = bluetoothMessage.convertInMessage();
-                                    channels.get(index).addReceivedMessage(bluetoothMessage);
-                                    if (message != null) {
-                                        notifyMessageReceived(message);
-                                        assert message.getSender() != null;
-                                        Log.e("clientMessageReceive", message.getText() + "-" + message.getSender().getDevice().getAddress());
-                                    }
-                                }
-                            }
-                            //response
-                            BluetoothGattService service = gatt.getService(BluetoothConnection.APP_UUID);
-                            BluetoothGattCharacteristic output = service.getCharacteristic(BluetoothConnectionServer.READ_RESPONSE_MESSAGE_RECEIVED_UUID);
-                            if (output != null) {
-                                byte[] responseData = BluetoothTools.concatBytes(subMessage.getId().getValue().getBytes(StandardCharsets.UTF_8), subMessage.getSequenceNumber().getValue().getBytes(StandardCharsets.UTF_8));
-                                output.setValue(responseData);
-                                gatt.writeCharacteristic(output);
+                }
+            } else if (characteristic.getUuid().equals(BluetoothConnectionServer.MESSAGE_SEND_UUID)) {
+                if (channel != null) {
+                    // the channel receives the sub message and schedules its acknowledgement
+                    channel.getTransport().notifyFrameReceived(Transport.MESSAGE, characteristic.getValue());
+                }
+            } else if (characteristic.getUuid().equals(BluetoothConnectionServer.DATA_SEND_UUID)) {
+                if (channel != null) {
+                    if (BluetoothMessage.createFromBytes(characteristic.getValue()) != null) {
+                        // the sub data is carried by the indication
+                        channel.getTransport().notifyFrameReceived(Transport.DATA, characteristic.getValue());
+                    } else {
+                        // servers of older versions only notify that the sub data is ready to be read
+                        gattScheduler.schedule(gatt.getDevice().getAddress(), BluetoothConnectionServer.DATA_SEND_UUID, new GattScheduler.Operation() {
+                            @Override
+                            @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
+                            public int start() {
+                                return gatt.readCharacteristic(characteristic) ? GattScheduler.STARTED : GattScheduler.RETRY;
                             }
-                            channels.get(index).resumePendingMessage();
-                        }
-                    }
-                } else if (characteristic.getUuid().equals(BluetoothConnectionServer.DATA_SEND_UUID)) {
-                    if (index != -1) {
-                        channels.get(index).pausePendingData();
-                        gatt.readCharacteristic(characteristic);
+                        });
                     }
                 }
             }
         });
     }
 
-    @SuppressWarnings("SuspiciousMethodCalls")
     @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
     private void onConnected(@NonNull final BluetoothGatt gatt) {
         synchronized (channelsLock) {
-            int index = channels.indexOf(new Peer(gatt.getDevice(), true));
-            if (index != -1) {     // is used to manage synchronization with the server to avoid adding a device that connects to the latter instead of us
+            Channel channel = getChannel(gatt.getDevice());
+            if (channel != null) {     // is used to manage synchronization with the server to avoid adding a device that connects to the latter instead of us
                 refreshDeviceCache(gatt);  // is used to avoid cache problems
-                channels.get(index).getPeer().setHardwareConnected(true);
+                channel.getPeer().setHardwareConnected(true);
 
-                if (channels.get(index).getPeer().isReconnecting()) {
-                    channels.get(index).getPeer().setRequestingReconnection(false);
+                if (channel.getPeer().isReconnecting()) {
+                    channel.getPeer().setRequestingReconnection(false);
                     // the connection is recovering so we reset the timer, so in case of failure we will still have a disconnection
-                    channels.get(index).resetReconnectionTimer();
+                    channel.resetReconnectionTimer();
                 }
                 gatt.discoverServices();
 
-                final Channel channel = channels.get(index);
                 channel.startConnectionCompleteTimer(new Timer.Callback() {
                     @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
                     @Override
@@ -358,57 +306,58 @@ class BluetoothConnectionClient extends BluetoothConnection {
         }
     }
 
-    @SuppressWarnings("SuspiciousMethodCalls")
     @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
     private void onDisconnected(@NonNull final BluetoothGatt gatt) {
         synchronized (channelsLock) {
             gatt.close();
-            int index = channels.indexOf(new Peer(gatt.getDevice(), true));
-            if (index == -1) {  // in case the device of the channel that failed the reconnection has been changed by onReconnectingPeerFound
+            Channel channel = getChannel(gatt.getDevice());
+            if (channel == null) {  // in case the device of the channel that failed the reconnection has been changed by onReconnectingPeerFound
                 Peer peer = pendingConnections.peekFirst();
                 if (peer != null) {
-                    index = indexOfChannel(peer.toString());  // the comparison will thus be based on the name instead of the address (which is different in this case) (to be reviewed in case of problems)
+                    channel = getChannelByName(peer.toString());  // the comparison will thus be based on the name instead of the address (which is different in this case) (to be reviewed in case of problems)
                 }
             }
 
-            if (index != -1) {     // is used to manage synchronization with the server to avoid adding a device that connects to the latter instead of us
-                ((ClientChannel) channels.get(index)).setBluetoothGatt(null);
-                channels.get(index).getPeer().setHardwareConnected(false);
-                if (channels.get(index).getPeer().isDisconnecting()) {
-                    channels.get(index).onDisconnected();
+            if (channel != null) {     // is used to manage synchronization with the server to avoid adding a device that connects to the latter instead of us
+                ((ClientChannel) channel).setBluetoothGatt(null);
+                channel.getPeer().setHardwareConnected(false);
+                // the frames in flight are lost, the channel sends them again when the connection is resumed
+                channel.getTransport().notifyConnectionStateChanged(false);
+                if (channel.getPeer().isDisconnecting()) {
+                    channel.onDisconnected();
                 }
 
-                if (channels.get(index).getPeer().isConnected()) {
-                    if (channels.get(index).getPeer().isDisconnecting()) {
+                if (channel.getPeer().isConnected()) {
+                    if (channel.getPeer().isDisconnecting()) {
                         // disconnection
-                        notifyDisconnection(channels.get(index));
+                        notifyDisconnection(channel);
                     } else {
                         // connection lost
-                        notifyConnectionLost(channels.get(index));
+                        notifyConnectionLost(channel);
                     }
                 } else {
-                    if (channels.get(index).getPeer().isReconnecting()) {
-                        if (channels.get(index).getPeer().isRequestingReconnection()) {
-                            if (channels.get(index).getReconnectionTimer() != null && !channels.get(index).getReconnectionTimer().isFinished()) {
+                    if (channel.getPeer().isReconnecting()) {
+                        if (channel.getPeer().isRequestingReconnection()) {
+                            if (channel.isReconnectionTimerRunning()) {
                                 // pending connections update
-                                pendingConnections.setFirst(channels.get(index).getPeer());
+                                pendingConnections.setFirst(channel.getPeer());
                                 // reconnection
                                 connect();
                             }
                         } else {
-                            if (channels.get(index).getPeer().isDisconnecting()) {
+                            if (channel.getPeer().isDisconnecting()) {
                                 // we had a disconnection after the stopReconnection call (due to the latter method)
-                                notifyDisconnection(channels.get(index));
+                                notifyDisconnection(channel);
 
                             } else {
                                 // we had a disconnect between the hw connection and the complete connection
-                                stopReconnection(channels.get(index));
+                                stopReconnection(channel);
 
                             }
                         }
                     } else {
                         // connection failed
-                        notifyConnectionFailed(channels.get(index));
+                        notifyConnectionFailed(channel);
                     }
 
                 }
@@ -416,19 +365,18 @@ class BluetoothConnectionClient extends BluetoothConnection {
         }
     }
 
-    @SuppressWarnings("SuspiciousMethodCalls")
     @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
     private void onDiscoveredServices(final BluetoothGatt gatt) {
-        mainHandler.post(() -> {
+        protocolHandler.post(() -> {
             synchronized (channelsLock) {
-                int index = channels.indexOf(new Peer(gatt.getDevice(), true));
-                if (index != -1) {
+                Channel channel = getChannel(gatt.getDevice());
+                if (channel != null) {
                     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
                         if (bluetoothAdapter.isLe2MPhySupported()) {
                             gatt.setPreferredPhy(BluetoothDevice.PHY_LE_2M, BluetoothDevice.PHY_LE_2M, BluetoothDevice.PHY_OPTION_NO_PREFERRED);   // onPhyUpdate isn't always called so it's unreliable
                         }
                     }
-                    if (!channels.get(index).getPeer().isConnected() && !channels.get(index).getPeer().isDisconnecting()) {
+                    if (!channel.getPeer().isConnected() && !channel.getPeer().isDisconnecting()) {
                         try {
                             gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
 
@@ -446,7 +394,7 @@ class BluetoothConnectionClient extends BluetoothConnection {
                             gatt.writeCharacteristic(output);
                         } catch (Exception e) {
                             //configuration failed
-                            channels.get(index).disconnect(disconnectionCallback);
+                            channel.disconnect(disconnectionCallback);
                         }
                     }
                 }
@@ -454,14 +402,14 @@ class BluetoothConnectionClient extends BluetoothConnection {
         });
     }
 
-    @SuppressWarnings("SuspiciousMethodCalls")
     @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
-    private void onChangedMtu(final BluetoothGatt gatt) {
-        mainHandler.post(() -> {
+    private void onChangedMtu(final BluetoothGatt gatt, final int mtu) {
+        protocolHandler.post(() -> {
             synchronized (channelsLock) {
-                int index = channels.indexOf(new Peer(gatt.getDevice(), true));
-                if (index != -1) {
-                    if (!channels.get(index).getPeer().isConnected() && !channels.get(index).getPeer().isDisconnecting()) {
+                Channel channel = getChannel(gatt.getDevice());
+                if (channel != null) {
+                    channel.getTransport().notifyMtuChanged(mtu);
+                    if (!channel.getPeer().isConnected() && !channel.getPeer().isDisconnecting()) {
                         try {
                             BluetoothGattService service = gatt.getService(BluetoothConnection.APP_UUID);
 
@@ -480,19 +428,26 @@ class BluetoothConnectionClient extends BluetoothConnection {
                             BluetoothGattCharacteristic disconnectionReceive = service.getCharacteristic(BluetoothConnectionServer.DISCONNECTION_SEND_UUID);
                             gatt.setCharacteristicNotification(disconnectionReceive, true);
 
-                            if (channels.get(index).getPeer().isReconnecting()) {
+                            BluetoothGattCharacteristic dataAcknowledgement = service.getCharacteristic(BluetoothConnectionServer.DATA_ACKNOWLEDGEMENT_UUID);
+                            if (dataAcknowledgement != null) {  // servers of older versions don't have it
+                                gatt.setCharacteristicNotification(dataAcknowledgement, true);
+                                // it was added together with the binary header, so the server understands it
+                                channel.setVersion(BluetoothMessage.VERSION);
+                            }
+
+                            if (channel.getPeer().isReconnecting()) {
                                 // send the name (for cases where it has changed in the meantime) and the key (to avoid man in the middle during reconnection) with notifyConnectionResumed()
-                                if (!((ClientChannel) channels.get(index)).notifyConnectionResumed()) {
+                                if (!((ClientChannel) channel).notifyConnectionResumed()) {
                                     throw new Exception();
                                 }
                             } else {
-                                if (!((ClientChannel) channels.get(index)).requestConnection(getUniqueName())) {
+                                if (!((ClientChannel) channel).requestConnection(getUniqueName())) {
                                     throw new Exception();
                                 }
                             }
                         } catch (Exception e) {
                             //configuration failed
-                            channels.get(index).disconnect(disconnectionCallback);
+                            channel.disconnect(disconnectionCallback);
                         }
                     }
                 }
@@ -502,7 +457,7 @@ class BluetoothConnectionClient extends BluetoothConnection {
 
     @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
     public void connect(final Peer peer) {
-        mainHandler.post(() -> {
+        protocolHandler.post(() -> {
             if (pendingConnections.addLast(peer)) {
                 if (pendingConnections.size() == 1) {
                     connect();
@@ -511,6 +466,15 @@ class BluetoothConnectionClient extends BluetoothConnection {
         });
     }
 
+    public void setBulkTransfer(boolean bulkTransfer) {
+        synchronized (channelsLock) {
+            this.bulkTransfer = bulkTransfer;
+            for (Channel channel : channels) {
+                ((ClientChannel) channel).setBulkTransfer(bulkTransfer);
+            }
+        }
+    }
+
     @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
     private void reconnect(@NonNull Peer peer) {
         if (pendingConnections.addLast((Peer) peer.clone())) {
@@ -525,13 +489,16 @@ class BluetoothConnectionClient extends BluetoothConnection {
         synchronized (channelsLock) {
             Peer peer = pendingConnections.peekFirst();
             if (peer != null) {
-                int index = indexOfChannel(peer.toString());
-                if (index == -1) {
+                Channel channel = getChannelByName(peer.toString());
+                if (channel == null) {
                     // connection
-                    channels.add(new ClientChannel(peer));
-                    index = channels.size() - 1;
+                    channel = new ClientChannel(peer, gattScheduler);
+                    channel.setReceiveCallbacks(messageReceiveCallback, dataReceiveCallback);
+                    addChannel(channel);
+                    channel.setSendWindowSize(sendWindowSize);
+                    ((ClientChannel) channel).setBulkTransfer(bulkTransfer);
 
-                    BluetoothGatt gatt = channels.get(index)
+                    BluetoothGatt gatt = channel
                             .getPeer()
                             .getRemoteDevice(bluetoothAdapter)
                             .connectGatt(context,
@@ -540,15 +507,15 @@ class BluetoothConnectionClient extends BluetoothConnection {
                                     BluetoothDevice.TRANSPORT_LE);
 
                     if (gatt != null) {
-                        ((ClientChannel) channels.get(index)).setBluetoothGatt(gatt);
+                        ((ClientChannel) channel).setBluetoothGatt(gatt);
                     } else {
                         // connection failed
-                        notifyConnectionFailed(channels.get(index));
+                        notifyConnectionFailed(channel);
                     }
 
-                } else if (channels.get(index).getPeer().isReconnecting()) {
+                } else if (channel.getPeer().isReconnecting()) {
                     // reconnection
-                    BluetoothGatt gatt = channels.get(index)
+                    BluetoothGatt gatt = channel
                             .getPeer()
                             .getRemoteDevice(bluetoothAdapter)
                             .connectGatt(context,
@@ -556,24 +523,23 @@ class BluetoothConnectionClient extends BluetoothConnection {
                                     channelsCallback,
                                     BluetoothDevice.TRANSPORT_LE);
                     if (gatt != null) {
-                        ((ClientChannel) channels.get(index)).setBluetoothGatt(gatt);
+                        ((ClientChannel) channel).setBluetoothGatt(gatt);
                     } else {
                         // reconnection failed
-                        stopReconnection(channels.get(index));
+                        stopReconnection(channel);
                     }
                 }
             }
         }
     }
 
-    @SuppressWarnings("SuspiciousMethodCalls")
     @Override
     public void readPhy(final Peer peer) {
-        mainHandler.post(() -> {
+        protocolHandler.post(() -> {
             synchronized (channelsLock) {
-                int index = channels.indexOf(peer);
-                if (index != -1) {
-                    channels.get(index).readPhy();
+                Channel channel = getChannel(peer);
+                if (channel != null) {
+                    channel.readPhy();
                 }
             }
         });
@@ -612,18 +578,18 @@ class BluetoothConnectionClient extends BluetoothConnection {
 
     @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
     public void onReconnectingPeerFound(final Peer peer) {
-        mainHandler.post(() -> {
+        protocolHandler.post(() -> {
             synchronized (channelsLock) {
-                int index = indexOfChannel(peer.toString());
-                if (index != -1 && !channels.get(index).getPeer().isHardwareConnected() && channels.get(index).getPeer().isReconnecting() && !channels.get(index).getPeer().isDisconnecting()) {
+                Channel channel = getChannelByName(peer.toString());
+                if (channel != null && !channel.getPeer().isHardwareConnected() && channel.getPeer().isReconnecting() && !channel.getPeer().isDisconnecting()) {
                     // channel update
-                    Peer newPeer = (Peer) channels.get(index).getPeer().clone();
+                    Peer newPeer = (Peer) channel.getPeer().clone();
                     newPeer.setDevice(peer.getDevice());
-                    notifyPeerUpdated(channels.get(index), newPeer);
-                    if (!channels.get(index).getPeer().isRequestingReconnection()) {
-                        channels.get(index).getPeer().setRequestingReconnection(true);
+                    notifyPeerUpdated(channel, newPeer);
+                    if (!channel.getPeer().isRequestingReconnection()) {
+                        channel.getPeer().setRequestingReconnection(true);
                         // reconnection
-                        reconnect(channels.get(index).getPeer());
+                        reconnect(channel.getPeer());
                     }
                 }
             }
@@ -635,6 +601,8 @@ class BluetoothConnectionClient extends BluetoothConnection {
     protected void notifyConnectionSuccess(@NonNull Channel channel) {
         channel.resetConnectionCompleteTimer();
         channel.getPeer().setConnected(true);
+        // the transport can now write, the channel starts the messages queued during the connection
+        channel.getTransport().notifyConnectionStateChanged(true);
         callback.onConnectionSuccess((Peer) channel.getPeer().clone(), BluetoothCommunicator.CLIENT);
 
         pendingConnections.removeFirst();   // remove the peer that ended the connection
@@ -651,7 +619,7 @@ class BluetoothConnectionClient extends BluetoothConnection {
 
     @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
     private void notifyConnectionFailed(Channel channel) {
-        channels.remove(channel);
+        removeChannel(channel);
         callback.onConnectionFailed((Peer) channel.getPeer().clone(), BluetoothCommunicator.ERROR);
 
         pendingConnections.removeFirst();   // remove the peer that ended the connection
@@ -685,10 +653,9 @@ class BluetoothConnectionClient extends BluetoothConnection {
     @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
     protected void notifyConnectionResumed(@NonNull Channel channel) {
         channel.resetConnectionCompleteTimer();
-        int index = channels.indexOf(channel);
-        if (index != -1) {
-            channels.set(index, channel);
+        if (getChannel(channel.getPeer()) != null) {
             channel.getPeer().setReconnecting(false, true);
+            channel.getTransport().notifyConnectionStateChanged(true);
             callback.onConnectionResumed((Peer) channel.getPeer().clone());
         }
 
@@ -698,7 +665,7 @@ class BluetoothConnectionClient extends BluetoothConnection {
     @Override
     protected void notifyPeerUpdated(@NonNull Channel channel, Peer newPeer) {
         Peer peerClone = (Peer) channel.getPeer().clone();
-        channel.setPeer(newPeer);
+        updateChannelPeer(channel, newPeer);
         callback.onPeerUpdated(peerClone, newPeer);
     }
 
@@ -707,7 +674,7 @@ class BluetoothConnectionClient extends BluetoothConnection {
     protected void notifyDisconnection(@NonNull Channel channel) {
         pendingConnections.remove(channel.getPeer());   // remove the peer in case it is trying to reconnect
 
-        channels.remove(channel);
+        removeChannel(channel);
         channel.getPeer().setReconnecting(false, false);  // we also set the reconnecting to false in case we were reconnecting before the disconnection took place
         callback.onDisconnected((Peer) channel.getPeer().clone());
     }
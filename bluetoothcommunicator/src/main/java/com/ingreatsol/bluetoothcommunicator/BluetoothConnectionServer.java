@@ -32,7 +32,6 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.RequiresPermission;
 
-import com.ingreatsol.bluetoothcommunicator.tools.BluetoothTools;
 import com.ingreatsol.bluetoothcommunicator.tools.Timer;
 
 import java.nio.charset.StandardCharsets;
@@ -54,6 +53,7 @@ class BluetoothConnectionServer extends BluetoothConnection {
     public static final UUID DATA_RECEIVE_UUID = UUID.fromString("fa87c0d0-afac-11dd-8a32-0850350c8a66");
     public static final UUID READ_RESPONSE_MESSAGE_RECEIVED_UUID = UUID.fromString("fa87c0d0-aaac-11df-8a38-0897350c8a60");
     public static final UUID READ_RESPONSE_DATA_RECEIVED_UUID = UUID.fromString("fa87c0d0-aaac-11df-8a38-0897350c8f65");
+    public static final UUID DATA_ACKNOWLEDGEMENT_UUID = UUID.fromString("fa87c0d0-aaac-11df-8a38-0897350c8f66");
     public static final UUID NAME_UPDATE_SEND_UUID = UUID.fromString("fa87c0d4-afab-11de-8a39-0857350c7a42");
     public static final UUID NAME_UPDATE_RECEIVE_UUID = UUID.fromString("fa87c0d1-afab-11de-8a39-0857350c7a40");
     public static final UUID DISCONNECTION_SEND_UUID = UUID.fromString("fa87c0d0-afac-11de-8a39-0897350c5a66");
@@ -100,11 +100,11 @@ class BluetoothConnectionServer extends BluetoothConnection {
 
             @Override
             @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
-            public synchronized void onCharacteristicWriteRequest(final BluetoothDevice device, final int requestId,
-                                                                  final BluetoothGattCharacteristic characteristic, boolean preparedWrite,
-                                                                  boolean responseNeeded, final int offset, final byte[] value) {
+            public void onCharacteristicWriteRequest(final BluetoothDevice device, final int requestId,
+                                                     final BluetoothGattCharacteristic characteristic, boolean preparedWrite,
+                                                     boolean responseNeeded, final int offset, final byte[] value) {
                 super.onCharacteristicWriteRequest(device, requestId, characteristic, preparedWrite, responseNeeded, offset, value);
-                onRequestCharacteristicWrite(device, requestId, characteristic, offset, value);
+                onRequestCharacteristicWrite(device, requestId, characteristic, responseNeeded, offset, value);
             }
 
             @Override
@@ -123,6 +123,7 @@ class BluetoothConnectionServer extends BluetoothConnection {
             @Override
             public void onMtuChanged(BluetoothDevice device, int mtu) {
                 super.onMtuChanged(device, mtu);
+                onChangedMtu(device, mtu);
             }
 
             @Override
@@ -157,70 +158,87 @@ class BluetoothConnectionServer extends BluetoothConnection {
         });
     }
 
-    @SuppressWarnings("SuspiciousMethodCalls")
     private void onSentNotification(final BluetoothDevice device, final int status) {
-        mainHandler.post(() -> {
-            synchronized (channelsLock) {
-                int index = channels.indexOf(new Peer(device, true));
-
-                if (index != -1) {
-                    UUID sendingCharacteristic = ((ServerChannel) channels.get(index)).getSendingCharacteristic();
-                    if (CONNECTION_RESPONSE_UUID.equals(sendingCharacteristic)) {
-                        if (!channels.get(index).getPeer().isDisconnecting()) {
-                            notifyConnectionSuccess(channels.get(index));
+        protocolHandler.post(() -> {
+            // the sub messages and the sub data only change the state of the channel, guarded by its own lock, so channelsLock
+            // is taken only by the characteristics that change the connection
+            Channel channel = getChannel(device);
+
+            if (channel != null) {
+                UUID sendingCharacteristic = ((ServerChannel) channel).getSendingCharacteristic();
+                if (CONNECTION_RESPONSE_UUID.equals(sendingCharacteristic)) {
+                    synchronized (channelsLock) {
+                        if (!channel.getPeer().isDisconnecting()) {
+                            notifyConnectionSuccess(channel);
                         }
+                    }
 
-                    } else if (CONNECTION_RESUMED_SEND_UUID.equals(sendingCharacteristic)) {
-                        if (!channels.get(index).getPeer().isDisconnecting()) {
+                } else if (CONNECTION_RESUMED_SEND_UUID.equals(sendingCharacteristic)) {
+                    synchronized (channelsLock) {
+                        if (!channel.getPeer().isDisconnecting()) {
                             //connection resumed
-                            notifyConnectionResumed(channels.get(index));
+                            notifyConnectionResumed(channel);
                         }
+                    }
 
-                    } else if (MESSAGE_SEND_UUID.equals(sendingCharacteristic)) {
-                        if (status == BluetoothGatt.GATT_FAILURE) {
-                            channels.get(index).onSubMessageWriteFailed();
-                        }
+                } else if (MESSAGE_SEND_UUID.equals(sendingCharacteristic)) {
+                    // the channel completes the operation of the scheduler
+                    channel.getTransport().notifyWriteCompleted(Transport.MESSAGE, status != BluetoothGatt.GATT_FAILURE);
+                    return;
 
-                    } else if (DATA_SEND_UUID.equals(sendingCharacteristic)) {
-                        if (status == BluetoothGatt.GATT_FAILURE) {
-                            channels.get(index).onSubDataWriteFailed();
-                        }
+                } else if (DATA_SEND_UUID.equals(sendingCharacteristic)) {
+                    channel.getTransport().notifyWriteCompleted(Transport.DATA, status != BluetoothGatt.GATT_FAILURE);
+                    return;
 
-                    } else if (DISCONNECTION_SEND_UUID.equals(sendingCharacteristic)) {
-                        channels.get(index).disconnect(disconnectionCallback);
+                } else if (DATA_ACKNOWLEDGEMENT_UUID.equals(sendingCharacteristic)) {
+                    channel.getTransport().notifyAcknowledgementWriteCompleted(Transport.DATA);
+                    return;
 
+                } else if (DISCONNECTION_SEND_UUID.equals(sendingCharacteristic)) {
+                    synchronized (channelsLock) {
+                        channel.disconnect(disconnectionCallback);
                     }
+
                 }
+                gattScheduler.onOperationCompleted(device.getAddress(), sendingCharacteristic);
             }
         });
     }
 
-    @SuppressWarnings("SuspiciousMethodCalls")
     @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
     private void onRequestCharacteristicRead(final BluetoothDevice device, final int requestId, final int offset,
                                              final BluetoothGattCharacteristic characteristic) {
-        mainHandler.post(() -> {
-            synchronized (channelsLock) {
-                int index = channels.indexOf(new Peer(device, true));
-
-                if (index != -1) {
-                    try {
-                        BluetoothMessage pendingSubData = channels.get(index).getPendingSubData();
-                        if (pendingSubData != null) {     // if pendingSubData is null or does not match it means that the message has already been confirmed, or has yet to be confirmed, but we do nothing because this is only a repetition of a previous confirmation
-                            if (DATA_SEND_UUID.equals(characteristic.getUuid())) {
-                                bluetoothGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, pendingSubData.getCompleteData());
-                            } else {
-                                throw new Exception();
-                            }
+        protocolHandler.post(() -> {
+            Channel channel = getChannel(device);
+
+            if (channel != null) {
+                try {
+                    BluetoothMessage transmittingSubData = channel.getTransmittingSubData();
+                    if (transmittingSubData != null) {     // if transmittingSubData is null it means that the data has already been confirmed, so this is only a repetition of a previous reading
+                        if (DATA_SEND_UUID.equals(characteristic.getUuid())) {
+                            // the sub data is already in the indication, it is read only by the clients that ignore its value (legacy clients),
+                            // the sub data are sent to them one at a time (see getDataSendWindowSize), so it is the one indicated
+                            bluetoothGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, transmittingSubData.getCompleteData());
+                        } else {
+                            throw new Exception();
                         }
-                    } catch (Exception e) {
-                        bluetoothGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, offset, null);
                     }
+                } catch (Exception e) {
+                    bluetoothGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, offset, null);
                 }
             }
         });
     }
 
+    private void onChangedMtu(final BluetoothDevice device, final int mtu) {
+        protocolHandler.post(() -> {
+            Channel channel = getChannel(device);
+            if (channel != null) {
+                channel.getTransport().notifyMtuChanged(mtu);
+            }
+        });
+    }
+
     @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
     private void addBluetoothGattService() {
         BluetoothGattService service = new BluetoothGattService(BluetoothConnection.APP_UUID, BluetoothGattService.SERVICE_TYPE_PRIMARY);
@@ -234,9 +252,10 @@ class BluetoothConnectionServer extends BluetoothConnection {
         service.addCharacteristic(new BluetoothGattCharacteristic(MESSAGE_SEND_UUID, BluetoothGattCharacteristic.PROPERTY_INDICATE | BluetoothGattCharacteristic.PROPERTY_READ, BluetoothGattCharacteristic.PERMISSION_READ));
         service.addCharacteristic(new BluetoothGattCharacteristic(DATA_SEND_UUID, BluetoothGattCharacteristic.PROPERTY_INDICATE | BluetoothGattCharacteristic.PROPERTY_READ, BluetoothGattCharacteristic.PERMISSION_READ));
         service.addCharacteristic(new BluetoothGattCharacteristic(MESSAGE_RECEIVE_UUID, BluetoothGattCharacteristic.PROPERTY_WRITE, BluetoothGattCharacteristic.PERMISSION_WRITE));
-        service.addCharacteristic(new BluetoothGattCharacteristic(DATA_RECEIVE_UUID, BluetoothGattCharacteristic.PROPERTY_WRITE, BluetoothGattCharacteristic.PERMISSION_WRITE));
+        service.addCharacteristic(new BluetoothGattCharacteristic(DATA_RECEIVE_UUID, BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE, BluetoothGattCharacteristic.PERMISSION_WRITE));
         service.addCharacteristic(new BluetoothGattCharacteristic(READ_RESPONSE_MESSAGE_RECEIVED_UUID, BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE, BluetoothGattCharacteristic.PERMISSION_WRITE));
         service.addCharacteristic(new BluetoothGattCharacteristic(READ_RESPONSE_DATA_RECEIVED_UUID, BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE, BluetoothGattCharacteristic.PERMISSION_WRITE));
+        service.addCharacteristic(new BluetoothGattCharacteristic(DATA_ACKNOWLEDGEMENT_UUID, BluetoothGattCharacteristic.PROPERTY_NOTIFY, BluetoothGattCharacteristic.PERMISSION_READ));
         service.addCharacteristic(new BluetoothGattCharacteristic(NAME_UPDATE_RECEIVE_UUID, BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE, BluetoothGattCharacteristic.PERMISSION_WRITE));
         service.addCharacteristic(new BluetoothGattCharacteristic(NAME_UPDATE_SEND_UUID, BluetoothGattCharacteristic.PROPERTY_INDICATE, BluetoothGattCharacteristic.PERMISSION_READ));
         service.addCharacteristic(new BluetoothGattCharacteristic(DISCONNECTION_SEND_UUID, BluetoothGattCharacteristic.PROPERTY_INDICATE, BluetoothGattCharacteristic.PERMISSION_READ));
@@ -245,27 +264,27 @@ class BluetoothConnectionServer extends BluetoothConnection {
         bluetoothGattServer.addService(service);
     }
 
-    @SuppressWarnings("SuspiciousMethodCalls")
     @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
     private void onRequestCharacteristicWrite(final BluetoothDevice device, final int requestId,
-                                              final BluetoothGattCharacteristic characteristic,
+                                              final BluetoothGattCharacteristic characteristic, final boolean responseNeeded,
                                               final int offset, final byte[] value) {
-        mainHandler.post(() -> {
-            synchronized (channelsLock) {
-                int index = channels.indexOf(new Peer(device, true));
+        protocolHandler.post(() -> {
+            // like in onSentNotification channelsLock is taken only by the characteristics that change the connection
+            Channel channel = getChannel(device);
 
-                if (characteristic.getUuid().equals(CONNECTION_REQUEST_UUID)) {
-                    if (index != -1) {
-                        if (!channels.get(index).getPeer().isDisconnecting()) {
-                            if (!channels.get(index).getPeer().isConnected() && !channels.get(index).getPeer().isReconnecting()) {
+            if (characteristic.getUuid().equals(CONNECTION_REQUEST_UUID)) {
+                synchronized (channelsLock) {
+                    if (channel != null) {
+                        if (!channel.getPeer().isDisconnecting()) {
+                            if (!channel.getPeer().isConnected() && !channel.getPeer().isReconnecting()) {
                                 String data = new String(value, StandardCharsets.UTF_8);
-                                channels.get(index).getPeer().setUniqueName(data);
+                                updateChannelUniqueName(channel, data);
 
-                                notifyConnectionRequest(channels.get(index));
+                                notifyConnectionRequest(channel);
                                 bluetoothGattServer.sendResponse(device, requestId, ACCEPT, offset, null);
-                            } else if (channels.get(index).getPeer().isReconnecting()) {
+                            } else if (channel.getPeer().isReconnecting()) {
                                 bluetoothGattServer.sendResponse(device, requestId, REJECT, offset, null);  // it must be put before the disconnection otherwise we have errors
-                                stopReconnection(channels.get(index));
+                                stopReconnection(channel);
 
                             } else {
                                 bluetoothGattServer.sendResponse(device, requestId, ACCEPT, offset, null);
@@ -274,184 +293,149 @@ class BluetoothConnectionServer extends BluetoothConnection {
                             bluetoothGattServer.sendResponse(device, requestId, REJECT, offset, null);
                         }
                     }
+                }
 
-                } else if (characteristic.getUuid().equals(CONNECTION_RESUMED_RECEIVE_UUID)) {
-                    if (index != -1) {
-                        if (!channels.get(index).getPeer().isDisconnecting()) {
-                            if (channels.get(index).getPeer().isReconnecting()) {
-                                if (!((ServerChannel) channels.get(index)).notifyConnectionResumed()) {
-                                    stopReconnection(channels.get(index));
+            } else if (characteristic.getUuid().equals(CONNECTION_RESUMED_RECEIVE_UUID)) {
+                synchronized (channelsLock) {
+                    if (channel != null) {
+                        if (!channel.getPeer().isDisconnecting()) {
+                            if (channel.getPeer().isReconnecting()) {
+                                if (!((ServerChannel) channel).notifyConnectionResumed()) {
+                                    stopReconnection(channel);
                                 }
-                            } else if (!channels.get(index).getPeer().isConnected()) {
+                            } else if (!channel.getPeer().isConnected()) {
                                         /* means that the peer for which we accepted the connection request without having it in the list of channels is not starting a connection but is resetting it,
                                          but we are not, so we disconnect, otherwise we would remain forever waiting for the connection request */
-                                channels.get(index).getPeer().setDisconnecting(true);
-                                if (!((ServerChannel) channels.get(index)).notifyConnectionResumedRejected()) {
-                                    channels.get(index).disconnect(disconnectionCallback);
+                                channel.getPeer().setDisconnecting(true);
+                                if (!((ServerChannel) channel).notifyConnectionResumedRejected()) {
+                                    channel.disconnect(disconnectionCallback);
                                 }
                             }
                         }
                     }
+                }
 
-                } else if (characteristic.getUuid().equals(MTU_REQUEST_UUID)) {
-                    if (index != -1) {
-                        if (!channels.get(index).getPeer().isDisconnecting()) {
+            } else if (characteristic.getUuid().equals(MTU_REQUEST_UUID)) {
+                synchronized (channelsLock) {
+                    if (channel != null) {
+                        if (!channel.getPeer().isDisconnecting()) {
                             try {
                                 int mtu = value.length;
                                 BluetoothGattService service = bluetoothGattServer.getService(BluetoothConnection.APP_UUID);
                                 BluetoothGattCharacteristic output = service.getCharacteristic(BluetoothConnectionServer.MTU_RESPONSE_UUID);
 
                                 output.setValue(String.valueOf(mtu).getBytes(StandardCharsets.UTF_8));
-                                bluetoothGattServer.notifyCharacteristicChanged(channels.get(index).getPeer().getRemoteDevice(bluetoothAdapter), output, true);
+                                bluetoothGattServer.notifyCharacteristicChanged(channel.getPeer().getRemoteDevice(bluetoothAdapter), output, true);
                             } catch (Exception e) {
-                                channels.get(index).disconnect(disconnectionCallback);
+                                channel.disconnect(disconnectionCallback);
                             }
                         }
                     }
+                }
 
-                } else if (characteristic.getUuid().equals(MESSAGE_RECEIVE_UUID)) {
-                    if (index != -1) {
-                        Peer sender = (Peer) channels.get(index).getPeer().clone();
-                        BluetoothMessage subMessage = BluetoothMessage.createFromBytes(sender, value);
-                        if (subMessage != null) {
-                            if (!channels.get(index).getReceivedMessages().contains(subMessage)) {
-                                int messageIndex = channels.get(index).getReceivingMessages().indexOf(subMessage);
-                                if (messageIndex == -1) {
-                                    channels.get(index).getReceivingMessages().add(subMessage);
-                                    messageIndex = channels.get(index).getReceivingMessages().size() - 1;
-                                } else {
-                                    channels.get(index).getReceivingMessages().get(messageIndex).addMessage(subMessage);
-                                }
-                                if (subMessage.getType() == BluetoothMessage.FINAL) {
-                                    BluetoothMessage bluetoothMessage = channels.get(index).getReceivingMessages().remove(messageIndex);
-                                    Message message = bluetoothMessage.convertInMessage();
-                                    channels.get(index).addReceivedMessage(bluetoothMessage);
-                                    if (message != null) {
-                                        notifyMessageReceived(message);
-                                        assert message.getSender() != null;
-                                        Log.e("clientMessageReceive", message.getText() + "-" + message.getSender().getDevice().getAddress());
-                                    }
-                                }
-                            }
-                            //response
-                            byte[] responseData = BluetoothTools.concatBytes(subMessage.getId().getValue().getBytes(StandardCharsets.UTF_8), subMessage.getSequenceNumber().getValue().getBytes(StandardCharsets.UTF_8));
-                            bluetoothGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, responseData);
+            } else if (characteristic.getUuid().equals(MESSAGE_RECEIVE_UUID)) {
+                if (channel != null) {
+                    BluetoothMessage subMessage = BluetoothMessage.createFromBytes(value);
+                    if (subMessage != null) {
+                        //response (the write response has no payload), if there is nothing to confirm the failure makes the client send the sub message again
+                        if (channel.receiveSubMessage(subMessage) != null) {
+                            bluetoothGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, null);
+                        } else {
+                            bluetoothGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, offset, null);
                         }
                     }
-                } else if (characteristic.getUuid().equals(DATA_RECEIVE_UUID)) {
-                    if (index != -1) {
-                        Peer sender = (Peer) channels.get(index).getPeer().clone();
-                        BluetoothMessage subData = BluetoothMessage.createFromBytes(sender, value);
-                        if (subData != null) {
-                            if (!channels.get(index).getReceivedData().contains(subData)) {
-                                int dataIndex = channels.get(index).getReceivingData().indexOf(subData);
-                                if (dataIndex == -1) {
-                                    channels.get(index).getReceivingData().add(subData);
-                                    dataIndex = channels.get(index).getReceivingData().size() - 1;
-                                } else {
-                                    channels.get(index).getReceivingData().get(dataIndex).addMessage(subData);
-                                }
-                                if (subData.getType() == BluetoothMessage.FINAL) {
-                                    BluetoothMessage bluetoothMessage = channels.get(index).getReceivingData().remove(dataIndex);
-                                    Message message = bluetoothMessage.convertInMessage();
-                                    channels.get(index).addReceivedData(bluetoothMessage);
-                                    if (message != null) {
-                                        notifyDataReceived(message);
-                                        assert message.getSender() != null;
-                                        Log.e("clientDataReceive", message.getText() + "-" + message.getSender().getDevice().getAddress());
-                                    }
-                                }
+                }
+            } else if (characteristic.getUuid().equals(DATA_RECEIVE_UUID)) {
+                if (channel != null) {
+                    BluetoothMessage subData = BluetoothMessage.createFromBytes(value);
+                    if (subData != null) {
+                        byte[] responseData = channel.receiveSubData(subData);
+                        if (!responseNeeded) {
+                            // bulk transfer, the sub data received are confirmed every few sub data or immediately if this one is not the next expected
+                            if (responseData != null) {
+                                channel.acknowledgeSubData(subData, responseData);
                             }
-                            //response
-                            byte[] responseData = BluetoothTools.concatBytes(subData.getId().getValue().getBytes(StandardCharsets.UTF_8), subData.getSequenceNumber().getValue().getBytes(StandardCharsets.UTF_8));
-                            bluetoothGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, responseData);
-                        }
-                    }
-
-                } else if (characteristic.getUuid().equals(READ_RESPONSE_MESSAGE_RECEIVED_UUID)) {
-                    int totalLength = BluetoothMessage.ID_LENGTH + BluetoothMessage.SEQUENCE_NUMBER_LENGTH;
-                    String completeText = new String(value, StandardCharsets.UTF_8);
-                    if (completeText.length() >= totalLength) {
-                        BluetoothMessage.SequenceNumber id = new BluetoothMessage.SequenceNumber(completeText.substring(0, BluetoothMessage.ID_LENGTH), BluetoothMessage.ID_LENGTH);
-                        BluetoothMessage.SequenceNumber sequenceNumber = new BluetoothMessage.SequenceNumber(completeText.substring(BluetoothMessage.ID_LENGTH, totalLength), BluetoothMessage.SEQUENCE_NUMBER_LENGTH);
-                        BluetoothMessage pendingSubMessage = channels.get(index).getPendingSubMessage();
-                        // if pendingSubMessage is null or does not match it means that the message has already been confirmed, or has yet to be confirmed, but we do nothing because this is only a repetition of a previous confirmation
-                        if (pendingSubMessage != null && id.equals(pendingSubMessage.getId()) && sequenceNumber.equals(pendingSubMessage.getSequenceNumber())) {
-                            channels.get(index).onSubMessageWriteSuccess();
+                        } else if (responseData != null) {
+                            //response (without payload), if there is nothing to confirm the failure makes the client send the sub data again
+                            bluetoothGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, null);
+                        } else {
+                            bluetoothGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, offset, null);
                         }
-
                     }
+                }
 
-                } else if (characteristic.getUuid().equals(READ_RESPONSE_DATA_RECEIVED_UUID)) {
-                    int totalLength = BluetoothMessage.ID_LENGTH + BluetoothMessage.SEQUENCE_NUMBER_LENGTH;
-                    String completeText = new String(value, StandardCharsets.UTF_8);
-                    if (completeText.length() >= totalLength) {
-                        BluetoothMessage.SequenceNumber id = new BluetoothMessage.SequenceNumber(completeText.substring(0, BluetoothMessage.ID_LENGTH), BluetoothMessage.ID_LENGTH);
-                        BluetoothMessage.SequenceNumber sequenceNumber = new BluetoothMessage.SequenceNumber(completeText.substring(BluetoothMessage.ID_LENGTH, totalLength), BluetoothMessage.SEQUENCE_NUMBER_LENGTH);
-                        BluetoothMessage pendingSubData = channels.get(index).getPendingSubData();
-                        // if pendingSubData is null or does not match it means that the message has already been confirmed, or has yet to be confirmed, but we do nothing because this is only a repetition of a previous confirmation
-                        if (pendingSubData != null && id.equals(pendingSubData.getId()) && sequenceNumber.equals(pendingSubData.getSequenceNumber())) {
-                            channels.get(index).onSubDataWriteSuccess();
-                        }
+            } else if (characteristic.getUuid().equals(READ_RESPONSE_MESSAGE_RECEIVED_UUID)) {
+                // cumulative acknowledgement, if it does not confirm anything new it is only a repetition of a previous confirmation
+                if (channel != null) {
+                    channel.getTransport().notifyAcknowledgementReceived(Transport.MESSAGE, value);
+                }
 
-                    }
+            } else if (characteristic.getUuid().equals(READ_RESPONSE_DATA_RECEIVED_UUID)) {
+                // cumulative acknowledgement, if it does not confirm anything new it is only a repetition of a previous confirmation
+                if (channel != null) {
+                    channel.getTransport().notifyAcknowledgementReceived(Transport.DATA, value);
+                }
 
-                } else if (characteristic.getUuid().equals(NAME_UPDATE_RECEIVE_UUID)) {
-                    if (index != -1) {
-                        Peer newPeer = (Peer) channels.get(index).getPeer().clone();
-                        notifyPeerUpdated(channels.get(index), newPeer);
+            } else if (characteristic.getUuid().equals(NAME_UPDATE_RECEIVE_UUID)) {
+                synchronized (channelsLock) {
+                    if (channel != null) {
+                        Peer newPeer = (Peer) channel.getPeer().clone();
+                        notifyPeerUpdated(channel, newPeer);
                     }
+                }
 
-                } else if (characteristic.getUuid().equals(DISCONNECTION_RECEIVE_UUID)) {
+            } else if (characteristic.getUuid().equals(DISCONNECTION_RECEIVE_UUID)) {
+                synchronized (channelsLock) {
                     bluetoothGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, null);
-                    if (index != -1) {
-                        channels.get(index).disconnect(disconnectionCallback);
+                    if (channel != null) {
+                        channel.disconnect(disconnectionCallback);
                     }
                 }
             }
         });
     }
 
-    @SuppressWarnings("SuspiciousMethodCalls")
     private void onChangeConnectionState(BluetoothDevice device, final int newState, final BluetoothConnectionClient client) {
         final Peer peer = new Peer(device, false);
         //anche se non serve si mette solo per questioni di simmetria col server a livello programmatico
-        mainHandler.post(() -> {
+        protocolHandler.post(() -> {
             if (newState == BluetoothProfile.STATE_CONNECTED) {
 
                 synchronized (channelsLock) {
-                    int index;
-                    if (!client.getConnectedPeers().contains(peer) && !channels.contains(peer)) {   // the client object is used to manage synchronization with the client to avoid adding a device that connects to the latter instead of us
-                        channels.add(new ServerChannel(peer, bluetoothAdapter));
-                        index = channels.size() - 1;
-                        ((ServerChannel) channels.get(index)).setBluetoothGattServer(bluetoothGattServer);
-                        channels.get(index).getPeer().setHardwareConnected(true);
+                    Channel channel;
+                    if (!client.getConnectedPeers().contains(peer) && getChannel(peer) == null) {   // the client object is used to manage synchronization with the client to avoid adding a device that connects to the latter instead of us
+                        channel = new ServerChannel(peer, bluetoothAdapter, gattScheduler);
+                        channel.setReceiveCallbacks(messageReceiveCallback, dataReceiveCallback);
+                        addChannel(channel);
+                        ((ServerChannel) channel).setBluetoothGattServer(bluetoothGattServer);
+                        channel.setSendWindowSize(sendWindowSize);
+                        channel.getPeer().setHardwareConnected(true);
 
                     } else {
-                        index = channels.indexOf(peer);
-                        if (index != -1) {
-                            ((ServerChannel) channels.get(index)).setBluetoothGattServer(bluetoothGattServer);
-                            channels.get(index).getPeer().setHardwareConnected(true);
-                            if (channels.get(index).getPeer().isReconnecting()) {
+                        channel = getChannel(peer);
+                        if (channel != null) {
+                            ((ServerChannel) channel).setBluetoothGattServer(bluetoothGattServer);
+                            channel.getPeer().setHardwareConnected(true);
+                            if (channel.getPeer().isReconnecting()) {
                                 // the connection is recovering so we reset the timer, so in case of failure we will still have a disconnection
-                                channels.get(index).resetReconnectionTimer();
+                                channel.resetReconnectionTimer();
                             }
                         }
 
                     }
-                    if (index != -1) {
-                        final Channel channel = channels.get(index);
-                        channel.startConnectionCompleteTimer(new Timer.Callback() {
+                    if (channel != null) {
+                        final Channel connectingChannel = channel;
+                        connectingChannel.startConnectionCompleteTimer(new Timer.Callback() {
                             @Override
                             public void onFinished() {
-                                mainHandler.post(new Runnable() {
+                                protocolHandler.post(new Runnable() {
                                     @Override
                                     public void run() {
                                         // means that the connection failed because it did not happen completely by the end of the timer
-                                        if (channel.getPeer().isReconnecting()) {
-                                            stopReconnection(channel);
+                                        if (connectingChannel.getPeer().isReconnecting()) {
+                                            stopReconnection(connectingChannel);
                                         } else {
-                                            channel.disconnect(disconnectionCallback);
+                                            connectingChannel.disconnect(disconnectionCallback);
                                         }
                                     }
                                 });
@@ -462,40 +446,42 @@ class BluetoothConnectionServer extends BluetoothConnection {
 
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
                 synchronized (channelsLock) {
-                    final int index = channels.indexOf(peer);
-                    if (index != -1) {
-                        ((ServerChannel) channels.get(index)).setBluetoothGattServer(null);
-                        channels.get(index).getPeer().setHardwareConnected(false);
-
-                        if (channels.get(index).getPeer().isDisconnecting()) {
-                            channels.get(index).onDisconnected();
+                    Channel channel = getChannel(peer);
+                    if (channel != null) {
+                        ((ServerChannel) channel).setBluetoothGattServer(null);
+                        channel.getPeer().setHardwareConnected(false);
+                        // the frames in flight are lost, the channel sends them again when the connection is resumed
+                        channel.getTransport().notifyConnectionStateChanged(false);
+
+                        if (channel.getPeer().isDisconnecting()) {
+                            channel.onDisconnected();
                         }
 
-                        if (channels.get(index).getPeer().isConnected()) {
-                            if (channels.get(index).getPeer().isDisconnecting()) {
+                        if (channel.getPeer().isConnected()) {
+                            if (channel.getPeer().isDisconnecting()) {
                                 // disconnection
-                                notifyDisconnection(channels.get(index));
+                                notifyDisconnection(channel);
 
                             } else {
                                 // connection lost
-                                notifyConnectionLost(channels.get(index));
+                                notifyConnectionLost(channel);
                             }
                         } else {
-                            if (channels.get(index).getPeer().isReconnecting()) {
-                                if (channels.get(index).getPeer().isDisconnecting()) {
+                            if (channel.getPeer().isReconnecting()) {
+                                if (channel.getPeer().isDisconnecting()) {
                                     // we had a disconnection after the stopReconnection call (due to the latter method)
-                                    notifyDisconnection(channels.get(index));
+                                    notifyDisconnection(channel);
 
                                 } else {
                                     // we had a disconnect between the hw connection and the complete connection
-                                    stopReconnection(channels.get(index));
+                                    stopReconnection(channel);
 
                                 }
 
                             } else {
                                 // means that there has been a disconnect between the connection request and its acceptance.
                                 // we delete the disconnected channel
-                                channels.remove(index);
+                                removeChannel(channel);
                             }
                         }
                     }
@@ -504,16 +490,15 @@ class BluetoothConnectionServer extends BluetoothConnection {
         });
     }
 
-    @SuppressWarnings("SuspiciousMethodCalls")
     @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
     public void acceptConnection(final Peer peer) {
-        mainHandler.post(() -> {
+        protocolHandler.post(() -> {
             synchronized (channelsLock) {
-                int index = channels.indexOf(peer);
-                if (index != -1) {
-                    if (!channels.get(index).getPeer().isConnected() && !channels.get(index).getPeer().isReconnecting()) {
-                        if (!((ServerChannel) channels.get(index)).acceptConnection()) {
-                            channels.get(index).disconnect(disconnectionCallback);
+                Channel channel = getChannel(peer);
+                if (channel != null) {
+                    if (!channel.getPeer().isConnected() && !channel.getPeer().isReconnecting()) {
+                        if (!((ServerChannel) channel).acceptConnection()) {
+                            channel.disconnect(disconnectionCallback);
                         }
                     }
                 }
@@ -521,18 +506,17 @@ class BluetoothConnectionServer extends BluetoothConnection {
         });
     }
 
-    @SuppressWarnings("SuspiciousMethodCalls")
     @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
     public void rejectConnection(final Peer peer) {
-        mainHandler.post(() -> {
+        protocolHandler.post(() -> {
             synchronized (channelsLock) {
-                int index = channels.indexOf(peer);
-                if (index != -1) {
-                    channels.get(index).resetConnectionCompleteTimer();
-                    if (!channels.get(index).getPeer().isConnected() && !channels.get(index).getPeer().isReconnecting()) {
-                        channels.get(index).getPeer().setDisconnecting(true);
-                        if (!((ServerChannel) channels.get(index)).rejectConnection()) {
-                            channels.get(index).disconnect(disconnectionCallback);
+                Channel channel = getChannel(peer);
+                if (channel != null) {
+                    channel.resetConnectionCompleteTimer();
+                    if (!channel.getPeer().isConnected() && !channel.getPeer().isReconnecting()) {
+                        channel.getPeer().setDisconnecting(true);
+                        if (!((ServerChannel) channel).rejectConnection()) {
+                            channel.disconnect(disconnectionCallback);
                         }
                     }
                 }
@@ -558,14 +542,13 @@ class BluetoothConnectionServer extends BluetoothConnection {
         });    // to cancel a possible connection in progress
     }
 
-    @SuppressWarnings("SuspiciousMethodCalls")
     @Override
     public void readPhy(final Peer peer) {
-        mainHandler.post(() -> {
+        protocolHandler.post(() -> {
             synchronized (channelsLock) {
-                int index = channels.indexOf(peer);
-                if (index != -1) {
-                    channels.get(index).readPhy();
+                Channel channel = getChannel(peer);
+                if (channel != null) {
+                    channel.readPhy();
                 }
             }
         });
@@ -584,6 +567,8 @@ class BluetoothConnectionServer extends BluetoothConnection {
     protected void notifyConnectionSuccess(@NonNull Channel channel) {
         channel.resetConnectionCompleteTimer();
         channel.getPeer().setConnected(true);
+        // the transport can now write, the channel starts the messages queued during the connection
+        channel.getTransport().notifyConnectionStateChanged(true);
         callback.onConnectionSuccess((Peer) channel.getPeer().clone(), BluetoothCommunicator.SERVER);
     }
 
@@ -613,24 +598,23 @@ class BluetoothConnectionServer extends BluetoothConnection {
     @Override
     protected void notifyConnectionResumed(@NonNull Channel channel) {
         channel.resetConnectionCompleteTimer();
-        int index = channels.indexOf(channel);
-        if (index != -1) {
+        if (getChannel(channel.getPeer()) != null) {
             channel.getPeer().setReconnecting(false, true);
-            channels.set(index, channel);
-            callback.onConnectionResumed((Peer) channels.get(index).getPeer().clone());
+            channel.getTransport().notifyConnectionStateChanged(true);
+            callback.onConnectionResumed((Peer) channel.getPeer().clone());
         }
     }
 
     @Override
     protected void notifyPeerUpdated(@NonNull Channel channel, Peer newPeer) {
         Peer peerClone = (Peer) channel.getPeer().clone();
-        channel.setPeer(newPeer);
+        updateChannelPeer(channel, newPeer);
         callback.onPeerUpdated(peerClone, newPeer);
     }
 
     @Override
     protected void notifyDisconnection(Channel channel) {
-        channels.remove(channel);
+        removeChannel(channel);
         channel.getPeer().setReconnecting(false, false);  // we also set the reconnecting to false in case we were reconnecting before the disconnection took place
         callback.onDisconnected((Peer) channel.getPeer().clone());
     }
@@ -16,8 +16,6 @@
 
 package com.ingreatsol.bluetoothcommunicator;
 
-import android.os.Handler;
-import android.os.Looper;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -26,183 +24,98 @@ import androidx.annotation.Nullable;
 
 import com.ingreatsol.bluetoothcommunicator.tools.Timer;
 
-import java.util.ArrayDeque;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 
-abstract class Channel {
+/**
+ * Connection with a peer over GATT: the send and receive state of ProtocolChannel plus the peer, the timers of the connection, reconnection
+ * and disconnection, and the delivery of the completed messages as Message objects.
+ * <br /><br />
+ * The frames are exchanged through a GattClientTransport or a GattServerTransport and the writings are run by the GattScheduler of the
+ * connection (through a GattOperationScheduler). BluetoothConnectionClient delivers the frames received to the transport, while
+ * BluetoothConnectionServer passes them to receiveSubMessage and receiveSubData, because it confirms them with the response of their writing.
+ * The completed messages are delivered to the ReceiveCallbacks of setReceiveCallbacks.
+ * <br /><br />
+ * The sub messages are sent with the legacy ASCII header until the peer is known to understand the binary one: the client knows it
+ * when it discovers the acknowledgement characteristic of the server (added together with the binary header), the server when it receives
+ * the first binary sub message from the client.
+ */
+abstract class Channel extends ProtocolChannel {
     //timeouts of timers
     protected final int RECONNECTION_TIMEOUT = 30000;
     protected final int CONNECTION_COMPLETE_TIMEOUT = 10000;
-    protected final int MESSAGE_TIMEOUT = 1000;
     protected final int NOTIFY_DISCONNECTION_TIMEOUT = 5000;
     protected final int DISCONNECTION_TIMEOUT = 4000;
     //variables and objects
     @NonNull
     private Peer peer;
-    private final BluetoothMessage.SequenceNumber messageID;
-    private final BluetoothMessage.SequenceNumber dataID;
-    @Nullable
-    protected ArrayDeque<BluetoothMessage> pendingMessage;
-    @Nullable
-    protected ArrayDeque<BluetoothMessage> pendingData;
-    private final ArrayList<BluetoothMessage> receivingMessages = new ArrayList<>();
-    private final ArrayList<BluetoothMessage> receivingData = new ArrayList<>();
-    private final ArrayList<BluetoothMessage> receivedMessages = new ArrayList<>();
-    private final ArrayList<BluetoothMessage> receivedData = new ArrayList<>();
-    private Timer connectionCompleteTimer;
-    private Timer reconnectionTimer;
-    private Timer messageTimer;
-    private Timer dataTimer;
-    private Timer notifyDisconnectionTimer;
-    private Timer disconnectionTimer;
-    protected Handler mainHandler;
-    private final Handler messageHandler;
-    private final Handler dataHandler;
-    private MessageCallback messageCallback;
-    private MessageCallback dataCallback;
+    // timeouts of the timer wheel of the connection, they are created once and scheduled again each time
+    private final CallbackTimeout connectionCompleteTimer = new CallbackTimeout();
+    private final CallbackTimeout reconnectionTimer = new CallbackTimeout();
+    private final CallbackTimeout notifyDisconnectionTimer = new CallbackTimeout();
+    private final CallbackTimeout disconnectionTimer = new CallbackTimeout();
     @Nullable
     protected DisconnectionNotificationCallback disconnectionNotificationCallback;
     private boolean notifyingDisconnection = false;
     private boolean disconnecting = false;
-    protected boolean messagesPaused = false;
-    protected boolean dataPaused = false;
-    protected final Object lock = new Object();
-
-    protected Channel(@NonNull Peer peer) {
-        this.messageID = new BluetoothMessage.SequenceNumber(BluetoothMessage.ID_LENGTH);
-        this.dataID = new BluetoothMessage.SequenceNumber(BluetoothMessage.ID_LENGTH);
-        this.mainHandler = new Handler(Looper.getMainLooper());
-        this.messageHandler = new Handler(Looper.getMainLooper());
-        this.dataHandler = new Handler(Looper.getMainLooper());
-        this.peer = peer;
-    }
-
-    public void writeMessage(Message message, MessageCallback callback) {
-        synchronized (lock) {
-            if (pendingMessage == null) {       // if it is true then we are not writing any messages
-                // division from the message and sending of the various parts
-                pendingMessage = message.splitInBluetoothMessages(messageID);
-                messageID.increment();
-                Log.e("messageSend", message.getText());
-                messageCallback = callback;
-                writeSubMessage();
-            }
-        }
-    }
-
-    public void writeData(Message data, MessageCallback callback) {
-        synchronized (lock) {
-            if (pendingData == null) {       // if it is true then we are not writing any messages
-                // division from the message and sending of the various parts
-                pendingData = data.splitInBluetoothMessages(dataID);
-                dataID.increment();
-                Log.e("dataSend", data.getText());
-                dataCallback = callback;
-                writeSubData();
-            }
-        }
-    }
-
-    public void onSubMessageWriteSuccess() {
-        synchronized (lock) {
-            BluetoothMessage subMessageSent = null;
-            if (pendingMessage != null) {
-                subMessageSent = pendingMessage.pollFirst();  // remove the newly sent subMessage
-            }
-            resetMessageTimer();
-            if (subMessageSent != null && subMessageSent.getType() == BluetoothMessage.FINAL) {
-                pendingMessage = null;   // remove the newly sent ConversationMessage
-                notifyMessageSent();
-            } else {
-                writeSubMessage();
-            }
-        }
-    }
-
-    public void onSubMessageWriteFailed() {
-        writeSubMessage();
-    }
+    @Nullable
+    private ReceiveCallback messageReceiveCallback;
+    @Nullable
+    private ReceiveCallback dataReceiveCallback;
+    private final GattOperationScheduler operationScheduler;
 
-    public void onSubDataWriteSuccess() {
-        synchronized (lock) {
-            BluetoothMessage subDataSent = null;
-            if (pendingData != null) {
-                subDataSent = pendingData.pollFirst();  // remove the newly sent subMessage
-            }
-            resetDataTimer();
-            if (subDataSent != null && subDataSent.getType() == BluetoothMessage.FINAL) {
-                pendingData = null;   // remove the newly sent ConversationMessage
-                notifyDataSent();
-            } else {
-                writeSubData();
-            }
-        }
+    protected Channel(@NonNull Peer peer, @NonNull GattScheduler gattScheduler, @NonNull GattOperationScheduler operationScheduler, @NonNull Transport transport) {
+        super(operationScheduler, gattScheduler.getTimerWheel(), transport);
+        this.peer = peer;
+        this.operationScheduler = operationScheduler;
+        // the peer could be of an older version of the library, binary sub messages are sent only when it is known that it understands them
+        setVersion(BluetoothMessage.LEGACY_VERSION);
     }
 
-    public void onSubDataWriteFailed() {
-        writeSubData();
+    /**
+     * Adds message to the queue of this channel, callback is notified when the message is sent (or when the channel is disconnected).
+     */
+    public void writeMessage(@NonNull Message message, @Nullable MessageCallback callback) {
+        Log.e("messageSend", message.getText());
+        writeMessage(message.getHeader().getBytes(StandardCharsets.UTF_8), message.getData(), message.getPriority(), callback);
     }
 
-    public void pausePendingMessage() {
-        synchronized (lock) {
-            if (!messagesPaused) {
-                // delete all runnables in messageHandler to prevent the pause from being activated again
-                messageHandler.removeCallbacksAndMessages(null);
-                messagesPaused = true;
-            }
-        }
+    public void writeData(@NonNull Message data, @Nullable MessageCallback callback) {
+        Log.e("dataSend", data.getText());
+        writeData(data.getHeader().getBytes(StandardCharsets.UTF_8), data.getData(), data.getPriority(), callback);
     }
 
-    public void resumePendingMessage() {
+    @Override
+    protected void onMessageReceived(int stream, @NonNull String header, @NonNull byte[] data) {
+        ReceiveCallback callback;
         synchronized (lock) {
-            if (messagesPaused) {
-                // delete all runnables in messageHandler to ensure that it can not be run multiple times
-                messageHandler.removeCallbacksAndMessages(null);
-                messageHandler.postDelayed(() -> {
-                    synchronized (lock) {
-                        messagesPaused = false;
-                    }
-                }, 1500);
-            }
+            callback = stream == Transport.MESSAGE ? messageReceiveCallback : dataReceiveCallback;
         }
-    }
-
-    public void pausePendingData() {
-        synchronized (lock) {
-            if (!dataPaused) {
-                // delete all runnables in dataHandler to prevent the pause from being activated again
-                dataHandler.removeCallbacksAndMessages(null);
-                dataPaused = true;
-            }
+        if (callback != null) {
+            // the peer of this channel becomes the sender of the completed Message
+            callback.onReceived(new Message((Peer) getPeer().clone(), header, data));
         }
     }
 
-    public void resumePendingData() {
+    /**
+     * Sets the callbacks of the messages and data completed from the frames received.
+     */
+    public void setReceiveCallbacks(@Nullable ReceiveCallback messageReceiveCallback, @Nullable ReceiveCallback dataReceiveCallback) {
         synchronized (lock) {
-            if (dataPaused) {
-                // delete all runnables in dataHandler to ensure that it can not be run multiple times
-                dataHandler.removeCallbacksAndMessages(null);
-                dataHandler.postDelayed(() -> {
-                    synchronized (lock) {
-                        dataPaused = false;
-                    }
-                }, 1500);
-            }
+            this.messageReceiveCallback = messageReceiveCallback;
+            this.dataReceiveCallback = dataReceiveCallback;
         }
     }
 
     public void setPeer(@NonNull Peer peer) {
         this.peer = peer;
+        operationScheduler.setPeer(peer);
     }
 
-    protected abstract void writeSubMessage();
-
-    protected abstract void writeSubData();
-
     public abstract void readPhy();
 
-    public Timer getReconnectionTimer() {
-        return reconnectionTimer;
+    public boolean isReconnectionTimerRunning() {
+        return reconnectionTimer.timeout.isScheduled();
     }
 
     @NonNull
@@ -210,60 +123,6 @@ abstract class Channel {
         return peer;
     }
 
-    @Nullable
-    public BluetoothMessage getPendingSubMessage() {
-        synchronized (lock) {
-            if (pendingMessage != null) {
-                return pendingMessage.peekFirst();
-            } else {
-                return null;
-            }
-        }
-    }
-
-    @Nullable
-    public BluetoothMessage getPendingSubData() {
-        synchronized (lock) {
-            if (pendingData != null) {
-                return pendingData.peekFirst();
-            } else {
-                return null;
-            }
-        }
-    }
-
-    public ArrayList<BluetoothMessage> getReceivingMessages() {
-        return receivingMessages;
-    }
-
-    public ArrayList<BluetoothMessage> getReceivingData() {
-        return receivingData;
-    }
-
-    public ArrayList<BluetoothMessage> getReceivedMessages() {
-        return receivedMessages;
-    }
-
-    public ArrayList<BluetoothMessage> getReceivedData() {
-        return receivedData;
-    }
-
-    public void addReceivedMessage(@NonNull BluetoothMessage message) {
-        if (message.getId().isMax()) {
-            receivedMessages.clear();
-        } else {
-            receivedMessages.add(message);
-        }
-    }
-
-    public void addReceivedData(@NonNull BluetoothMessage data) {
-        if (data.getId().isMax()) {
-            receivedData.clear();
-        } else {
-            receivedData.add(data);
-        }
-    }
-
     @Override
     public boolean equals(@Nullable Object obj) {
         if (obj instanceof Channel) {
@@ -275,7 +134,21 @@ abstract class Channel {
         return false;
     }
 
-    protected boolean notifyDisconnection(final DisconnectionNotificationCallback disconnectionNotificationCallback) {
+    /**
+     * Starts the notification of the disconnection to the peer, the messages not yet sent are canceled.
+     */
+    public boolean notifyDisconnection(DisconnectionNotificationCallback disconnectionNotificationCallback) {
+        ArrayList<MessageCallback> canceledCallbacks = new ArrayList<>();
+        boolean result = notifyDisconnection(disconnectionNotificationCallback, canceledCallbacks);
+        // the callbacks of the canceled messages can use the channel, so they are notified outside its lock
+        notifyMessagesSent(canceledCallbacks);
+        return result;
+    }
+
+    /**
+     * @param canceledCallbacks filled with the callbacks of the canceled messages, notified by notifyDisconnection after the release of the lock
+     */
+    protected boolean notifyDisconnection(final DisconnectionNotificationCallback disconnectionNotificationCallback, @NonNull ArrayList<MessageCallback> canceledCallbacks) {
         synchronized (lock) {
             if (!notifyingDisconnection) {
                 notifyingDisconnection = true;
@@ -294,15 +167,24 @@ abstract class Channel {
                     }
                 });
                 // stop sending messages
-                notifyMessageSent();
-                notifyDataSent();
+                canceledCallbacks.addAll(clearMessages());
                 return true;
             }
             return false;
         }
     }
 
-    public boolean disconnect(final DisconnectionCallback callback) {
+    public boolean disconnect(DisconnectionCallback callback) {
+        ArrayList<MessageCallback> canceledCallbacks = new ArrayList<>();
+        boolean result = disconnect(callback, canceledCallbacks);
+        notifyMessagesSent(canceledCallbacks);
+        return result;
+    }
+
+    /**
+     * @param canceledCallbacks filled with the callbacks of the canceled messages, notified by disconnect after the release of the lock
+     */
+    protected boolean disconnect(final DisconnectionCallback callback, @NonNull ArrayList<MessageCallback> canceledCallbacks) {
         synchronized (lock) {
             if (!disconnecting) {
                 disconnecting = true;
@@ -326,8 +208,7 @@ abstract class Channel {
                     callback.onAlreadyDisconnected(getPeer());
                 }
                 // stop sending messages
-                notifyMessageSent();
-                notifyDataSent();
+                canceledCallbacks.addAll(clearMessages());
                 return true;
             }
             return false;
@@ -338,148 +219,97 @@ abstract class Channel {
         resetDisconnectionTimer();
     }
 
+    @Override
     public void destroy() {
         synchronized (lock) {
-            resetMessageTimer();
-            resetDataTimer();
+            super.destroy();
             resetReconnectionTimer();
             resetConnectionCompleteTimer();
             resetDisconnectionTimer();
             resetNotifyDisconnectionTimer();
-            messageHandler.removeCallbacksAndMessages(null);
-            dataHandler.removeCallbacksAndMessages(null);
-            pendingMessage = null;
-            pendingData = null;
             disconnectionNotificationCallback = null;
-            messageCallback = null;
-            dataCallback = null;
         }
     }
 
-
-    private void notifyMessageSent() {
-        if (messageCallback != null) {
-            // this is done because onMessageSent must be the last operation performed by this method since the latter sends subsequent messages
-            MessageCallback oldCallback = messageCallback;
-            messageCallback = null;
-            oldCallback.onMessageSent();
-        }
-    }
-
-    private void notifyDataSent() {
-        if (dataCallback != null) {
-            // this is done because onMessageSent must be the last operation performed by this method since the latter sends subsequent messages
-            MessageCallback oldCallback = dataCallback;
-            dataTimer = null;
-            oldCallback.onMessageSent();
-        }
-    }
-
-
     public void startConnectionCompleteTimer(final Timer.Callback callback) {
         synchronized (lock) {
-            connectionCompleteTimer = new Timer(CONNECTION_COMPLETE_TIMEOUT);
-            connectionCompleteTimer.setCallback(callback);
-            connectionCompleteTimer.start();
+            connectionCompleteTimer.callback = callback;
+            timerWheel.schedule(connectionCompleteTimer.timeout, CONNECTION_COMPLETE_TIMEOUT);
         }
     }
 
     public void resetConnectionCompleteTimer() {
         synchronized (lock) {
-            if (connectionCompleteTimer != null) {
-                connectionCompleteTimer.cancel();
-                connectionCompleteTimer = null;
-            }
+            timerWheel.cancel(connectionCompleteTimer.timeout);
+            connectionCompleteTimer.callback = null;
         }
     }
 
     public void startReconnectionTimer(final Timer.Callback callback) {
         synchronized (lock) {
-            reconnectionTimer = new Timer(RECONNECTION_TIMEOUT);
-            reconnectionTimer.setCallback(callback);
-            reconnectionTimer.start();
+            reconnectionTimer.callback = callback;
+            timerWheel.schedule(reconnectionTimer.timeout, RECONNECTION_TIMEOUT);
         }
     }
 
     public void resetReconnectionTimer() {
         synchronized (lock) {
-            if (reconnectionTimer != null) {
-                reconnectionTimer.cancel();
-                reconnectionTimer = null;
-            }
+            timerWheel.cancel(reconnectionTimer.timeout);
+            reconnectionTimer.callback = null;
         }
     }
 
-    protected void startMessageTimer(final Timer.Callback callback) {
+    private void startNotifyDisconnectionTimer(final Timer.Callback callback) {
         synchronized (lock) {
-            messageTimer = new Timer(MESSAGE_TIMEOUT);
-            messageTimer.setCallback(callback);
-            messageTimer.start();
+            notifyDisconnectionTimer.callback = callback;
+            timerWheel.schedule(notifyDisconnectionTimer.timeout, NOTIFY_DISCONNECTION_TIMEOUT);
         }
     }
 
-    private void resetMessageTimer() {
+    private void resetNotifyDisconnectionTimer() {
         synchronized (lock) {
-            if (messageTimer != null) {
-                messageTimer.cancel();
-                messageTimer = null;
-            }
+            timerWheel.cancel(notifyDisconnectionTimer.timeout);
+            notifyDisconnectionTimer.callback = null;
         }
     }
 
-    protected void startDataTimer(final Timer.Callback callback) {
+    private void startDisconnectionTimer(final Timer.Callback callback) {
         synchronized (lock) {
-            dataTimer = new Timer(MESSAGE_TIMEOUT);
-            dataTimer.setCallback(callback);
-            dataTimer.start();
+            disconnectionTimer.callback = callback;
+            timerWheel.schedule(disconnectionTimer.timeout, DISCONNECTION_TIMEOUT);
         }
     }
 
-    private void resetDataTimer() {
+    private void resetDisconnectionTimer() {
         synchronized (lock) {
-            if (dataTimer != null) {
-                dataTimer.cancel();
-                dataTimer = null;
-            }
+            timerWheel.cancel(disconnectionTimer.timeout);
+            disconnectionTimer.callback = null;
         }
     }
 
-    private void startNotifyDisconnectionTimer(final Timer.Callback callback) {
-        synchronized (lock) {
-            notifyDisconnectionTimer = new Timer(NOTIFY_DISCONNECTION_TIMEOUT);
-            notifyDisconnectionTimer.setCallback(callback);
-            notifyDisconnectionTimer.start();
-        }
-    }
+    /**
+     * Timeout that runs the callback of its last start (if it has not been reset in the meantime).
+     */
+    private class CallbackTimeout implements Runnable {
+        private final TimerWheel.Timeout timeout = new TimerWheel.Timeout(this);
+        @Nullable
+        private Timer.Callback callback;
 
-    private void resetNotifyDisconnectionTimer() {
-        synchronized (lock) {
-            if (notifyDisconnectionTimer != null) {
-                notifyDisconnectionTimer.cancel();
-                notifyDisconnectionTimer = null;
+        @Override
+        public void run() {
+            Timer.Callback callback;
+            synchronized (lock) {
+                callback = this.callback;
+                this.callback = null;
             }
-        }
-    }
-
-    private void startDisconnectionTimer(final Timer.Callback callback) {
-        synchronized (lock) {
-            disconnectionTimer = new Timer(DISCONNECTION_TIMEOUT);
-            disconnectionTimer.setCallback(callback);
-            disconnectionTimer.start();
-        }
-    }
-
-    private void resetDisconnectionTimer() {
-        synchronized (lock) {
-            if (disconnectionTimer != null) {
-                disconnectionTimer.cancel();
-                disconnectionTimer = null;
+            if (callback != null) {
+                callback.onFinished();
             }
         }
     }
 
-    public static abstract class MessageCallback {
-        public abstract void onMessageSent();
+    public static abstract class ReceiveCallback {
+        public abstract void onReceived(@NonNull Message message);
     }
 
     public static abstract class DisconnectionNotificationCallback {
@@ -20,126 +20,86 @@ import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
 import android.os.Build;
-import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.RequiresPermission;
 
-import com.ingreatsol.bluetoothcommunicator.tools.Timer;
-
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.UUID;
 
 class ClientChannel extends Channel {
-    private BluetoothGatt bluetoothGatt;
+    private final GattClientTransport gattTransport;
+
+    public ClientChannel(@NonNull Peer peer, @NonNull GattScheduler gattScheduler) {
+        this(peer, gattScheduler, new GattClientTransport(peer));
+    }
 
-    public ClientChannel(@NonNull Peer peer) {
-        super(peer);
+    private ClientChannel(@NonNull Peer peer, @NonNull GattScheduler gattScheduler, @NonNull GattClientTransport gattTransport) {
+        super(peer, gattScheduler, new GattOperationScheduler(gattScheduler, peer) {
+            @NonNull
+            @Override
+            protected UUID getCharacteristic(int type, int stream) {
+                if (type == FRAME) {
+                    return GattClientTransport.getFrameCharacteristic(stream);
+                }
+                return GattClientTransport.getAcknowledgementCharacteristic(stream);
+            }
+        }, gattTransport);
+        this.gattTransport = gattTransport;
     }
 
     public void setBluetoothGatt(BluetoothGatt bluetoothGatt) {
         synchronized (lock) {
-            this.bluetoothGatt = bluetoothGatt;
+            gattTransport.setBluetoothGatt(bluetoothGatt);
         }
     }
 
     public BluetoothGatt getBluetoothGatt() {
-        return bluetoothGatt;
+        return gattTransport.getBluetoothGatt();
     }
 
     @Override
-    protected void writeSubMessage() {
-        new Thread() {
-            @Override
-            @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
-            public void run() {
-                super.run();
-                synchronized (lock) {
-                    boolean success = false;
-                    if (bluetoothGatt != null && !messagesPaused && getPeer().isFullyConnected()) {
-                        BluetoothGattService service = bluetoothGatt.getService(BluetoothConnection.APP_UUID);
-
-                        if (service != null) {
-                            if (pendingMessage != null) {
-                                BluetoothMessage subMessageToSend = pendingMessage.peekFirst();
-                                if (subMessageToSend != null) {   // if there are other subMessages for the message we are sending, we send the next one
-                                    BluetoothGattCharacteristic output = service.getCharacteristic(BluetoothConnectionServer.MESSAGE_RECEIVE_UUID);
-                                    if (output != null) {
-                                        output.setValue(subMessageToSend.getCompleteData());
-                                        success = bluetoothGatt.writeCharacteristic(output);
-                                        Log.e("subClientMessage send", "-" + success);
-                                    }
-                                }
-                            } else {
-                                success = true;
-                            }
-                        }
-                    }
-                    final boolean finalSuccess = success;
-                    if (finalSuccess) {
-                        //start of message timer
-                        startMessageTimer(new Timer.Callback() {
-                            @Override
-                            public void onFinished() {
-                                onSubMessageWriteFailed();
-                            }
-                        });
-                    } else {
-                        writeSubMessage();
-                    }
-                }
-            }
-        }.start();
+    public void setPeer(@NonNull Peer peer) {
+        super.setPeer(peer);
+        gattTransport.setPeer(peer);
+    }
+
+    /**
+     * In bulk transfer the sub data are written without response and the send window is at least BULK_SEND_WINDOW_SIZE (the credits of the
+     * flow control), they are confirmed by the server with DATA_ACKNOWLEDGEMENT_UUID.
+     */
+    public void setBulkTransfer(boolean bulkTransfer) {
+        synchronized (lock) {
+            gattTransport.setBulkTransfer(bulkTransfer);
+        }
     }
 
+    /**
+     * The sub messages are written with response and GATT runs one writing at a time, so each one is confirmed by the completion of its
+     * writing before the next one starts: the send window does not apply from the client to the server.
+     */
     @Override
-    protected void writeSubData() {
-        new Thread() {
-            @Override
-            @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
-            public void run() {
-                super.run();
-                synchronized (lock) {
-                    boolean success = false;
-                    if (bluetoothGatt != null && !dataPaused && getPeer().isFullyConnected()) {
-                        BluetoothGattService service = bluetoothGatt.getService(BluetoothConnection.APP_UUID);
-
-                        if (service != null) {
-                            if (pendingData != null) {
-                                BluetoothMessage subDataToSend = pendingData.peekFirst();
-                                if (subDataToSend != null) {   // if there are other subMessages for the message we are sending, we send the next one
-                                    BluetoothGattCharacteristic output = service.getCharacteristic(BluetoothConnectionServer.DATA_RECEIVE_UUID);
-                                    if (output != null) {
-                                        output.setValue(subDataToSend.getCompleteData());
-                                        success = bluetoothGatt.writeCharacteristic(output);
-                                        Log.e("subClientData send", "-" + success);
-                                    }
-                                }
-                            } else {
-                                success = true;
-                            }
-                        }
-                    }
-                    final boolean finalSuccess = success;
-                    if (finalSuccess) {
-                        //start of data timer
-                        startDataTimer(new Timer.Callback() {
-                            @Override
-                            public void onFinished() {
-                                onSubDataWriteFailed();
-                            }
-                        });
-                    } else {
-                        writeSubData();
-                    }
-                }
+    protected int getMessageSendWindowSize() {
+        return 1;
+    }
+
+    @Override
+    protected int getDataSendWindowSize() {
+        synchronized (lock) {
+            if (gattTransport.isBulkTransferSupported()) {
+                return Math.max(super.getDataSendWindowSize(), BULK_SEND_WINDOW_SIZE);
             }
-        }.start();
+            // written with response, like the sub messages
+            return 1;
+        }
     }
 
     @Override
     @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
     public void readPhy() {
         synchronized (lock) {
+            BluetoothGatt bluetoothGatt = gattTransport.getBluetoothGatt();
             if (bluetoothGatt != null && getPeer().isFullyConnected()) {
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
                     bluetoothGatt.readPhy();
@@ -151,54 +111,25 @@ class ClientChannel extends Channel {
     @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
     public boolean requestConnection(String uniqueName) {
         synchronized (lock) {
-            boolean success = false;
-            if (bluetoothGatt != null) {
-                BluetoothGattService service = bluetoothGatt.getService(BluetoothConnection.APP_UUID);
-                if (service != null) {
-                    BluetoothGattCharacteristic output = service.getCharacteristic(BluetoothConnectionServer.CONNECTION_REQUEST_UUID);
-                    if (output != null) {
-                        output.setValue((uniqueName).getBytes(StandardCharsets.UTF_8));
-                        success = bluetoothGatt.writeCharacteristic(output);
-                    }
-                }
-            }
-            return success;
+            return gattTransport.writeCharacteristic(BluetoothConnectionServer.CONNECTION_REQUEST_UUID, uniqueName.getBytes(StandardCharsets.UTF_8));
         }
     }
 
     @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
     public boolean notifyConnectionResumed() {
         synchronized (lock) {
-            boolean success = false;
-            if (bluetoothGatt != null) {
-                BluetoothGattService service = bluetoothGatt.getService(BluetoothConnection.APP_UUID);
-                if (service != null) {
-                    BluetoothGattCharacteristic output = service.getCharacteristic(BluetoothConnectionServer.CONNECTION_RESUMED_RECEIVE_UUID);
-                    if (output != null) {
-                        output.setValue(String.valueOf(1).getBytes(StandardCharsets.UTF_8));
-                        success = bluetoothGatt.writeCharacteristic(output);
-                    }
-                }
-            }
-            return success;
+            return gattTransport.writeCharacteristic(BluetoothConnectionServer.CONNECTION_RESUMED_RECEIVE_UUID, String.valueOf(1).getBytes(StandardCharsets.UTF_8));
         }
     }
 
     @Override
     @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
-    public boolean notifyDisconnection(DisconnectionNotificationCallback disconnectionNotificationCallback) {
+    protected boolean notifyDisconnection(DisconnectionNotificationCallback disconnectionNotificationCallback, @NonNull ArrayList<MessageCallback> canceledCallbacks) {
         synchronized (lock) {
             boolean success = false;
-            if (super.notifyDisconnection(disconnectionNotificationCallback)) {
-                if (bluetoothGatt != null && getPeer().isFullyConnected()) {
-                    BluetoothGattService service = bluetoothGatt.getService(BluetoothConnection.APP_UUID);
-                    if (service != null) {
-                        BluetoothGattCharacteristic output = service.getCharacteristic(BluetoothConnectionServer.DISCONNECTION_RECEIVE_UUID);  //si invia la notifica di disconnessione
-                        if (output != null) {
-                            output.setValue(String.valueOf(1).getBytes(StandardCharsets.UTF_8));
-                            success = bluetoothGatt.writeCharacteristic(output);
-                        }
-                    }
+            if (super.notifyDisconnection(disconnectionNotificationCallback, canceledCallbacks)) {
+                if (gattTransport.isConnected()) {
+                    success = gattTransport.writeCharacteristic(BluetoothConnectionServer.DISCONNECTION_RECEIVE_UUID, String.valueOf(1).getBytes(StandardCharsets.UTF_8));  //si invia la notifica di disconnessione
                 }
             }
             return success;
@@ -207,9 +138,10 @@ class ClientChannel extends Channel {
 
     @Override
     @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
-    public boolean disconnect(DisconnectionCallback disconnectionCallback) {
+    protected boolean disconnect(DisconnectionCallback disconnectionCallback, @NonNull ArrayList<MessageCallback> canceledCallbacks) {
         synchronized (lock) {
-            if (super.disconnect(disconnectionCallback)) {
+            if (super.disconnect(disconnectionCallback, canceledCallbacks)) {
+                BluetoothGatt bluetoothGatt = gattTransport.getBluetoothGatt();
                 if (bluetoothGatt != null) {
                     // canceling notifications
                     BluetoothGattService service = bluetoothGatt.getService(BluetoothConnection.APP_UUID);
@@ -231,7 +163,7 @@ class ClientChannel extends Channel {
 
                     // actual disconnection
                     bluetoothGatt.disconnect();
-                    bluetoothGatt = null;
+                    gattTransport.setBluetoothGatt(null);
                 }
                 return true;
             }
@@ -243,6 +175,7 @@ class ClientChannel extends Channel {
     public void destroy() {
         synchronized (lock) {
             super.destroy();
+            BluetoothGatt bluetoothGatt = gattTransport.getBluetoothGatt();
             if (bluetoothGatt != null) {
                 bluetoothGatt.disconnect();
                 bluetoothGatt.close();
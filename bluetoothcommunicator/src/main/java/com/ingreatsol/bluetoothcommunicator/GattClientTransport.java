@@ -0,0 +1,159 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ingreatsol.bluetoothcommunicator;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresPermission;
+
+import java.util.UUID;
+
+/**
+ * Transport of a ClientChannel: the frames are written to the characteristics of the server (MESSAGE_RECEIVE_UUID and DATA_RECEIVE_UUID,
+ * the latter without response in bulk transfer) and the acknowledgements of the frames received are written to READ_RESPONSE_MESSAGE_RECEIVED_UUID
+ * and READ_RESPONSE_DATA_RECEIVED_UUID.
+ * <br /><br />
+ * The GATT callbacks are dispatched by BluetoothConnectionClient, that notifies the events of this transport.
+ */
+class GattClientTransport extends Transport {
+    @NonNull
+    private volatile Peer peer;
+    @Nullable
+    private volatile BluetoothGatt bluetoothGatt;
+    private volatile boolean bulkTransfer = false;
+
+    public GattClientTransport(@NonNull Peer peer) {
+        this.peer = peer;
+    }
+
+    public void setPeer(@NonNull Peer peer) {
+        this.peer = peer;
+    }
+
+    public void setBluetoothGatt(@Nullable BluetoothGatt bluetoothGatt) {
+        this.bluetoothGatt = bluetoothGatt;
+    }
+
+    @Nullable
+    public BluetoothGatt getBluetoothGatt() {
+        return bluetoothGatt;
+    }
+
+    public void setBulkTransfer(boolean bulkTransfer) {
+        this.bulkTransfer = bulkTransfer;
+    }
+
+    /**
+     * @return the characteristic of the server where the frames of stream are written
+     */
+    @NonNull
+    public static UUID getFrameCharacteristic(int stream) {
+        return stream == MESSAGE ? BluetoothConnectionServer.MESSAGE_RECEIVE_UUID : BluetoothConnectionServer.DATA_RECEIVE_UUID;
+    }
+
+    /**
+     * @return the characteristic of the server where the acknowledgements of the frames received on stream are written
+     */
+    @NonNull
+    public static UUID getAcknowledgementCharacteristic(int stream) {
+        return stream == MESSAGE ? BluetoothConnectionServer.READ_RESPONSE_MESSAGE_RECEIVED_UUID : BluetoothConnectionServer.READ_RESPONSE_DATA_RECEIVED_UUID;
+    }
+
+    @Override
+    @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
+    public boolean write(int stream, @NonNull byte[] frame) {
+        BluetoothGatt bluetoothGatt = this.bluetoothGatt;
+        boolean success = false;
+        if (bluetoothGatt != null && peer.isFullyConnected()) {
+            BluetoothGattService service = bluetoothGatt.getService(BluetoothConnection.APP_UUID);
+            if (service != null) {
+                BluetoothGattCharacteristic output = service.getCharacteristic(getFrameCharacteristic(stream));
+                if (output != null) {
+                    if (stream == DATA) {
+                        if (isBulkTransferSupported(service)) {
+                            // the server confirms the sub data with DATA_ACKNOWLEDGEMENT_UUID, every few sub data
+                            output.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+                        } else {
+                            output.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+                        }
+                    }
+                    output.setValue(frame);
+                    success = bluetoothGatt.writeCharacteristic(output);
+                }
+            }
+        }
+        return success;
+    }
+
+    @Override
+    @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
+    public boolean writeAcknowledgement(int stream, @NonNull byte[] acknowledgement) {
+        return writeCharacteristic(getAcknowledgementCharacteristic(stream), acknowledgement);
+    }
+
+    /**
+     * Writes value to characteristic of the service of the server.
+     *
+     * @return true if the writing is started
+     */
+    @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
+    public boolean writeCharacteristic(@NonNull UUID characteristic, @NonNull byte[] value) {
+        BluetoothGatt bluetoothGatt = this.bluetoothGatt;
+        if (bluetoothGatt != null) {
+            BluetoothGattService service = bluetoothGatt.getService(BluetoothConnection.APP_UUID);
+            if (service != null) {
+                BluetoothGattCharacteristic output = service.getCharacteristic(characteristic);
+                if (output != null) {
+                    output.setValue(value);
+                    return bluetoothGatt.writeCharacteristic(output);
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return bluetoothGatt != null && peer.isFullyConnected();
+    }
+
+    /**
+     * @return true if bulk transfer is enabled and the server supports it
+     */
+    public boolean isBulkTransferSupported() {
+        BluetoothGatt bluetoothGatt = this.bluetoothGatt;
+        if (bulkTransfer && bluetoothGatt != null) {
+            BluetoothGattService service = bluetoothGatt.getService(BluetoothConnection.APP_UUID);
+            return service != null && isBulkTransferSupported(service);
+        }
+        return false;
+    }
+
+    private boolean isBulkTransferSupported(@NonNull BluetoothGattService service) {
+        if (!bulkTransfer) {
+            return false;
+        }
+        // servers of older versions don't have the acknowledgement characteristic
+        BluetoothGattCharacteristic dataReceive = service.getCharacteristic(BluetoothConnectionServer.DATA_RECEIVE_UUID);
+        return dataReceive != null && (dataReceive.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0
+                && service.getCharacteristic(BluetoothConnectionServer.DATA_ACKNOWLEDGEMENT_UUID) != null;
+    }
+}
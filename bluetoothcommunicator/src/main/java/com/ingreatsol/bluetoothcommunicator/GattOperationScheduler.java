@@ -0,0 +1,66 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ingreatsol.bluetoothcommunicator;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.UUID;
+
+/**
+ * OperationScheduler of a Channel, its operations are run by the GattScheduler of the connection in the queue of the device of the peer,
+ * together with the other GATT operations of the device. Each type of operation of each stream is identified by the characteristic
+ * whose GATT callback completes it (getCharacteristic).
+ */
+abstract class GattOperationScheduler extends OperationScheduler {
+    private final GattScheduler gattScheduler;
+    @NonNull
+    private volatile Peer peer;
+
+    public GattOperationScheduler(@NonNull GattScheduler gattScheduler, @NonNull Peer peer) {
+        this.gattScheduler = gattScheduler;
+        this.peer = peer;
+    }
+
+    public void setPeer(@NonNull Peer peer) {
+        this.peer = peer;
+    }
+
+    @Override
+    public void schedule(int type, int stream, @NonNull Operation operation) {
+        gattScheduler.schedule(peer.getDevice().getAddress(), getCharacteristic(type, stream), operation);
+    }
+
+    @Override
+    public void onOperationCompleted(int type, int stream) {
+        gattScheduler.onOperationCompleted(peer.getDevice().getAddress(), getCharacteristic(type, stream));
+    }
+
+    @Override
+    public void cancel() {
+        if (peer.getDevice() != null) {
+            gattScheduler.cancel(peer.getDevice().getAddress());
+        }
+    }
+
+    /**
+     * @param type FRAME or ACKNOWLEDGEMENT
+     * @return the characteristic whose GATT callback completes the operations of type on stream, or null if any callback completes them
+     */
+    @Nullable
+    protected abstract UUID getCharacteristic(int type, int stream);
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ingreatsol.bluetoothcommunicator;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * Runs the GATT operations of a BluetoothConnection on a single background thread.
+ * <br /><br />
+ * The same thread is the protocol thread of the connection: the GATT callbacks, the timers and the other transport state
+ * of the connection and of its channels are processed on its looper (getLooper), never on the main thread, and all the timeouts
+ * of the connection are scheduled on its TimerWheel (getTimerWheel).
+ * <br /><br />
+ * Android allows only one GATT operation at a time for each device, so every device has its own queue and the next operation
+ * of a device is started only when the GATT callback of the previous one notifies its completion (with onOperationCompleted),
+ * or after OPERATION_TIMEOUT if the callback never arrives. Operations that can't be started yet (the device is busy, for example
+ * because the peer is sending to us at the same time) are started again after a growing delay, behind the other operations of the
+ * same device, so both directions of a channel can transfer at the same time without pausing each other.
+ */
+class GattScheduler {
+    // results of Operation.start
+    public static final int STARTED = OperationScheduler.STARTED;
+    public static final int COMPLETED = OperationScheduler.COMPLETED;
+    public static final int RETRY = OperationScheduler.RETRY;
+    private static final int OPERATION_TIMEOUT = 2000;
+    private static final int MIN_RETRY_DELAY = 10;
+    private static final int MAX_RETRY_DELAY = 320;
+    @Nullable
+    private final HandlerThread thread;
+    @Nullable
+    private final Handler handler;
+    // runs the tasks of the scheduler on its thread (or in the tests on the thread that advances the time)
+    private final TimerWheel.Ticker ticker;
+    private final TimerWheel timerWheel;
+    // accessed only by the scheduler thread
+    private final HashMap<String, ArrayDeque<Entry>> queues = new HashMap<>();
+    private final HashMap<String, Entry> runningOperations = new HashMap<>();
+    // incremented by cancel, so the retries of the canceled operations of the device are discarded
+    private final HashMap<String, Integer> generations = new HashMap<>();
+    // statistics
+    private volatile int queueDepth = 0;
+    private volatile long averageWaitTime = 0;
+
+    public GattScheduler(String name) {
+        this(startThread(name));
+    }
+
+    private GattScheduler(@NonNull HandlerThread thread) {
+        this(thread, new Handler(thread.getLooper()));
+    }
+
+    private GattScheduler(@NonNull HandlerThread thread, @NonNull Handler handler) {
+        this(thread, handler, newTicker(handler));
+    }
+
+    /**
+     * Creates a scheduler without thread, whose tasks are run by ticker.
+     */
+    GattScheduler(@NonNull TimerWheel.Ticker ticker) {
+        this(null, null, ticker);
+    }
+
+    private GattScheduler(@Nullable HandlerThread thread, @Nullable Handler handler, @NonNull TimerWheel.Ticker ticker) {
+        this.thread = thread;
+        this.handler = handler;
+        this.ticker = ticker;
+        timerWheel = new TimerWheel(ticker, TimerWheel.DEFAULT_TICK_DURATION, TimerWheel.DEFAULT_WHEEL_SIZE, ticker.now());
+    }
+
+    @NonNull
+    private static HandlerThread startThread(String name) {
+        HandlerThread thread = new HandlerThread(name);
+        thread.start();
+        return thread;
+    }
+
+    @NonNull
+    private static TimerWheel.Ticker newTicker(@NonNull final Handler handler) {
+        return new TimerWheel.Ticker() {
+            @Override
+            public long now() {
+                return SystemClock.elapsedRealtime();
+            }
+
+            @Override
+            public void postDelayed(@NonNull Runnable runnable, long delay) {
+                handler.postDelayed(runnable, delay);
+            }
+
+            @Override
+            public void removeCallbacks(@NonNull Runnable runnable) {
+                handler.removeCallbacks(runnable);
+            }
+        };
+    }
+
+    /**
+     * @param address        address of the device of the operation
+     * @param characteristic characteristic whose GATT callback completes the operation
+     */
+    public void schedule(@NonNull final String address, @Nullable final UUID characteristic, @NonNull final OperationScheduler.Operation operation) {
+        final Entry entry = new Entry(operation, characteristic, ticker.now());
+        post(() -> {
+            // the operations scheduled after a cancel are not canceled by it
+            entry.generation = getGeneration(address);
+            enqueue(address, entry);
+            startNext(address);
+        });
+    }
+
+    /**
+     * Called by the GATT callbacks, if the running operation of the device is waiting for the callback of characteristic the next operation is started.
+     */
+    public void onOperationCompleted(@NonNull final String address, @Nullable final UUID characteristic) {
+        post(() -> {
+            Entry running = runningOperations.get(address);
+            if (running != null && (running.characteristic == null || running.characteristic.equals(characteristic))) {
+                complete(address, running);
+            }
+        });
+    }
+
+    /**
+     * Deletes all the operations of the device not yet started, including the ones waiting to be started again.
+     */
+    public void cancel(@NonNull final String address) {
+        post(() -> {
+            generations.put(address, getGeneration(address) + 1);
+            ArrayDeque<Entry> queue = queues.remove(address);
+            if (queue != null) {
+                queueDepth -= queue.size();
+            }
+            Entry running = runningOperations.remove(address);
+            if (running != null) {
+                ticker.removeCallbacks(running.timeout);
+            }
+        });
+    }
+
+    /**
+     * @return the number of operations waiting to be started
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * @return the average time (in milliseconds) between the scheduling of an operation and its first start
+     */
+    public long getAverageWaitTime() {
+        return averageWaitTime;
+    }
+
+    @NonNull
+    public Looper getLooper() {
+        if (thread == null) {
+            throw new IllegalStateException("the scheduler has no thread");
+        }
+        return thread.getLooper();
+    }
+
+    /**
+     * @return the timer wheel of the connection, its timeouts are run on the scheduler thread
+     */
+    @NonNull
+    public TimerWheel getTimerWheel() {
+        return timerWheel;
+    }
+
+    public void quit() {
+        timerWheel.clear();
+        if (handler != null && thread != null) {
+            handler.removeCallbacksAndMessages(null);
+            thread.quitSafely();
+        }
+    }
+
+    private void post(@NonNull Runnable runnable) {
+        ticker.postDelayed(runnable, 0);
+    }
+
+    private int getGeneration(String address) {
+        Integer generation = generations.get(address);
+        return generation != null ? generation : 0;
+    }
+
+    private void enqueue(String address, Entry entry) {
+        ArrayDeque<Entry> queue = queues.get(address);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            queues.put(address, queue);
+        }
+        queue.addLast(entry);
+        queueDepth++;
+    }
+
+    private void startNext(final String address) {
+        while (!runningOperations.containsKey(address)) {
+            ArrayDeque<Entry> queue = queues.get(address);
+            final Entry entry = queue != null ? queue.pollFirst() : null;
+            if (entry == null) {
+                return;
+            }
+            queueDepth--;
+            if (entry.attempts == 0) {
+                long waitTime = ticker.now() - entry.scheduleTime;
+                averageWaitTime = (7 * averageWaitTime + waitTime) / 8;
+            }
+            entry.attempts++;
+            switch (entry.operation.start()) {
+                case STARTED:
+                    runningOperations.put(address, entry);
+                    entry.timeout = () -> complete(address, entry);
+                    ticker.postDelayed(entry.timeout, OPERATION_TIMEOUT);
+                    break;
+                case RETRY:
+                    // the other operations of the device can run in the meantime
+                    long delay = Math.min(MIN_RETRY_DELAY << Math.min(entry.attempts - 1, 5), MAX_RETRY_DELAY);
+                    ticker.postDelayed(() -> retry(address, entry), delay);
+                    break;
+            }
+        }
+    }
+
+    private void retry(String address, Entry entry) {
+        // if the device has been canceled in the meantime the operation is discarded
+        if (entry.generation == getGeneration(address)) {
+            enqueue(address, entry);
+            startNext(address);
+        }
+    }
+
+    private void complete(String address, Entry entry) {
+        if (runningOperations.get(address) == entry) {
+            runningOperations.remove(address);
+            ticker.removeCallbacks(entry.timeout);
+            startNext(address);
+        }
+    }
+
+    private static class Entry {
+        private final OperationScheduler.Operation operation;
+        @Nullable
+        private final UUID characteristic;
+        private final long scheduleTime;
+        private int attempts = 0;
+        private int generation;
+        private Runnable timeout;
+
+        private Entry(OperationScheduler.Operation operation, @Nullable UUID characteristic, long scheduleTime) {
+            this.operation = operation;
+            this.characteristic = characteristic;
+            this.scheduleTime = scheduleTime;
+        }
+    }
+
+    /**
+     * Operation whose start returns STARTED if it waits for its GATT callback, COMPLETED if it has no callback (or it is no longer needed)
+     * or RETRY if it has to be started again later.
+     */
+    public static abstract class Operation extends OperationScheduler.Operation {
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ingreatsol.bluetoothcommunicator;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattServer;
+import android.bluetooth.BluetoothGattService;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresPermission;
+
+import java.util.UUID;
+
+/**
+ * Transport of a ServerChannel: the frames are sent with indications of MESSAGE_SEND_UUID and DATA_SEND_UUID, and the acknowledgements
+ * of the sub data received without response (bulk transfer) with notifications of DATA_ACKNOWLEDGEMENT_UUID. The other frames received are
+ * confirmed by the response of their writing, sent by BluetoothConnectionServer.
+ * <br /><br />
+ * Only one notification at a time can be sent to a device, its completion (onNotificationSent) refers to getSendingCharacteristic.
+ */
+class GattServerTransport extends Transport {
+    private final BluetoothAdapter bluetoothAdapter;
+    @NonNull
+    private volatile Peer peer;
+    @Nullable
+    private volatile BluetoothGattServer bluetoothGattServer;
+    @Nullable
+    private volatile UUID sendingCharacteristic = null;
+
+    public GattServerTransport(@NonNull Peer peer, BluetoothAdapter bluetoothAdapter) {
+        this.peer = peer;
+        this.bluetoothAdapter = bluetoothAdapter;
+    }
+
+    public void setPeer(@NonNull Peer peer) {
+        this.peer = peer;
+    }
+
+    public void setBluetoothGattServer(@Nullable BluetoothGattServer bluetoothGattServer) {
+        this.bluetoothGattServer = bluetoothGattServer;
+    }
+
+    @Nullable
+    public BluetoothGattServer getBluetoothGattServer() {
+        return bluetoothGattServer;
+    }
+
+    /**
+     * @return the characteristic of the last notification sent
+     */
+    @Nullable
+    public UUID getSendingCharacteristic() {
+        return sendingCharacteristic;
+    }
+
+    /**
+     * @return the characteristic whose indications carry the frames of stream
+     */
+    @NonNull
+    public static UUID getFrameCharacteristic(int stream) {
+        return stream == MESSAGE ? BluetoothConnectionServer.MESSAGE_SEND_UUID : BluetoothConnectionServer.DATA_SEND_UUID;
+    }
+
+    /**
+     * @return the characteristic whose notifications carry the acknowledgements of the frames received on stream, or null if they are
+     * sent with the response of the writing of the frame (stream MESSAGE)
+     */
+    @Nullable
+    public static UUID getAcknowledgementCharacteristic(int stream) {
+        return stream == DATA ? BluetoothConnectionServer.DATA_ACKNOWLEDGEMENT_UUID : null;
+    }
+
+    @Override
+    @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
+    public boolean write(int stream, @NonNull byte[] frame) {
+        boolean success = false;
+        if (bluetoothGattServer != null && peer.isFullyConnected()) {
+            // the sub data is carried by the indication itself, without waiting for a reading of the client
+            success = notifyCharacteristic(getFrameCharacteristic(stream), frame, true);
+        }
+        return success;
+    }
+
+    @Override
+    @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
+    public boolean writeAcknowledgement(int stream, @NonNull byte[] acknowledgement) {
+        UUID characteristic = getAcknowledgementCharacteristic(stream);
+        if (characteristic != null) {
+            return notifyCharacteristic(characteristic, acknowledgement, false);
+        }
+        // the sub messages are confirmed by the response of their writing
+        return false;
+    }
+
+    /**
+     * Sends value to the client with a notification of characteristic (an indication if confirm is true).
+     *
+     * @return true if the notification is started
+     */
+    @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
+    public boolean notifyCharacteristic(@NonNull UUID characteristic, @NonNull byte[] value, boolean confirm) {
+        BluetoothGattServer bluetoothGattServer = this.bluetoothGattServer;
+        if (bluetoothGattServer != null) {
+            BluetoothGattService service = bluetoothGattServer.getService(BluetoothConnection.APP_UUID);
+            if (service != null) {
+                BluetoothGattCharacteristic output = service.getCharacteristic(characteristic);
+                if (output != null) {
+                    output.setValue(value);
+                    sendingCharacteristic = characteristic;
+                    return bluetoothGattServer.notifyCharacteristicChanged(peer.getRemoteDevice(bluetoothAdapter), output, confirm);
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return bluetoothGattServer != null && peer.isFullyConnected();
+    }
+}
@@ -46,12 +46,17 @@ import java.util.ArrayDeque;
  */
 public class Message implements Parcelable, Cloneable {
     public static final int HEADER_LENGTH = 1;
+    // priorities, from the most urgent
+    public static final int PRIORITY_CONTROL = SendQueue.PRIORITY_CONTROL;
+    public static final int PRIORITY_INTERACTIVE = SendQueue.PRIORITY_INTERACTIVE;
+    public static final int PRIORITY_BULK = SendQueue.PRIORITY_BULK;
     @Nullable
     private Peer sender;  // if we are the sender, the sender can be null
     @Nullable
     private Peer receiver;  //if is null the message will be sent to all connected peers
     private String header;  // mandatory length: 1
     private byte[] data;
+    private int priority = PRIORITY_INTERACTIVE;
 
     /**
      * @param header must contain 1 character to avoid errors
@@ -235,30 +240,36 @@ public class Message implements Parcelable, Cloneable {
         this.data = data;
     }
 
+    /**
+     * Returns the priority
+     *
+     * @return priority
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Sets the priority of the message in the queue of each peer (it is not sent).<br />
+     * The parts of the more urgent messages are sent before the parts of the less urgent ones already being sent, but the less urgent
+     * messages still get a fraction of the connection, so they are never blocked. Use PRIORITY_CONTROL for short commands,
+     * PRIORITY_INTERACTIVE (default) for the messages that the user waits for and PRIORITY_BULK for long transfers.
+     *
+     * @param priority PRIORITY_CONTROL, PRIORITY_INTERACTIVE or PRIORITY_BULK
+     */
+    public void setPriority(int priority) {
+        this.priority = Math.min(Math.max(priority, PRIORITY_CONTROL), PRIORITY_BULK);
+    }
+
     /**
      * This method is used only by the library, there is no need for you to use it because the split and the reassembly of a long message is handled by the library.
      *
-     * @param id id
+     * @param id                 id
+     * @param subMessagesLength length of each sub message (header included), it depends on the MTU of the connection
      * @return the message splitted in more BluetoothMessages (or converted in one BluetoothMessage if the message is short enough)
      */
-    public ArrayDeque<BluetoothMessage> splitInBluetoothMessages(BluetoothMessage.SequenceNumber id) {
-        int subDataLength = BluetoothConnection.SUB_MESSAGES_LENGTH - BluetoothMessage.TOTAL_LENGTH;
-        ArrayDeque<byte[]> subDataArray = BluetoothTools.splitBytes(BluetoothTools.concatBytes(header.getBytes(StandardCharsets.UTF_8), data), subDataLength);
-
-        BluetoothMessage.SequenceNumber sequenceNumber = new BluetoothMessage.SequenceNumber(BluetoothMessage.SEQUENCE_NUMBER_LENGTH);
-        ArrayDeque<BluetoothMessage> bluetoothMessages = new ArrayDeque<>();
-        while (subDataArray.peekFirst() != null) {
-            byte[] subData = subDataArray.pollFirst();
-            int type;
-            if (subDataArray.peekFirst() == null) {
-                type = BluetoothMessage.FINAL;
-            } else {
-                type = BluetoothMessage.NON_FINAL;
-            }
-            bluetoothMessages.addLast(new BluetoothMessage(id.clone(), sequenceNumber.clone(), type, subData));
-            sequenceNumber.increment();
-        }
-        return bluetoothMessages;
+    public ArrayDeque<BluetoothMessage> splitInBluetoothMessages(BluetoothMessage.SequenceNumber id, int subMessagesLength) {
+        return BluetoothMessage.split(header.getBytes(StandardCharsets.UTF_8), data, id, subMessagesLength);
     }
 
     @NonNull
@@ -288,6 +299,7 @@ public class Message implements Parcelable, Cloneable {
         sender = in.readParcelable(Peer.class.getClassLoader());
         header = in.readString();
         in.readByteArray(this.data);
+        priority = in.readInt();
     }
 
     @Override
@@ -300,5 +312,6 @@ public class Message implements Parcelable, Cloneable {
         parcel.writeParcelable(sender, i);
         parcel.writeString(header);
         parcel.writeByteArray(this.data);
+        parcel.writeInt(priority);
     }
 }
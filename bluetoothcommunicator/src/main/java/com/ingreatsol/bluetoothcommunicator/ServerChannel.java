@@ -17,136 +17,59 @@
 package com.ingreatsol.bluetoothcommunicator;
 
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattServer;
-import android.bluetooth.BluetoothGattService;
 import android.os.Build;
-import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.RequiresPermission;
 
-import com.ingreatsol.bluetoothcommunicator.tools.Timer;
-
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.UUID;
 
 class ServerChannel extends Channel {
-    private BluetoothGattServer bluetoothGattServer;
+    private final GattServerTransport gattTransport;
     private final BluetoothAdapter bluetoothAdapter;
-    private UUID sendingCharacteristic = null;
 
-    protected ServerChannel(@NonNull Peer peer, final BluetoothAdapter bluetoothAdapter) {
-        super(peer);
-        this.bluetoothAdapter = bluetoothAdapter;
+    protected ServerChannel(@NonNull Peer peer, final BluetoothAdapter bluetoothAdapter, @NonNull GattScheduler gattScheduler) {
+        this(peer, bluetoothAdapter, gattScheduler, new GattServerTransport(peer, bluetoothAdapter));
     }
 
-
-    public void setBluetoothGattServer(BluetoothGattServer bluetoothGattServer) {
-        this.bluetoothGattServer = bluetoothGattServer;
-    }
-
-    @Override
-    protected void writeSubMessage() {
-        new Thread() {
+    private ServerChannel(@NonNull Peer peer, BluetoothAdapter bluetoothAdapter, @NonNull GattScheduler gattScheduler, @NonNull GattServerTransport gattTransport) {
+        super(peer, gattScheduler, new GattOperationScheduler(gattScheduler, peer) {
+            @Nullable
             @Override
-            @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
-            public void run() {
-                synchronized (lock) {
-                    super.run();
-                    boolean success = false;
-                    if (bluetoothGattServer != null && !messagesPaused && getPeer().isFullyConnected()) {
-                        BluetoothGattService service = bluetoothGattServer.getService(BluetoothConnection.APP_UUID);
-
-                        if (service != null) {
-                            if (pendingMessage != null) {
-                                BluetoothMessage subMessageToSend = pendingMessage.peekFirst();
-                                if (subMessageToSend != null) {    // if there are other subMessages for the message we are sending, we send the next one
-                                    BluetoothGattCharacteristic output = service.getCharacteristic(BluetoothConnectionServer.MESSAGE_SEND_UUID);
-                                    if (output != null) {
-                                        output.setValue(subMessageToSend.getCompleteData());
-                                        sendingCharacteristic = BluetoothConnectionServer.MESSAGE_SEND_UUID;
-                                        success = bluetoothGattServer.notifyCharacteristicChanged(getPeer().getRemoteDevice(bluetoothAdapter), output, true);
-                                        Log.e("subServerMessage send", "-" + success);
-                                    }
-                                }
-                            } else {
-                                success = true;
-                            }
-                        }
-                    }
-                    final boolean finalSuccess = success;
-                    if (finalSuccess) {
-                        // start of message timer
-                        startMessageTimer(new Timer.Callback() {
-                            @Override
-                            public void onFinished() {
-                                onSubMessageWriteFailed();
-                            }
-                        });
-                    } else {
-                        writeSubMessage();
-                    }
+            protected UUID getCharacteristic(int type, int stream) {
+                if (type == FRAME) {
+                    return GattServerTransport.getFrameCharacteristic(stream);
                 }
+                return GattServerTransport.getAcknowledgementCharacteristic(stream);
             }
-        }.start();
+        }, gattTransport);
+        this.gattTransport = gattTransport;
+        this.bluetoothAdapter = bluetoothAdapter;
     }
 
-    @Override
-    protected void writeSubData() {
-        new Thread() {
-            @Override
-            @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
-            public void run() {
-                synchronized (lock) {
-                    super.run();
-                    boolean success = false;
-                    if (bluetoothGattServer != null && !dataPaused && getPeer().isFullyConnected()) {
-                        BluetoothGattService service = bluetoothGattServer.getService(BluetoothConnection.APP_UUID);
+    public void setBluetoothGattServer(BluetoothGattServer bluetoothGattServer) {
+        gattTransport.setBluetoothGattServer(bluetoothGattServer);
+    }
 
-                        if (service != null) {
-                            if (pendingData != null) {
-                                BluetoothMessage subDataToSend = pendingData.peekFirst();
-                                if (subDataToSend != null) {   // if there are other subMessages for the message we are sending, we send the next one
-                                    BluetoothGattCharacteristic output = service.getCharacteristic(BluetoothConnectionServer.DATA_SEND_UUID);
-                                    if (output != null) {
-                                        //output.setValue(subDataToSend);
-                                        output.setValue(String.valueOf(1).getBytes(StandardCharsets.UTF_8));
-                                        sendingCharacteristic = BluetoothConnectionServer.DATA_SEND_UUID;
-                                        success = bluetoothGattServer.notifyCharacteristicChanged(getPeer().getRemoteDevice(bluetoothAdapter), output, true);
-                                        Log.e("subServerData send", "-" + success);
-                                    }
-                                }
-                            } else {
-                                success = true;
-                            }
-                        }
-                    }
-                    final boolean finalSuccess = success;
-                    if (finalSuccess) {
-                        // start of data timer
-                        startDataTimer(new Timer.Callback() {
-                            @Override
-                            public void onFinished() {
-                                onSubDataWriteFailed();
-                            }
-                        });
-                    } else {
-                        writeSubData();
-                    }
-                }
-            }
-        }.start();
+    @Override
+    public void setPeer(@NonNull Peer peer) {
+        super.setPeer(peer);
+        gattTransport.setPeer(peer);
     }
 
     public UUID getSendingCharacteristic() {
-        return sendingCharacteristic;
+        return gattTransport.getSendingCharacteristic();
     }
 
     @Override
     @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
     public void readPhy() {
         synchronized (lock) {
+            BluetoothGattServer bluetoothGattServer = gattTransport.getBluetoothGattServer();
             if (bluetoothGattServer != null && getPeer().isFullyConnected()) {
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
                     bluetoothGattServer.readPhy(getPeer().getRemoteDevice(bluetoothAdapter));
@@ -158,98 +81,39 @@ class ServerChannel extends Channel {
     @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
     public boolean acceptConnection() {
         synchronized (lock) {
-            boolean success = false;
-            if (bluetoothGattServer != null) {
-                BluetoothGattService service = bluetoothGattServer.getService(BluetoothConnection.APP_UUID);
-                if (service != null) {
-                    BluetoothGattCharacteristic output = service.getCharacteristic(BluetoothConnectionServer.CONNECTION_RESPONSE_UUID);
-                    if (output != null) {
-                        output.setValue(String.valueOf(BluetoothConnection.ACCEPT).getBytes(StandardCharsets.UTF_8));
-                        sendingCharacteristic = BluetoothConnectionServer.CONNECTION_RESPONSE_UUID;
-                        success = bluetoothGattServer.notifyCharacteristicChanged(
-                                getPeer().getRemoteDevice(bluetoothAdapter),
-                                output,
-                                true);
-                    }
-                }
-            }
-            return success;
+            return gattTransport.notifyCharacteristic(BluetoothConnectionServer.CONNECTION_RESPONSE_UUID, String.valueOf(BluetoothConnection.ACCEPT).getBytes(StandardCharsets.UTF_8), true);
         }
     }
 
     @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
     public boolean rejectConnection() {
         synchronized (lock) {
-            boolean success = false;
-            if (bluetoothGattServer != null) {
-                BluetoothGattService service = bluetoothGattServer.getService(BluetoothConnection.APP_UUID);
-                if (service != null) {
-                    BluetoothGattCharacteristic output = service.getCharacteristic(BluetoothConnectionServer.CONNECTION_RESPONSE_UUID);
-                    if (output != null) {
-                        output.setValue(String.valueOf(BluetoothConnection.REJECT).getBytes(StandardCharsets.UTF_8));
-                        sendingCharacteristic = BluetoothConnectionServer.CONNECTION_RESPONSE_UUID;
-                        success = bluetoothGattServer.notifyCharacteristicChanged(getPeer().getRemoteDevice(bluetoothAdapter), output, true);
-                    }
-                }
-            }
-            return success;
+            return gattTransport.notifyCharacteristic(BluetoothConnectionServer.CONNECTION_RESPONSE_UUID, String.valueOf(BluetoothConnection.REJECT).getBytes(StandardCharsets.UTF_8), true);
         }
     }
 
     @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
     public boolean notifyConnectionResumed() {
         synchronized (lock) {
-            boolean success = false;
-            if (bluetoothGattServer != null) {
-                BluetoothGattService service = bluetoothGattServer.getService(BluetoothConnection.APP_UUID);
-                if (service != null) {
-                    BluetoothGattCharacteristic output = service.getCharacteristic(BluetoothConnectionServer.CONNECTION_RESUMED_SEND_UUID);
-                    if (output != null) {
-                        output.setValue(String.valueOf(BluetoothConnection.ACCEPT).getBytes(StandardCharsets.UTF_8));
-                        sendingCharacteristic = BluetoothConnectionServer.CONNECTION_RESUMED_SEND_UUID;
-                        success = bluetoothGattServer.notifyCharacteristicChanged(getPeer().getRemoteDevice(bluetoothAdapter), output, true);
-                    }
-                }
-            }
-            return success;
+            return gattTransport.notifyCharacteristic(BluetoothConnectionServer.CONNECTION_RESUMED_SEND_UUID, String.valueOf(BluetoothConnection.ACCEPT).getBytes(StandardCharsets.UTF_8), true);
         }
     }
 
     @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
     public boolean notifyConnectionResumedRejected() {
         synchronized (lock) {
-            boolean success = false;
-            if (bluetoothGattServer != null) {
-                BluetoothGattService service = bluetoothGattServer.getService(BluetoothConnection.APP_UUID);
-                if (service != null) {
-                    BluetoothGattCharacteristic output = service.getCharacteristic(BluetoothConnectionServer.CONNECTION_RESUMED_SEND_UUID);
-                    if (output != null) {
-                        output.setValue(String.valueOf(BluetoothConnection.REJECT).getBytes(StandardCharsets.UTF_8));
-                        sendingCharacteristic = BluetoothConnectionServer.CONNECTION_RESUMED_SEND_UUID;
-                        success = bluetoothGattServer.notifyCharacteristicChanged(getPeer().getRemoteDevice(bluetoothAdapter), output, true);
-                    }
-                }
-            }
-            return success;
+            return gattTransport.notifyCharacteristic(BluetoothConnectionServer.CONNECTION_RESUMED_SEND_UUID, String.valueOf(BluetoothConnection.REJECT).getBytes(StandardCharsets.UTF_8), true);
         }
     }
 
     @Override
     @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
-    public boolean notifyDisconnection(DisconnectionNotificationCallback disconnectionNotificationCallback) {
+    protected boolean notifyDisconnection(DisconnectionNotificationCallback disconnectionNotificationCallback, @NonNull ArrayList<MessageCallback> canceledCallbacks) {
         synchronized (lock) {
             boolean success = false;
-            if (super.notifyDisconnection(disconnectionNotificationCallback)) {
-                if (bluetoothGattServer != null && getPeer().isFullyConnected()) {
-                    BluetoothGattService service = bluetoothGattServer.getService(BluetoothConnection.APP_UUID);
-                    if (service != null) {
-                        BluetoothGattCharacteristic disconnectionSend = service.getCharacteristic(BluetoothConnectionServer.DISCONNECTION_SEND_UUID);
-                        if (disconnectionSend != null) {
-                            disconnectionSend.setValue(String.valueOf(1).getBytes(StandardCharsets.UTF_8));
-                            sendingCharacteristic = BluetoothConnectionServer.DISCONNECTION_SEND_UUID;
-                            success = bluetoothGattServer.notifyCharacteristicChanged(getPeer().getRemoteDevice(bluetoothAdapter), disconnectionSend, true);
-                        }
-                    }
+            if (super.notifyDisconnection(disconnectionNotificationCallback, canceledCallbacks)) {
+                if (gattTransport.isConnected()) {
+                    success = gattTransport.notifyCharacteristic(BluetoothConnectionServer.DISCONNECTION_SEND_UUID, String.valueOf(1).getBytes(StandardCharsets.UTF_8), true);
                 }
             }
             return success;
@@ -258,9 +122,10 @@ class ServerChannel extends Channel {
 
     @Override
     @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
-    public boolean disconnect(DisconnectionCallback disconnectionCallback) {
+    protected boolean disconnect(DisconnectionCallback disconnectionCallback, @NonNull ArrayList<MessageCallback> canceledCallbacks) {
         synchronized (lock) {
-            if (super.disconnect(disconnectionCallback)) {
+            if (super.disconnect(disconnectionCallback, canceledCallbacks)) {
+                BluetoothGattServer bluetoothGattServer = gattTransport.getBluetoothGattServer();
                 if (bluetoothGattServer != null) {
                     bluetoothGattServer.cancelConnection(getPeer().getRemoteDevice(bluetoothAdapter));
                     return true;
@@ -275,6 +140,7 @@ class ServerChannel extends Channel {
     public void destroy() {
         synchronized (lock) {
             super.destroy();
+            BluetoothGattServer bluetoothGattServer = gattTransport.getBluetoothGattServer();
             if (bluetoothGattServer != null) {
                 bluetoothGattServer.cancelConnection(getPeer().getRemoteDevice(bluetoothAdapter));
                 bluetoothGattServer.close();
@@ -3,19 +3,16 @@ package com.ingreatsol.bluetoothcommunicator.tools;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
-import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import org.jetbrains.annotations.Contract;
 
-import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 import java.util.Random;
 
@@ -31,6 +28,7 @@ public class BluetoothTools {
     public static final int FIX_TEXT = 1;
     public static final String BLUETOOTH_NAME_ID = "bluetoothNameId";
     public static final String ORIGINAL_BLUETOOTH_NAME = "originalbluetoothName";
+    public static final int SUPPORTED_CHARACTERS_COUNT = SupportedCharacters.COUNT;
 
     /**
      * return all characters of UTF encoding (this is because bluetooth only support a certain amount of bytes
@@ -38,52 +36,65 @@ public class BluetoothTools {
      * constructor o in setName contains only these character and not exceed 18 characters in length, otherwise
      * BluetoothCommunicator may not work correctly.
      *
-     * @return list of supported characters
+     * @return list of supported characters (a modifiable copy, for read only access use getSupportedCharacters)
      */
     @NonNull
     public static ArrayList<Character> getSupportedUTFCharacters() {
-        Character[] names = {' ', '!', '"', '#', '$', '%', '&', '\'', '(', ')',
-                '*', '+', ',', '-', '.', '/',
-                '0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
-                ':', ';', '<', '=', '>', '?', '@',
-                'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M', 'N', 'O', 'P', 'Q', 'R', 'S', 'T', 'U', 'V', 'W', 'X', 'Y', 'Z',
-                '[', '\\', ']', '^', '_', '`',
-                'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j', 'k', 'l', 'm', 'n', 'o', 'p', 'q', 'r', 's', 't', 'u', 'v', 'w', 'x', 'y', 'z',
-                '{', '|', '}', '~'};
+        return new ArrayList<>(SupportedCharacters.getList());
+    }
 
-        ArrayList<Character> characters = new ArrayList<>(Arrays.asList(names));
+    /**
+     * @return unmodifiable list of supported characters in alphabetical order, it is shared so it doesn't allocate anything
+     */
+    @NonNull
+    public static List<Character> getSupportedCharacters() {
+        return SupportedCharacters.getList();
+    }
+
+    /**
+     * @param index between 0 and SUPPORTED_CHARACTERS_COUNT - 1
+     * @return the supported character in position index of the alphabetical order
+     */
+    public static char getSupportedCharacter(int index) {
+        return SupportedCharacters.get(index);
+    }
 
-        Collections.sort(characters);  // alphabetical order
+    /**
+     * @return the position of character in the alphabetical order of the supported characters, or -1 if it is not supported
+     */
+    public static int getSupportedCharacterIndex(int character) {
+        return SupportedCharacters.getIndex(character);
+    }
 
-        return characters;
+    public static boolean isSupportedCharacter(char character) {
+        return getSupportedCharacterIndex(character) != -1;
     }
 
     @NonNull
     public static String getSupportedNameCharactersString() {
-        String string = "";
-        ArrayList<Character> characters = getSupportedUTFCharacters();
-        for (Character character : characters) {
-            string = string.concat(" " + character.toString());
+        StringBuilder string = new StringBuilder(SUPPORTED_CHARACTERS_COUNT * 2);
+        for (char character : SupportedCharacters.getList()) {
+            string.append(' ').append(character);
         }
-        int lentgh = string.getBytes(StandardCharsets.UTF_8).length;
-        Log.e("lenght", lentgh + "");
-        return string;
+        return string.toString();
     }
 
     public static String fixLength(@NonNull String string, int length, int typeOfFix) {
         int fillingLength = length - string.length();
         if (fillingLength > 0) {
             // filling
-            Character fillChar = getSupportedUTFCharacters().get(0);
-            StringBuilder outputBuffer = new StringBuilder(fillingLength);
+            char fillChar = SupportedCharacters.get(0);
+            StringBuilder outputBuffer = new StringBuilder(length);
+            if (typeOfFix != FIX_NUMBER) {
+                outputBuffer.append(string);
+            }
             for (int i = 0; i < fillingLength; i++) {
                 outputBuffer.append(fillChar);
             }
             if (typeOfFix == FIX_NUMBER) {
-                return outputBuffer.toString().concat(string);
-            } else {
-                return string.concat(outputBuffer.toString());
+                outputBuffer.append(string);
             }
+            return outputBuffer.toString();
         } else {
             // cut
             if (typeOfFix == FIX_NUMBER) {
@@ -218,7 +229,7 @@ public class BluetoothTools {
         @Contract(" -> new")
         private String nextString() {
             for (int idx = 0; idx < buf.length; ++idx) {
-                buf[idx] = (getSupportedUTFCharacters().get(random.nextInt(95)));  //si genera un carattere casuale composto da tutti i valori possibili del codice ascii normale (non esteso) per poter essere espressi da un solo byte in utf-8
+                buf[idx] = SupportedCharacters.get(random.nextInt(SUPPORTED_CHARACTERS_COUNT));  //si genera un carattere casuale composto da tutti i valori possibili del codice ascii normale (non esteso) per poter essere espressi da un solo byte in utf-8
             }
             return new String(buf);
         }
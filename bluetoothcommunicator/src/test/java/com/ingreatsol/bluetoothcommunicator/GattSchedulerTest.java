@@ -0,0 +1,107 @@
+package com.ingreatsol.bluetoothcommunicator;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Retries and cancellation of the operations of GattScheduler, with a ticker that runs its tasks in virtual time.
+ */
+public class GattSchedulerTest {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private final ManualTicker ticker = new ManualTicker();
+    private final GattScheduler scheduler = new GattScheduler(ticker);
+    private final ArrayList<String> starts = new ArrayList<>();
+
+    @Test
+    public void retriedOperation_isStartedAgain() {
+        scheduler.schedule(ADDRESS, null, newOperation("a", GattScheduler.RETRY, GattScheduler.COMPLETED));
+        ticker.advance(1000);
+        assertEquals(Arrays.asList("a", "a"), starts);
+    }
+
+    @Test
+    public void retriedOperation_isDiscardedByTheCancelOfItsDevice() {
+        scheduler.schedule(ADDRESS, null, newOperation("a", GattScheduler.RETRY, GattScheduler.COMPLETED));
+        ticker.advance(1);
+        assertEquals(Arrays.asList("a"), starts);
+        // the retry is waiting for its delay
+        scheduler.cancel(ADDRESS);
+        scheduler.schedule(ADDRESS, null, newOperation("b", GattScheduler.COMPLETED));
+        ticker.advance(1000);
+        assertEquals(Arrays.asList("a", "b"), starts);
+        assertEquals(0, scheduler.getQueueDepth());
+    }
+
+    @Test
+    public void cancel_doesNotDiscardTheRetriesOfTheOtherDevices() {
+        scheduler.schedule(ADDRESS, null, newOperation("a", GattScheduler.RETRY, GattScheduler.COMPLETED));
+        scheduler.schedule("66:77:88:99:AA:BB", null, newOperation("b", GattScheduler.RETRY, GattScheduler.COMPLETED));
+        ticker.advance(1);
+        scheduler.cancel(ADDRESS);
+        ticker.advance(1000);
+        assertEquals(Arrays.asList("a", "b", "b"), starts);
+    }
+
+    /**
+     * @return an operation that returns results in order, one for each start (the last one is repeated)
+     */
+    private GattScheduler.Operation newOperation(final String name, final int... results) {
+        return new GattScheduler.Operation() {
+            private int attempts = 0;
+
+            @Override
+            public int start() {
+                starts.add(name);
+                return results[Math.min(attempts++, results.length - 1)];
+            }
+        };
+    }
+
+    /**
+     * Ticker whose tasks are run by advance, in order of time and then of posting.
+     */
+    private static class ManualTicker implements TimerWheel.Ticker {
+        private final ArrayList<Runnable> tasks = new ArrayList<>();
+        private final ArrayList<Long> times = new ArrayList<>();
+        private long now = 0;
+
+        @Override
+        public long now() {
+            return now;
+        }
+
+        @Override
+        public void postDelayed(@NonNull Runnable runnable, long delay) {
+            int index = 0;
+            while (index < times.size() && times.get(index) <= now + delay) {
+                index++;
+            }
+            tasks.add(index, runnable);
+            times.add(index, now + delay);
+        }
+
+        @Override
+        public void removeCallbacks(@NonNull Runnable runnable) {
+            int index;
+            while ((index = tasks.indexOf(runnable)) != -1) {
+                tasks.remove(index);
+                times.remove(index);
+            }
+        }
+
+        private void advance(long duration) {
+            long until = now + duration;
+            while (!tasks.isEmpty() && times.get(0) <= until) {
+                now = Math.max(now, times.remove(0));
+                tasks.remove(0).run();
+            }
+            now = until;
+        }
+    }
+}